@@ -0,0 +1,122 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.imageresizerlight.CodecContext;
+import org.magiclen.imageresizerlight.ImageDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JMH benchmark of decoding, per input format and per size class. Images
+ * are decoded at the reduced resolution which the conversion uses, with new
+ * codecs each time or with the codecs of one worker.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class DecodeBenchmark {
+
+    // -----Object Variable-----
+    /**
+     * The format of the source image.
+     */
+    @Param({"jpg", "png", "bmp", "tiff", "gif"})
+    public String format;
+    /**
+     * The size class of the source image.
+     */
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.SizeClass sizeClass;
+    /**
+     * The length of the max side of output images.
+     */
+    @Param({"1920"})
+    public int maxSide;
+    /**
+     * The source image file.
+     */
+    private File file;
+    /**
+     * The codecs and buffers of a worker.
+     */
+    private CodecContext context;
+
+    // -----Object Method-----
+    /**
+     * Prepare the source image and the codecs.
+     *
+     * @throws IOException if the corpus cannot be generated
+     */
+    @Setup
+    public void setUp() throws IOException {
+        file = SyntheticCorpus.getFile(sizeClass, format);
+        context = new CodecContext();
+    }
+
+    /**
+     * Release the codecs.
+     */
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Decode with new codecs.
+     *
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     */
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageDecoder.decode(file, maxSide);
+    }
+
+    /**
+     * Decode with the codecs, buffers and rasters of one worker, as the
+     * conversion does.
+     *
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     * @throws InterruptedException if the thread is interrupted
+     */
+    @Benchmark
+    public BufferedImage decodeReused() throws IOException, InterruptedException {
+        return ImageDecoder.decode(file, maxSide, null, context);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.imageresizerlight.CodecContext;
+import org.magiclen.imageresizerlight.ImageDecoder;
+import org.magiclen.imageresizerlight.ImageEncoder;
+import org.magiclen.magicimage.ImageResize;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JMH benchmark of JPEG encoding in memory, per size class and quality,
+ * with a new writer each time, progressively, and with the writer and the
+ * buffers of one worker.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class EncodeBenchmark {
+
+    // -----Object Variable-----
+    /**
+     * The size class of the source image.
+     */
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.SizeClass sizeClass;
+    /**
+     * The quality of output images, from 0 to 100.
+     */
+    @Param({"60", "80", "95"})
+    public int quality;
+    /**
+     * The length of the max side of output images.
+     */
+    @Param({"1920"})
+    public int maxSide;
+    /**
+     * The resized image.
+     */
+    private BufferedImage resized;
+    /**
+     * The codecs and buffers of a worker.
+     */
+    private CodecContext context;
+
+    // -----Object Method-----
+    /**
+     * Decode and resize the source image, and prepare the codecs.
+     *
+     * @throws IOException if the image cannot be decoded
+     */
+    @Setup
+    public void setUp() throws IOException {
+        resized = ImageResize.resize(ImageDecoder.decode(SyntheticCorpus.getFile(sizeClass, "png"), maxSide), maxSide, 0, false, true);
+        context = new CodecContext();
+    }
+
+    /**
+     * Release the codecs.
+     */
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    /**
+     * Encode a baseline JPEG stream with a new writer.
+     *
+     * @return the JPEG stream
+     * @throws IOException if the image cannot be encoded
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return ImageEncoder.encodeJPEG(resized, quality / 100f, false);
+    }
+
+    /**
+     * Encode a progressive JPEG stream with a new writer.
+     *
+     * @return the JPEG stream
+     * @throws IOException if the image cannot be encoded
+     */
+    @Benchmark
+    public byte[] encodeProgressive() throws IOException {
+        return ImageEncoder.encodeJPEG(resized, quality / 100f, true);
+    }
+
+    /**
+     * Encode a baseline JPEG stream with the writer and the buffers of one
+     * worker, as the conversion does.
+     *
+     * @return the size of the JPEG stream
+     * @throws IOException if the image cannot be encoded
+     */
+    @Benchmark
+    public int encodeReused() throws IOException {
+        return ImageEncoder.encodeJPEG(resized, quality / 100f, false, context).size();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight.benchmark;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.imageresizerlight.ImageDecoder;
+import org.magiclen.imageresizerlight.ImageResampler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JMH benchmark of the resampling tiers, per size class. The input is
+ * decoded at the reduced resolution which the conversion uses, so it is
+ * resized as much as in a real conversion. After the measurement, the peak
+ * signal-to-noise ratio of the output of the tier against an exact
+ * area-averaged reduction is printed, so the speed of a tier can be weighed
+ * against its quality.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ResampleBenchmark {
+
+    // -----Object Variable-----
+    /**
+     * The size class of the source image.
+     */
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.SizeClass sizeClass;
+    /**
+     * The name of the resampling tier.
+     */
+    @Param({"fast", "balanced", "best"})
+    public String tier;
+    /**
+     * The length of the max side of output images.
+     */
+    @Param({"1920"})
+    public int maxSide;
+    /**
+     * The decoded source image.
+     */
+    private BufferedImage decoded;
+    /**
+     * The resampling tier.
+     */
+    private ImageResampler.Tier resamplingTier;
+
+    // -----Class Method-----
+    /**
+     * Shrink an image by area averaging, which weighs every source pixel by
+     * its coverage. It is slow, but it is the reference of the quality of
+     * resampling tiers.
+     *
+     * @param image input an image
+     * @param width input the width of the output image
+     * @param height input the height of the output image
+     * @return the shrunk image
+     */
+    private static BufferedImage areaAverage(final BufferedImage image, final int width, final int height) {
+        final BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = output.createGraphics();
+        try {
+            g.drawImage(image.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return output;
+    }
+
+    /**
+     * Compute the peak signal-to-noise ratio of an image against a reference
+     * of the same size, over the RGB components.
+     *
+     * @param image input an image
+     * @param reference input the reference
+     * @return the ratio in decibels, or positive infinity if the images are
+     * identical
+     */
+    private static double psnr(final BufferedImage image, final BufferedImage reference) {
+        final int width = reference.getWidth();
+        final int height = reference.getHeight();
+        final int[] a = image.getRGB(0, 0, width, height, null, 0, width);
+        final int[] b = reference.getRGB(0, 0, width, height, null, 0, width);
+        double sum = 0;
+        for (int i = 0; i < a.length; ++i) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                final int d = ((a[i] >> shift) & 0xFF) - ((b[i] >> shift) & 0xFF);
+                sum += d * d;
+            }
+        }
+        final double mse = sum / (a.length * 3.0);
+        return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+    }
+
+    // -----Object Method-----
+    /**
+     * Decode the source image.
+     *
+     * @throws IOException if the image cannot be decoded
+     */
+    @Setup
+    public void setUp() throws IOException {
+        decoded = ImageDecoder.decode(SyntheticCorpus.getFile(sizeClass, "png"), maxSide);
+        resamplingTier = ImageResampler.Tier.of(tier);
+    }
+
+    /**
+     * Print how close the output of the tier comes to the exact area
+     * average. It is computed outside the measurement, since the reference is
+     * slow.
+     */
+    @TearDown
+    public void tearDown() {
+        final BufferedImage resized = resample();
+        final BufferedImage reference = areaAverage(decoded, resized.getWidth(), resized.getHeight());
+        System.out.println(String.format(Locale.ROOT, "%s/%s: %.3f dB PSNR against area averaging", tier, sizeClass.name().toLowerCase(Locale.ROOT), psnr(resized, reference)));
+    }
+
+    /**
+     * Resize the image to the max side.
+     *
+     * @return the resized image
+     */
+    @Benchmark
+    public BufferedImage resample() {
+        return ImageResampler.resize(decoded, maxSide, false, resamplingTier);
+    }
+}
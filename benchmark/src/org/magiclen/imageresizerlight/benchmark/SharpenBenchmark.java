@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.magiclen.imageresizerlight.ImageDecoder;
+import org.magiclen.imageresizerlight.ImageSharpener;
+import org.magiclen.magicimage.ImageResize;
+import org.magiclen.magicimage.ImageSharpen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JMH benchmark of sharpening a resized image, per size class, with the
+ * convolution of MagicImage and with the banded sharpener of the conversion.
+ *
+ * @author Magic Len
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SharpenBenchmark {
+
+    // -----Class Constant-----
+    /**
+     * The amount of sharpening.
+     */
+    private static final float AMOUNT = 0.5f;
+
+    // -----Object Variable-----
+    /**
+     * The size class of the source image.
+     */
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public SyntheticCorpus.SizeClass sizeClass;
+    /**
+     * The length of the max side of output images.
+     */
+    @Param({"1920"})
+    public int maxSide;
+    /**
+     * The resized image.
+     */
+    private BufferedImage resized;
+
+    // -----Object Method-----
+    /**
+     * Decode and resize the source image.
+     *
+     * @throws IOException if the image cannot be decoded
+     */
+    @Setup
+    public void setUp() throws IOException {
+        resized = ImageResize.resize(ImageDecoder.decode(SyntheticCorpus.getFile(sizeClass, "png"), maxSide), maxSide, 0, false, true);
+    }
+
+    /**
+     * Sharpen with the convolution of MagicImage.
+     *
+     * @return the sharpened image
+     */
+    @Benchmark
+    public BufferedImage sharpenConvolution() {
+        return ImageSharpen.sharpen(resized, AMOUNT);
+    }
+
+    /**
+     * Sharpen in parallel bands, as the conversion does.
+     *
+     * @return the sharpened image
+     */
+    @Benchmark
+    public BufferedImage sharpenBanded() {
+        return ImageSharpener.sharpen(resized, AMOUNT);
+    }
+}
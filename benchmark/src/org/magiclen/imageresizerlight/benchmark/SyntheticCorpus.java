@@ -0,0 +1,237 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight.benchmark;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Generate a reproducible corpus of synthetic images. The same seed always
+ * draws the same pixels, so results measured on different machines or
+ * releases are comparable.
+ *
+ * @author Magic Len
+ */
+public final class SyntheticCorpus {
+
+    // -----Class Constant-----
+    /**
+     * The formats in the corpus.
+     */
+    public static final List<String> FORMATS = Collections.unmodifiableList(Arrays.asList("jpg", "png", "bmp", "tiff", "gif"));
+    /**
+     * The default seed.
+     */
+    public static final long DEFAULT_SEED = 20180101L;
+    /**
+     * The default folder of the corpus, relative to the working folder.
+     */
+    public static final String DEFAULT_FOLDER = "benchmark-corpus";
+    /**
+     * The system property which sets the folder of the corpus of the JMH
+     * benchmarks.
+     */
+    public static final String FOLDER_PROPERTY = "imageresizerlight.corpus";
+
+    // -----Class Enum-----
+    /**
+     * The size classes in the corpus. The size is the length of the max side.
+     */
+    public static enum SizeClass {
+
+        SMALL(640), MEDIUM(2400), LARGE(6000);
+
+        private final int maxSide;
+
+        SizeClass(final int maxSide) {
+            this.maxSide = maxSide;
+        }
+
+        /**
+         * Get the length of the max side.
+         *
+         * @return the length of the max side
+         */
+        public int getMaxSide() {
+            return maxSide;
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Get the name of an image in the corpus.
+     *
+     * @param sizeClass input a size class
+     * @param format input a format
+     * @return the file name
+     */
+    public static String getFileName(final SizeClass sizeClass, final String format) {
+        return sizeClass.name().toLowerCase(Locale.ROOT).concat(".").concat(format);
+    }
+
+    /**
+     * Get an image of the corpus for the JMH benchmarks. The corpus is
+     * generated with the default seed into the folder set by the system
+     * property, or into the default folder, if it is missing.
+     *
+     * @param sizeClass input a size class
+     * @param format input a format
+     * @return the image file
+     * @throws IOException if the corpus cannot be generated
+     */
+    public static File getFile(final SizeClass sizeClass, final String format) throws IOException {
+        final Path folder = Paths.get(System.getProperty(FOLDER_PROPERTY, DEFAULT_FOLDER));
+        generate(folder, DEFAULT_SEED);
+        return folder.resolve(getFileName(sizeClass, format)).toFile();
+    }
+
+    /**
+     * Draw a synthetic photo-like image. It mixes smooth gradients, hard
+     * edges, fine lines and noise, so every stage has realistic work to do.
+     *
+     * @param width input the width
+     * @param height input the height
+     * @param seed input the seed
+     * @return the image
+     */
+    public static BufferedImage draw(final int width, final int height, final long seed) {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width, height, new Color(random.nextInt(0xFFFFFF))));
+            g.fillRect(0, 0, width, height);
+            final int unit = Math.max(1, Math.max(width, height) / 64);
+            for (int i = 0; i < 48; ++i) {
+                g.setColor(new Color(random.nextInt(0xFFFFFF) | (random.nextInt(192) + 64) << 24, true));
+                final int x = random.nextInt(width), y = random.nextInt(height);
+                final int w = unit * (1 + random.nextInt(16)), h = unit * (1 + random.nextInt(16));
+                if (random.nextBoolean()) {
+                    g.fillOval(x - w / 2, y - h / 2, w, h);
+                } else {
+                    g.fillRect(x - w / 2, y - h / 2, w, h);
+                }
+            }
+            g.setStroke(new BasicStroke(Math.max(1, unit / 8)));
+            for (int i = 0; i < 96; ++i) {
+                g.setColor(new Color(random.nextInt(0xFFFFFF)));
+                g.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width), random.nextInt(height));
+            }
+            g.setColor(Color.WHITE);
+            g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, unit * 2));
+            g.drawString("Image Resizer Light", unit, unit * 3);
+        } finally {
+            g.dispose();
+        }
+        // sensor-like noise
+        final int[] row = new int[width];
+        for (int y = 0; y < height; ++y) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; ++x) {
+                final int n = random.nextInt(9) - 4;
+                final int rgb = row[x];
+                row[x] = clamp(((rgb >> 16) & 0xFF) + n) << 16 | clamp(((rgb >> 8) & 0xFF) + n) << 8 | clamp((rgb & 0xFF) + n);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Clamp a value to a color component.
+     *
+     * @param value input a value
+     * @return the value between 0 and 255
+     */
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Generate the corpus into a folder. Existing images are kept, so a corpus
+     * is only drawn once.
+     *
+     * @param folder input a folder
+     * @param seed input the seed
+     * @return the generated or existing image files
+     * @throws IOException if an image cannot be written
+     */
+    public static List<File> generate(final Path folder, final long seed) throws IOException {
+        Files.createDirectories(folder);
+        final List<File> files = new ArrayList<>();
+        for (final SizeClass sizeClass : SizeClass.values()) {
+            BufferedImage image = null;
+            for (final String format : FORMATS) {
+                final File file = folder.resolve(getFileName(sizeClass, format)).toFile();
+                if (!file.exists()) {
+                    if (image == null) {
+                        image = draw(sizeClass.getMaxSide(), sizeClass.getMaxSide() * 3 / 4, seed + sizeClass.ordinal());
+                    }
+                    if (!ImageIO.write(image, format, file)) {
+                        throw new IOException("No writer for the format: ".concat(format));
+                    }
+                }
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Generate the corpus from the command line.
+     *
+     * @param args input the folder and an optional seed
+     * @throws IOException if an image cannot be written
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: SyntheticCorpus <folder> [seed]");
+            System.exit(2);
+        }
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        for (final File file : generate(Paths.get(args[0]), seed)) {
+            System.out.println(file.getAbsolutePath());
+        }
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private SyntheticCorpus() {
+
+    }
+}
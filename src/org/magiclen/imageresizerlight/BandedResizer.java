@@ -0,0 +1,614 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Shrink images which are too big to be decoded at once. The source image is
+ * decoded once, from the top to the bottom, into a destination which only
+ * keeps a few rows, and each row is downscaled by area averaging into the
+ * output image as soon as it is decoded, so the peak memory is bounded by
+ * the output size rather than the source size.
+ *
+ * Only images whose rows are decoded in order can be shrunk this way, which
+ * are baseline JPEG images and non-interlaced PNG images. Progressive JPEG
+ * images and interlaced PNG images are refined in passes over the whole
+ * image, so they have to be decoded at once.
+ *
+ * @author Magic Len
+ */
+public final class BandedResizer {
+
+    // -----Class Constant-----
+    /**
+     * The number of decoded rows which are kept at the same time.
+     */
+    private static final int RING_ROWS = 8;
+    /**
+     * The name of the native metadata format of JPEG images.
+     */
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    /**
+     * The name of the native metadata format of PNG images.
+     */
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    // -----Class Class-----
+    /**
+     * A data buffer of a whole image which only stores a ring of rows. The
+     * row y of the image is stored in the row y % rows of the ring, so it is
+     * valid until the reader has written as many rows after it.
+     */
+    private static final class RowRing extends DataBuffer {
+
+        /**
+         * The data of the ring.
+         */
+        private final DataBuffer rows;
+        /**
+         * The number of data elements of a row.
+         */
+        private final int stride;
+        /**
+         * The number of rows of the ring.
+         */
+        private final int ringRows;
+
+        /**
+         * Construct a ring.
+         *
+         * @param rows input the data of the ring
+         * @param stride input the number of data elements of a row
+         * @param ringRows input the number of rows of the ring
+         * @param size input the number of data elements of the whole image
+         */
+        private RowRing(final DataBuffer rows, final int stride, final int ringRows, final int size) {
+            super(rows.getDataType(), size, rows.getNumBanks());
+            this.rows = rows;
+            this.stride = stride;
+            this.ringRows = ringRows;
+        }
+
+        /**
+         * Map an index of the whole image into the ring.
+         *
+         * @param i input an index of the whole image
+         * @return the index in the ring
+         */
+        private int map(final int i) {
+            final int y = i / stride;
+            return (y % ringRows) * stride + (i - y * stride);
+        }
+
+        @Override
+        public int getElem(final int bank, final int i) {
+            return rows.getElem(bank, map(i));
+        }
+
+        @Override
+        public void setElem(final int bank, final int i, final int val) {
+            rows.setElem(bank, map(i), val);
+        }
+    }
+
+    /**
+     * Receive the rows of the source image from a reader, and shrink them
+     * into the output image.
+     */
+    private static final class RowShrinker implements IIOReadUpdateListener {
+
+        /**
+         * The image which the reader decodes into. Only a ring of its rows is
+         * stored.
+         */
+        private final BufferedImage destination;
+        /**
+         * The ring of rows, as an image whose height is the number of rows of
+         * the ring.
+         */
+        private final BufferedImage ring;
+        /**
+         * The number of rows of the ring.
+         */
+        private final int ringRows;
+        /**
+         * The output image.
+         */
+        private final BufferedImage output;
+        /**
+         * The height of the output image.
+         */
+        private final int outHeight;
+        /**
+         * The output column of each source column.
+         */
+        private final int[] columnIndex;
+        /**
+         * The weight of each source column in its output column. The rest
+         * goes to the next output column.
+         */
+        private final float[] columnWeight;
+        /**
+         * The horizontal scale.
+         */
+        private final double scaleX;
+        /**
+         * The vertical scale.
+         */
+        private final double scaleY;
+        /**
+         * A buffer for a row of output pixels.
+         */
+        private final int[] outputRow;
+        /**
+         * The horizontal sums of a source row.
+         */
+        private final float[] rowSum;
+        /**
+         * The accumulators of two output rows.
+         */
+        private final float[][] accumulators;
+        /**
+         * The accumulated vertical weights of two output rows.
+         */
+        private final double[] accumulatedWeights = new double[2];
+        /**
+         * A buffer for a row of source pixels.
+         */
+        private final int[] sourceRow;
+        /**
+         * The index of the next source row.
+         */
+        private int nextRow;
+        /**
+         * The index of the next output row to be written.
+         */
+        private int currentRow;
+        /**
+         * Whether the rows have been decoded out of order.
+         */
+        private boolean disordered;
+
+        /**
+         * Construct a shrinker.
+         *
+         * @param type input the type which the reader decodes into
+         * @param srcWidth input the width of the decoded source image
+         * @param srcHeight input the height of the decoded source image
+         * @param maxSideSize input the length of the max side of the output
+         * image
+         * @throws IOException if the type cannot be stored in a ring
+         */
+        private RowShrinker(final ImageTypeSpecifier type, final int srcWidth, final int srcHeight, final int maxSideSize) throws IOException {
+            ringRows = Math.min(RING_ROWS, srcHeight);
+            final SampleModel ringModel = type.getSampleModel(srcWidth, ringRows);
+            final int stride = getScanlineStride(ringModel);
+            final long size = (long) stride * srcHeight;
+            if (stride <= 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("The image cannot be decoded row by row.");
+            }
+            final ColorModel cm = type.getColorModel();
+            final DataBuffer rows = ringModel.createDataBuffer();
+            ring = new BufferedImage(cm, Raster.createWritableRaster(ringModel, rows, null), cm.isAlphaPremultiplied(), null);
+            destination = new BufferedImage(cm, Raster.createWritableRaster(type.getSampleModel(srcWidth, srcHeight), new RowRing(rows, stride, ringRows, (int) size), null), cm.isAlphaPremultiplied(), null);
+
+            final int[] outputSize = computeOutputSize(srcWidth, srcHeight, maxSideSize);
+            final int outWidth = outputSize[0];
+            outHeight = outputSize[1];
+
+            // each source column contributes to at most two output columns
+            scaleX = srcWidth * 1.0 / outWidth;
+            columnIndex = new int[srcWidth];
+            columnWeight = new float[srcWidth];
+            for (int x = 0; x < srcWidth; ++x) {
+                final int ox = Math.min((int) (x / scaleX), outWidth - 1);
+                final double end = (ox + 1) * scaleX;
+                columnIndex[x] = ox;
+                columnWeight[x] = ox == outWidth - 1 ? 1f : (float) Math.min(1.0, Math.max(0.0, end - x));
+            }
+            scaleY = srcHeight * 1.0 / outHeight;
+
+            output = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_RGB);
+            outputRow = new int[outWidth];
+            rowSum = new float[outWidth * 3];
+            accumulators = new float[][]{new float[outWidth * 3], new float[outWidth * 3]};
+            sourceRow = new int[srcWidth];
+        }
+
+        /**
+         * Shrink a decoded source row into the output image.
+         *
+         * @param y input the index of the source row
+         */
+        private void acceptRow(final int y) {
+            ring.getRGB(0, y % ringRows, sourceRow.length, 1, sourceRow, 0, sourceRow.length);
+
+            // horizontal pass, flattening transparent pixels onto white
+            Arrays.fill(rowSum, 0f);
+            for (int x = 0; x < sourceRow.length; ++x) {
+                final int argb = sourceRow[x];
+                final int a = argb >>> 24;
+                final float r = ((argb >> 16) & 0xFF) * a / 255f + (255 - a);
+                final float g = ((argb >> 8) & 0xFF) * a / 255f + (255 - a);
+                final float b = (argb & 0xFF) * a / 255f + (255 - a);
+                final int ox = columnIndex[x] * 3;
+                final float w0 = columnWeight[x];
+                rowSum[ox] += r * w0;
+                rowSum[ox + 1] += g * w0;
+                rowSum[ox + 2] += b * w0;
+                if (w0 < 1f && ox + 3 < rowSum.length) {
+                    final float w1 = 1f - w0;
+                    rowSum[ox + 3] += r * w1;
+                    rowSum[ox + 4] += g * w1;
+                    rowSum[ox + 5] += b * w1;
+                }
+            }
+
+            // vertical pass, each source row contributes to at most two output rows
+            final int oy = Math.min((int) (y / scaleY), outHeight - 1);
+            final float w0 = oy == outHeight - 1 ? 1f : (float) Math.min(1.0, Math.max(0.0, (oy + 1) * scaleY - y));
+            while (currentRow < oy) {
+                writeRow(output, currentRow, accumulators[currentRow & 1], accumulatedWeights[currentRow & 1], scaleX, outputRow);
+                accumulatedWeights[currentRow & 1] = 0;
+                ++currentRow;
+            }
+            accumulate(accumulators[oy & 1], rowSum, w0);
+            accumulatedWeights[oy & 1] += w0;
+            if (w0 < 1f && oy + 1 < outHeight) {
+                accumulate(accumulators[(oy + 1) & 1], rowSum, 1f - w0);
+                accumulatedWeights[(oy + 1) & 1] += 1f - w0;
+            }
+        }
+
+        /**
+         * Write the remaining output rows.
+         *
+         * @return the output image
+         * @throws IOException if the rows have not been decoded once each,
+         * from the top to the bottom
+         */
+        private BufferedImage finish() throws IOException {
+            if (disordered || nextRow != destination.getHeight()) {
+                throw new IOException("The image was not decoded row by row.");
+            }
+            while (currentRow < outHeight) {
+                writeRow(output, currentRow, accumulators[currentRow & 1], accumulatedWeights[currentRow & 1], scaleX, outputRow);
+                accumulatedWeights[currentRow & 1] = 0;
+                ++currentRow;
+            }
+            return output;
+        }
+
+        @Override
+        public void imageUpdate(final ImageReader source, final BufferedImage theImage, final int minX, final int minY, final int width, final int height, final int periodX, final int periodY, final int[] bands) {
+            // the reader is not told about an exception here, so the rows are checked after it finishes
+            for (int y = minY; y < minY + height && !disordered; y += Math.max(1, periodY)) {
+                if (y != nextRow) {
+                    disordered = true;
+                } else {
+                    acceptRow(y);
+                    ++nextRow;
+                }
+            }
+        }
+
+        @Override
+        public void passStarted(final ImageReader source, final BufferedImage theImage, final int pass, final int minPass, final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+            //do nothing
+        }
+
+        @Override
+        public void passComplete(final ImageReader source, final BufferedImage theImage) {
+            //do nothing
+        }
+
+        @Override
+        public void thumbnailPassStarted(final ImageReader source, final BufferedImage theThumbnail, final int pass, final int minPass, final int maxPass, final int minX, final int minY, final int periodX, final int periodY, final int[] bands) {
+            //do nothing
+        }
+
+        @Override
+        public void thumbnailUpdate(final ImageReader source, final BufferedImage theThumbnail, final int minX, final int minY, final int width, final int height, final int periodX, final int periodY, final int[] bands) {
+            //do nothing
+        }
+
+        @Override
+        public void thumbnailPassComplete(final ImageReader source, final BufferedImage theThumbnail) {
+            //do nothing
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Compute the size of the output image. It follows ImageResize.resize.
+     *
+     * @param width input the width of the source image
+     * @param height input the height of the source image
+     * @param maxSideSize input the length of the max side of the output image
+     * @return the width and the height of the output image
+     */
+    public static int[] computeOutputSize(final int width, final int height, final int maxSideSize) {
+        if (width >= height) {
+            return new int[]{maxSideSize, Math.max(1, Math.round(height * 1f * maxSideSize / width))};
+        } else {
+            return new int[]{Math.max(1, Math.round(width * 1f * maxSideSize / height)), maxSideSize};
+        }
+    }
+
+    /**
+     * Check whether an image can be shrunk by this class. Images which are
+     * going to be enlarged cannot.
+     *
+     * @param width input the width of the source image
+     * @param height input the height of the source image
+     * @param subsampling input the subsampling used to decode the image
+     * @param maxSideSize input the length of the max side of the output image
+     * @return true if the image can be shrunk by this class
+     */
+    public static boolean isApplicable(final int width, final int height, final int subsampling, final int maxSideSize) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        return Math.max((width + subsampling - 1) / subsampling, (height + subsampling - 1) / subsampling) >= maxSideSize;
+    }
+
+    /**
+     * Check whether the rows of an image file are decoded in order, once
+     * each, so that it can be shrunk by this class.
+     *
+     * @param file input an image file
+     * @return true if the image can be decoded row by row
+     */
+    public static boolean isStreamable(final File file) {
+        try (final ImageInputStream iis = new ChannelImageInputStream(file)) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return false;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, false);
+                return isStreamable(reader);
+            } finally {
+                reader.dispose();
+            }
+        } catch (final IOException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the rows of the first image of a reader are decoded in
+     * order, once each.
+     *
+     * @param reader input a reader whose input has been set, without
+     * ignoring metadata
+     * @return true if the image can be decoded row by row
+     * @throws IOException if the metadata cannot be read
+     */
+    private static boolean isStreamable(final ImageReader reader) throws IOException {
+        final IIOMetadata metadata = reader.getImageMetadata(0);
+        if (metadata == null) {
+            return false;
+        }
+        final String format = metadata.getNativeMetadataFormatName();
+        if (JPEG_METADATA_FORMAT.equals(format)) {
+            // the process of a progressive JPEG image is 2
+            final String process = getAttribute(findNode(metadata.getAsTree(format), "sof"), "process");
+            return "0".equals(process) || "1".equals(process);
+        } else if (PNG_METADATA_FORMAT.equals(format)) {
+            return "none".equals(getAttribute(findNode(metadata.getAsTree(format), "IHDR"), "interlaceMethod"));
+        }
+        return false;
+    }
+
+    /**
+     * Find the first node of a name in a tree, depth first.
+     *
+     * @param node input the root of the tree
+     * @param name input the name of the node
+     * @return the node, or null if it is not found
+     */
+    private static Node findNode(final Node node, final String name) {
+        if (name.equals(node.getNodeName())) {
+            return node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final Node found = findNode(child, name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get an attribute of a node.
+     *
+     * @param node input a node, or null
+     * @param name input the name of the attribute
+     * @return the value of the attribute, or null if it does not exist
+     */
+    private static String getAttribute(final Node node, final String name) {
+        if (node == null || node.getAttributes() == null) {
+            return null;
+        }
+        final Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    /**
+     * Get the number of data elements of a row of a sample model.
+     *
+     * @param model input a sample model
+     * @return the number of data elements, or -1 if it is unknown
+     */
+    private static int getScanlineStride(final SampleModel model) {
+        if (model instanceof ComponentSampleModel) {
+            return ((ComponentSampleModel) model).getScanlineStride();
+        } else if (model instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+        } else if (model instanceof MultiPixelPackedSampleModel) {
+            return ((MultiPixelPackedSampleModel) model).getScanlineStride();
+        }
+        return -1;
+    }
+
+    /**
+     * Shrink an image file row by row.
+     *
+     * @param file input an image file
+     * @param maxSideSize input the length of the max side of the output image
+     * @return the output image, which is of the RGB type
+     * @throws IOException if the image cannot be decoded, or it is not
+     * applicable
+     */
+    public static BufferedImage resize(final File file, final int maxSideSize) throws IOException {
+        try (final ImageInputStream iis = new ChannelImageInputStream(file)) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for the image: ".concat(file.getAbsolutePath()));
+            }
+            final ImageReader reader = readers.next();
+            try {
+                // the metadata tells whether the rows are decoded in order
+                reader.setInput(iis, false, false);
+                return resize(reader, maxSideSize);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Shrink the first image of a reader row by row.
+     *
+     * @param reader input a reader whose input has been set
+     * @param maxSideSize input the length of the max side of the output image
+     * @return the output image, which is of the RGB type
+     * @throws IOException if the image cannot be decoded, or it is not
+     * applicable
+     */
+    private static BufferedImage resize(final ImageReader reader, final int maxSideSize) throws IOException {
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final int subsampling = ImageDecoder.computeSubsampling(width, height, maxSideSize);
+        if (!isApplicable(width, height, subsampling, maxSideSize) || !isStreamable(reader)) {
+            throw new IOException("The image cannot be shrunk row by row.");
+        }
+        // the reader decodes into its first type unless it is told otherwise
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types == null || !types.hasNext()) {
+            throw new IOException("The image cannot be shrunk row by row.");
+        }
+        // the size of the source after subsampling
+        final int srcWidth = (width + subsampling - 1) / subsampling;
+        final int srcHeight = (height + subsampling - 1) / subsampling;
+        final RowShrinker shrinker = new RowShrinker(types.next(), srcWidth, srcHeight, maxSideSize);
+
+        final ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        param.setDestination(shrinker.destination);
+        reader.addIIOReadUpdateListener(shrinker);
+        try {
+            reader.read(0, param);
+        } finally {
+            reader.removeIIOReadUpdateListener(shrinker);
+        }
+        return shrinker.finish();
+    }
+
+    /**
+     * Add a weighted row to an accumulator.
+     *
+     * @param accumulator input an accumulator
+     * @param row input a row
+     * @param weight input the weight
+     */
+    private static void accumulate(final float[] accumulator, final float[] row, final float weight) {
+        for (int i = 0; i < row.length; ++i) {
+            accumulator[i] += row[i] * weight;
+        }
+    }
+
+    /**
+     * Write an accumulated row into the output image and clear the
+     * accumulator.
+     *
+     * @param output input the output image
+     * @param y input the index of the row
+     * @param accumulator input the accumulator of the row
+     * @param rowWeight input the accumulated vertical weight of the row
+     * @param scaleX input the horizontal scale
+     * @param outputRow input a buffer for a row of pixels
+     */
+    private static void writeRow(final BufferedImage output, final int y, final float[] accumulator, final double rowWeight, final double scaleX, final int[] outputRow) {
+        final double weight = rowWeight * scaleX;
+        final float factor = weight > 0 ? (float) (1.0 / weight) : 0f;
+        for (int x = 0, i = 0; x < outputRow.length; ++x, i += 3) {
+            final int r = clamp(Math.round(accumulator[i] * factor));
+            final int g = clamp(Math.round(accumulator[i + 1] * factor));
+            final int b = clamp(Math.round(accumulator[i + 2] * factor));
+            outputRow[x] = (r << 16) | (g << 8) | b;
+            accumulator[i] = 0;
+            accumulator[i + 1] = 0;
+            accumulator[i + 2] = 0;
+        }
+        output.setRGB(0, y, outputRow.length, 1, outputRow, 0, outputRow.length);
+    }
+
+    /**
+     * Clamp a value to a color component.
+     *
+     * @param value input a value
+     * @return the value between 0 and 255
+     */
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private BandedResizer() {
+
+    }
+}
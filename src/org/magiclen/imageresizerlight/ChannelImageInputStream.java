@@ -0,0 +1,184 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An image input stream which reads a file through a file channel in large
+ * blocks. Image readers ask for a few bytes at a time, and a file image input
+ * stream turns every one of those requests into a system call, which is slow
+ * on fast arrays and very slow on network mounts. This stream reads a large
+ * window of the file at once with positional reads, serves the requests from
+ * the window, and reads big requests directly into their arrays.
+ *
+ * @author Magic Len
+ */
+public final class ChannelImageInputStream extends ImageInputStreamImpl {
+
+    // -----Class Constant-----
+    /**
+     * The default size of the window, in bytes.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+
+    // -----Object Constant-----
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel channel;
+    /**
+     * The length of the file.
+     */
+    private final long length;
+    /**
+     * The window. Its limit is the number of valid bytes.
+     */
+    private final ByteBuffer window;
+
+    // -----Object Variable-----
+    /**
+     * The position in the file of the first byte of the window.
+     */
+    private long windowPos;
+
+    // -----Constructor-----
+    /**
+     * Open a file with a window of its own. The window is no bigger than the
+     * file.
+     *
+     * @param file input a file
+     * @throws IOException if the file cannot be opened
+     */
+    public ChannelImageInputStream(final File file) throws IOException {
+        this(file, null);
+    }
+
+    /**
+     * Open a file with a window which is reused, such as the direct buffer of
+     * a codec context.
+     *
+     * @param file input a file
+     * @param window input a buffer to be the window, or null to allocate one
+     * which is no bigger than the file. Its content is replaced
+     * @throws IOException if the file cannot be opened
+     */
+    public ChannelImageInputStream(final File file, final ByteBuffer window) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            length = channel.size();
+        } catch (final IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        this.window = window != null ? window : ByteBuffer.allocate((int) Math.max(1, Math.min(DEFAULT_WINDOW_SIZE, length)));
+        this.window.clear();
+        this.window.limit(0);
+    }
+
+    // -----Object Method-----
+    /**
+     * Make the window cover the current position.
+     *
+     * @return the number of bytes from the current position to the end of the
+     * window, or 0 at the end of the file
+     * @throws IOException if the file cannot be read
+     */
+    private int fill() throws IOException {
+        final long offset = streamPos - windowPos;
+        if (offset >= 0 && offset < window.limit()) {
+            return (int) (window.limit() - offset);
+        }
+        if (streamPos >= length) {
+            return 0;
+        }
+        window.clear();
+        while (window.hasRemaining()) {
+            if (channel.read(window, streamPos + window.position()) < 0) {
+                break;
+            }
+        }
+        window.flip();
+        windowPos = streamPos;
+        return window.limit();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (fill() == 0) {
+            return -1;
+        }
+        final int b = window.get((int) (streamPos - windowPos)) & 0xFF;
+        ++streamPos;
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        // some readers take a short read as the end of their data, so the request is filled as a file stream does
+        int count = 0;
+        while (count < len) {
+            final long offset = streamPos - windowPos;
+            final int n;
+            if (len - count >= window.capacity() && (offset < 0 || offset >= window.limit())) {
+                // a big request outside the window is read directly, not through the window
+                n = channel.read(ByteBuffer.wrap(b, off + count, len - count), streamPos);
+                if (n < 0) {
+                    break;
+                }
+            } else {
+                final int available = fill();
+                if (available == 0) {
+                    break;
+                }
+                n = Math.min(len - count, available);
+                window.position((int) (streamPos - windowPos));
+                window.get(b, off + count, n);
+            }
+            streamPos += n;
+            count += n;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        channel.close();
+    }
+}
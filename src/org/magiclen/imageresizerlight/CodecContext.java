@@ -0,0 +1,283 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The codecs and buffers which a worker reuses for every image of a job, so
+ * the hot path does not allocate them again and again. Image readers are kept
+ * per format, one JPEG writer, two encode buffers and one direct read window
+ * are kept, and the arrays of decoded rasters are pooled per image type in
+ * buckets of sizes. A context must only be used by one thread at a time.
+ *
+ * @author Magic Len
+ */
+public final class CodecContext implements Closeable {
+
+    // -----Class Constant-----
+    /**
+     * The capacities of pooled rasters are rounded up to multiples of this
+     * bucket of samples, so images of similar sizes share a raster.
+     */
+    private static final int RASTER_BUCKET = 1 << 20;
+    /**
+     * The maximum number of pixels of a pooled raster. Bigger images are
+     * decoded into rasters of their own, because keeping them would hold too
+     * much memory between images.
+     */
+    private static final long MAX_POOLED_PIXELS = 16L << 20;
+    /**
+     * The key of the RGB raster which images are converted into before they
+     * are encoded. It is not the key of any image type.
+     */
+    private static final int RGB_RASTER_KEY = -1;
+
+    // -----Object Constant-----
+    /**
+     * The image readers, by their service providers.
+     */
+    private final HashMap<ImageReaderSpi, ImageReader> readers = new HashMap<>();
+    /**
+     * The arrays of the pooled rasters, by the image types which are decoded
+     * into them, and by RGB_RASTER_KEY for the converted RGB raster. They are
+     * softly referenced, so they are given back when the heap runs short.
+     */
+    private final HashMap<Integer, SoftReference<Object>> rasters = new HashMap<>();
+    /**
+     * The encode buffers.
+     */
+    private final ImageEncoder.EncodeBuffer[] buffers = {new ImageEncoder.EncodeBuffer(), new ImageEncoder.EncodeBuffer()};
+
+    // -----Object Variable-----
+    /**
+     * The JPEG writer, or null if it has not been created.
+     */
+    private ImageWriter jpegWriter;
+    /**
+     * The parameters of the JPEG writer.
+     */
+    private ImageWriteParam jpegWriteParam;
+    /**
+     * The direct buffer which files are read through, or null if it has not
+     * been allocated.
+     */
+    private ByteBuffer readWindow;
+
+    // -----Object Method-----
+    /**
+     * Get an image reader which can decode a stream. Readers are created once
+     * per format and reset after every use.
+     *
+     * @param input input an image stream
+     * @return an image reader, or null if no reader can decode the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public ImageReader getReader(final ImageInputStream input) throws IOException {
+        // the same lookup as ImageIO.getImageReaders, without creating a reader each time
+        final Iterator<ImageReaderSpi> spis = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (spis.hasNext()) {
+            final ImageReaderSpi spi = spis.next();
+            if (spi.canDecodeInput(input)) {
+                ImageReader reader = readers.get(spi);
+                if (reader == null) {
+                    reader = spi.createReaderInstance();
+                    readers.put(spi, reader);
+                }
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the JPEG writer. It is reset before it is returned.
+     *
+     * @return the JPEG writer
+     */
+    public ImageWriter getJPEGWriter() {
+        if (jpegWriter == null) {
+            jpegWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+            jpegWriteParam = jpegWriter.getDefaultWriteParam();
+            jpegWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        } else {
+            jpegWriter.reset();
+        }
+        return jpegWriter;
+    }
+
+    /**
+     * Get the parameters of the JPEG writer. The compression mode is
+     * explicit, and the caller sets the quality and the progressive mode.
+     *
+     * @return the parameters
+     */
+    public ImageWriteParam getJPEGWriteParam() {
+        if (jpegWriter == null) {
+            getJPEGWriter();
+        }
+        return jpegWriteParam;
+    }
+
+    /**
+     * Get an encode buffer.
+     *
+     * @param index input the index of the buffer, 0 or 1
+     * @return the encode buffer
+     */
+    public ImageEncoder.EncodeBuffer getBuffer(final int index) {
+        return buffers[index];
+    }
+
+    /**
+     * Get the window which channel image input streams read files through. It
+     * is a direct buffer, so the channel reads into it without copying.
+     *
+     * @return the window
+     */
+    public ByteBuffer getReadWindow() {
+        if (readWindow == null) {
+            readWindow = ByteBuffer.allocateDirect(ChannelImageInputStream.DEFAULT_WINDOW_SIZE);
+        }
+        return readWindow;
+    }
+
+    /**
+     * Get an image on a pooled raster, which an image can be decoded into.
+     *
+     * @param type input the type of the image. It must be TYPE_3BYTE_BGR,
+     * TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY, TYPE_INT_RGB or TYPE_INT_ARGB
+     * @param width input the width of the image
+     * @param height input the height of the image
+     * @return an image of exactly the given size, or null if it is too big to
+     * be pooled. Its pixels are not cleared
+     */
+    public BufferedImage getRaster(final int type, final int width, final int height) {
+        return pool(rasters, type, type, width, height);
+    }
+
+    /**
+     * Get an RGB image on a pooled raster, which an image can be converted
+     * into before it is encoded. Its raster is never the raster of a decoded
+     * image.
+     *
+     * @param width input the width of the image
+     * @param height input the height of the image
+     * @return an image of TYPE_3BYTE_BGR of exactly the given size, or null
+     * if it is too big to be pooled. Its pixels are not cleared
+     */
+    public BufferedImage getRGBRaster(final int width, final int height) {
+        return pool(rasters, RGB_RASTER_KEY, BufferedImage.TYPE_3BYTE_BGR, width, height);
+    }
+
+    /**
+     * Create an image of exactly the given size on a pooled array, which is
+     * grown in buckets when it is too small. Images of exactly their own
+     * sizes let the readers take their fast paths, which they do not for
+     * bigger destinations.
+     *
+     * @param pool input the pooled arrays
+     * @param key input the key of the array in the pool
+     * @param type input the type of the image
+     * @param width input the width of the image
+     * @param height input the height of the image
+     * @return the image, or null if it is too big to be pooled
+     */
+    private static BufferedImage pool(final HashMap<Integer, SoftReference<Object>> pool, final int key, final int type, final int width, final int height) {
+        final long pixels = (long) width * height;
+        if (pixels > MAX_POOLED_PIXELS) {
+            return null;
+        }
+        final int samplesPerPixel;
+        final boolean packed;
+        switch (type) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                samplesPerPixel = 3;
+                packed = false;
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                samplesPerPixel = 4;
+                packed = false;
+                break;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                samplesPerPixel = 1;
+                packed = false;
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                samplesPerPixel = 1;
+                packed = true;
+                break;
+            default:
+                return null;
+        }
+        final int samples = (int) (pixels * samplesPerPixel);
+        final SoftReference<Object> reference = pool.get(key);
+        Object array = reference == null ? null : reference.get();
+        if (array == null || (packed ? ((int[]) array).length : ((byte[]) array).length) < samples) {
+            final int capacity = (int) Math.min(MAX_POOLED_PIXELS * samplesPerPixel, ((long) samples + RASTER_BUCKET - 1) / RASTER_BUCKET * RASTER_BUCKET);
+            array = packed ? new int[capacity] : new byte[capacity];
+            pool.put(key, new SoftReference<>(array));
+        }
+        final DataBuffer dataBuffer = packed ? new DataBufferInt((int[]) array, samples) : new DataBufferByte((byte[]) array, samples);
+        final BufferedImage template = new BufferedImage(1, 1, type);
+        final ColorModel colorModel = template.getColorModel();
+        final WritableRaster raster = Raster.createWritableRaster(template.getSampleModel().createCompatibleSampleModel(width, height), dataBuffer, null);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Dispose the codecs and drop the pooled rasters and buffers.
+     */
+    @Override
+    public void close() {
+        for (final ImageReader reader : readers.values()) {
+            reader.dispose();
+        }
+        readers.clear();
+        if (jpegWriter != null) {
+            jpegWriter.dispose();
+            jpegWriter = null;
+            jpegWriteParam = null;
+        }
+        rasters.clear();
+        readWindow = null;
+        for (final ImageEncoder.EncodeBuffer buffer : buffers) {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,1301 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The conversion engine of Image Resizer Light. It converts images with
+ * several workers at the same time.
+ *
+ * @author Magic Len
+ */
+public class ConversionEngine {
+
+    // -----Class Constant-----
+    /**
+     * The default number of workers. It is the number of available processors.
+     */
+    public static final int DEFAULT_WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /**
+     * The capacity of the queue between the scanner and the workers, per worker.
+     */
+    private static final int QUEUE_CAPACITY_PER_WORKER = 64;
+    /**
+     * How long the workers and the scanner wait for the queue before checking
+     * whether they need to stop.
+     */
+    private static final long POLL_TIMEOUT_MILLISECONDS = 100;
+    /**
+     * How often the manifest is saved while the workers are busy, in
+     * milliseconds, so a killed process loses at most this much work of the
+     * incremental mode. It is also saved whenever the queue becomes empty.
+     */
+    private static final long MANIFEST_SAVE_INTERVAL_MILLISECONDS = 5000;
+    /**
+     * The marker which means the scan has finished.
+     */
+    private static final ImageTask END_OF_QUEUE = new ImageTask(null, null, 0, 0);
+
+    // -----Class Interface-----
+    /**
+     * Receive the progress of a conversion. It is called by worker threads.
+     */
+    public static interface ProgressListener {
+
+        /**
+         * Called after a file has been handled, and once more when the scan of
+         * the source folder finishes.
+         *
+         * @param doneCount the number of handled files
+         * @param successCount the number of successfully converted files
+         * @param discoveredCount the number of image files discovered so far
+         * @param scanFinished whether the scan of the source folder has
+         * finished. If it has, discoveredCount is the number of all files
+         */
+        public void onProgress(final int doneCount, final int successCount, final int discoveredCount, final boolean scanFinished);
+    }
+
+    /**
+     * Take the encoded outputs of an image, such as by writing them into
+     * files.
+     */
+    static interface OutputSink {
+
+        /**
+         * Take the encoded output of an output variant.
+         *
+         * @param index the index of the output variant
+         * @param data the encoded output. It is only valid during the call
+         * @throws IOException if the output cannot be taken
+         */
+        public void accept(final int index, final ImageEncoder.EncodeBuffer data) throws IOException;
+    }
+
+    // -----Class Class-----
+    /**
+     * An image file which is waiting for the workers.
+     */
+    private static final class ImageTask {
+
+        /**
+         * The image file.
+         */
+        private final Path file;
+        /**
+         * The path of the image file, relative to the source folder.
+         */
+        private final String relativePath;
+        /**
+         * The size of the image file.
+         */
+        private final long size;
+        /**
+         * The last modified time of the image file, in milliseconds.
+         */
+        private final long lastModified;
+
+        /**
+         * Construct a task.
+         *
+         * @param file input the image file
+         * @param relativePath input the path of the image file, relative to
+         * the source folder
+         * @param size input the size of the image file
+         * @param lastModified input the last modified time of the image file
+         */
+        private ImageTask(final Path file, final String relativePath, final long size, final long lastModified) {
+            this.file = file;
+            this.relativePath = relativePath;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    // -----Object Constant-----
+    /**
+     * The number of workers.
+     */
+    private final int workerCount;
+    /**
+     * The number of handled files.
+     */
+    private final AtomicInteger doneCount = new AtomicInteger();
+    /**
+     * The number of successfully converted files.
+     */
+    private final AtomicInteger successCount = new AtomicInteger();
+    /**
+     * The number of image files discovered so far.
+     */
+    private final AtomicInteger discoveredCount = new AtomicInteger();
+    /**
+     * The number of image files skipped because their outputs are up to date.
+     */
+    private final AtomicInteger skippedCount = new AtomicInteger();
+    /**
+     * The number of image files whose outputs are linked to the outputs of
+     * byte-identical files.
+     */
+    private final AtomicInteger duplicateCount = new AtomicInteger();
+    /**
+     * The error which stopped the current or last conversion, such as an
+     * OutOfMemoryError in a worker or outputs which cannot be flushed to the
+     * storage device, or null if there is none.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // -----Object Variable-----
+    /**
+     * Whether the workers need to stop.
+     */
+    private volatile boolean stopping;
+    /**
+     * Whether the scan of the source folder has finished.
+     */
+    private volatile boolean scanFinished;
+    /**
+     * Whether to skip image files whose outputs are up to date.
+     */
+    private boolean incremental;
+    /**
+     * The budget of memory for images which are being converted, in bytes.
+     */
+    private long memoryBudget = MemoryBudget.DEFAULT_BUDGET;
+    /**
+     * Whether to convert byte-identical source files only once.
+     */
+    private boolean deduplicate;
+    /**
+     * Whether to resume the stopped job in the destination folder.
+     */
+    private boolean resume;
+    /**
+     * Whether to write reports into the destination folder.
+     */
+    private boolean reportEnabled;
+    /**
+     * Whether to flush output files to the storage device in one batch.
+     */
+    private boolean syncOutputs;
+    /**
+     * How long a file in the watch mode needs to stay unchanged before it is
+     * converted, in milliseconds.
+     */
+    private long quietPeriod = FolderWatcher.DEFAULT_QUIET_PERIOD_MILLISECONDS;
+    /**
+     * The shard of the job which this engine converts, or null if it converts
+     * all image files.
+     */
+    private Shard shard;
+    /**
+     * The statistics of the current or last conversion.
+     */
+    private volatile ConversionStatistics statistics;
+    /**
+     * The error which the summary or the reports of the last conversion
+     * could not be written with, or null if there is none.
+     */
+    private volatile IOException reportFailure;
+
+    // -----Constructor-----
+    /**
+     * Construct an engine which uses the default number of workers.
+     */
+    public ConversionEngine() {
+        this(DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * Construct an engine.
+     *
+     * @param workerCount input the number of workers
+     */
+    public ConversionEngine(final int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("The number of workers must be bigger than zero.");
+        }
+        this.workerCount = workerCount;
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the number of workers.
+     *
+     * @return the number of workers
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Get the number of handled files.
+     *
+     * @return the number of handled files
+     */
+    public int getDoneCount() {
+        return doneCount.get();
+    }
+
+    /**
+     * Get the number of successfully converted files.
+     *
+     * @return the number of successfully converted files
+     */
+    public int getSuccessCount() {
+        return successCount.get();
+    }
+
+    /**
+     * Get the number of image files discovered so far.
+     *
+     * @return the number of image files discovered so far
+     */
+    public int getDiscoveredCount() {
+        return discoveredCount.get();
+    }
+
+    /**
+     * Get the number of image files skipped because their outputs are up to
+     * date. Skipped files are also counted as done and successful.
+     *
+     * @return the number of skipped image files
+     */
+    public int getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Get the number of image files whose outputs are linked to the outputs
+     * of byte-identical files. They are also counted as done and successful.
+     *
+     * @return the number of duplicate image files
+     */
+    public int getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * Set whether to convert byte-identical source files only once. Files
+     * are compared by their sizes first and then by their digests. The
+     * outputs of a duplicate file are hard links to the outputs of the first
+     * file with the same content, or copies where links are not supported.
+     *
+     * @param deduplicate whether to deduplicate source files
+     */
+    public void setDeduplicate(final boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Check whether to convert byte-identical source files only once.
+     *
+     * @return true if source files are deduplicated
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Set whether to resume the stopped job in the destination folder. Every
+     * conversion keeps a journal of discovered and completed image files in
+     * the destination folder until it finishes. A resumed conversion skips
+     * the completed files without checking their outputs, and does not scan
+     * the source folder again if the previous scan had finished. If there is
+     * no stopped job with the same source folder and settings, a new job is
+     * started.
+     *
+     * @param resume whether to resume the stopped job
+     */
+    public void setResume(final boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Check whether to resume the stopped job in the destination folder.
+     *
+     * @return true if the stopped job is resumed
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Set whether to skip image files whose outputs are up to date. In the
+     * incremental mode, a manifest of converted images is kept in the
+     * destination folder.
+     *
+     * @param incremental whether to use the incremental mode
+     */
+    public void setIncremental(final boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Check whether to skip image files whose outputs are up to date.
+     *
+     * @return true if the incremental mode is used
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Set the budget of memory for images which are being converted. Workers
+     * estimate the memory needed by each image from its header and wait while
+     * the budget is used up. An image which needs more memory than the whole
+     * budget is converted alone.
+     *
+     * @param memoryBudget input the budget, in bytes
+     */
+    public void setMemoryBudget(final long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("The budget must be bigger than zero.");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Get the budget of memory for images which are being converted.
+     *
+     * @return the budget, in bytes
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Set how long a file in the watch mode needs to stay unchanged before it
+     * is converted, so files which are still being written or copied are not
+     * read too early.
+     *
+     * @param quietPeriod input the quiet period, in milliseconds
+     */
+    public void setQuietPeriod(final long quietPeriod) {
+        if (quietPeriod < 0) {
+            throw new IllegalArgumentException("The quiet period cannot be negative.");
+        }
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Get how long a file in the watch mode needs to stay unchanged before it
+     * is converted.
+     *
+     * @return the quiet period, in milliseconds
+     */
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * Set the shard of the job which this engine converts. Only the image
+     * files of the shard are discovered, and the shard keeps its own journal
+     * and manifest in the destination folder, so several processes can
+     * convert the shards of one job into the same destination folder at the
+     * same time. When a conversion finishes, the summary of the shard is
+     * written into the destination folder instead of the reports, to be
+     * merged with the summaries of the other shards.
+     *
+     * @param shard input the shard, or null to convert all image files
+     */
+    public void setShard(final Shard shard) {
+        this.shard = shard;
+    }
+
+    /**
+     * Get the shard of the job which this engine converts.
+     *
+     * @return the shard, or null if all image files are converted
+     */
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * Set whether to write JSON and CSV reports of the statistics into the
+     * destination folder when a conversion finishes.
+     *
+     * @param reportEnabled whether to write reports
+     */
+    public void setReportEnabled(final boolean reportEnabled) {
+        this.reportEnabled = reportEnabled;
+    }
+
+    /**
+     * Check whether to write reports into the destination folder.
+     *
+     * @return true if reports are written
+     */
+    public boolean isReportEnabled() {
+        return reportEnabled;
+    }
+
+    /**
+     * Set whether to flush output files to the storage device. Output files
+     * are not flushed one by one; they are flushed in one batch when a
+     * conversion finishes, or whenever the manifest is saved in the watch
+     * mode. Until then, a crash of the system can lose outputs which the
+     * journal has recorded as done.
+     *
+     * @param syncOutputs whether to flush output files
+     */
+    public void setSyncOutputs(final boolean syncOutputs) {
+        this.syncOutputs = syncOutputs;
+    }
+
+    /**
+     * Check whether to flush output files to the storage device.
+     *
+     * @return true if output files are flushed
+     */
+    public boolean isSyncOutputs() {
+        return syncOutputs;
+    }
+
+    /**
+     * Get the statistics of the current or last conversion. They are also
+     * exposed through JMX.
+     *
+     * @return the statistics, or null if nothing has been converted
+     */
+    public ConversionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Check whether the scan of the source folder has finished.
+     *
+     * @return true if the scan has finished
+     */
+    public boolean isScanFinished() {
+        return scanFinished;
+    }
+
+    /**
+     * Ask the workers to stop. Files which are being converted will be
+     * finished.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Check whether the workers have been asked to stop.
+     *
+     * @return true if the workers need to stop
+     */
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Get the error which stopped the current or last conversion. A worker or
+     * the scanner which meets an error that is not about a single image,
+     * such as an OutOfMemoryError, stops the whole conversion, and so do
+     * outputs or a manifest which cannot be flushed or saved. The journal is
+     * kept, so the stopped job can be resumed.
+     *
+     * @return the error, or null if there is none
+     */
+    public Throwable getFailure() {
+        return failure.get();
+    }
+
+    /**
+     * Get the error which the summary of the shard or the reports of the last
+     * conversion could not be written with.
+     *
+     * @return the error, or null if they have been written or they are not
+     * enabled
+     */
+    public IOException getReportFailure() {
+        return reportFailure;
+    }
+
+    /**
+     * Record an error which the conversion cannot go on after, such as an
+     * error in a worker or the scanner, or outputs or a manifest which cannot
+     * be made durable, and ask the workers and the scanner to stop. Only the
+     * first error is kept.
+     *
+     * @param ex input the error
+     */
+    private void fail(final Throwable ex) {
+        failure.compareAndSet(null, ex);
+        stopping = true;
+    }
+
+    /**
+     * Convert images in a folder. The folder is scanned by other threads
+     * which feed image files to the workers through a bounded queue, so the
+     * conversion starts before the scan finishes. This method blocks until all
+     * workers finish.
+     *
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders
+     * @param destination input the destination folder
+     * @param settings input the settings of the conversion
+     * @param listener input a listener to receive the progress, or null
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void convert(final File source, final boolean recursive, final File destination, final ConversionSettings settings, final ProgressListener listener) throws InterruptedException {
+        convert(source, recursive, destination, settings, listener, null);
+    }
+
+    /**
+     * Convert images in a folder, and then keep watching the folder and
+     * convert image files which are created or modified, until the engine is
+     * asked to stop. The workers are kept warm between files. A manifest is
+     * kept in the destination folder as in the incremental mode, so the
+     * initial scan skips images whose outputs are up to date, and files are
+     * never converted again unless they change. This method blocks until the
+     * engine is asked to stop.
+     *
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders, including the ones
+     * which are created later
+     * @param destination input the destination folder. It is not watched
+     * even if it is in the source folder
+     * @param settings input the settings of the conversion
+     * @param listener input a listener to receive the progress, or null
+     * @throws IOException if the watch service cannot be created. A folder
+     * which cannot be watched stops the engine as a failure
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public void watch(final File source, final boolean recursive, final File destination, final ConversionSettings settings, final ProgressListener listener) throws IOException, InterruptedException {
+        final Path sourcePath = source.toPath().toAbsolutePath();
+        final Path destinationPath = destination.toPath().toAbsolutePath();
+        if (sourcePath.startsWith(destinationPath)) {
+            throw new IllegalArgumentException("The destination folder cannot contain the source folder in the watch mode.");
+        }
+        // folders are watched while the initial scan walks them, so no file created during the scan is missed
+        try (final FolderWatcher watcher = new FolderWatcher(sourcePath, recursive, destinationPath, quietPeriod)) {
+            convert(source, recursive, destination, settings, listener, watcher);
+        }
+    }
+
+    /**
+     * Convert images in a folder, and keep watching it if a watcher is given.
+     *
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders
+     * @param destination input the destination folder
+     * @param settings input the settings of the conversion
+     * @param listener input a listener to receive the progress, or null
+     * @param watcher input a watcher of the source folder, or null
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    private void convert(final File source, final boolean recursive, final File destination, final ConversionSettings settings, final ProgressListener listener, final FolderWatcher watcher) throws InterruptedException {
+        stopping = false;
+        scanFinished = false;
+        failure.set(null);
+        reportFailure = null;
+        doneCount.set(0);
+        successCount.set(0);
+        discoveredCount.set(0);
+        skippedCount.set(0);
+        duplicateCount.set(0);
+        final ConversionStatistics statistics = new ConversionStatistics(this);
+        this.statistics = statistics;
+        statistics.register();
+
+        final Path sourcePath = source.toPath().toAbsolutePath();
+        final Path destinationPath = destination.toPath().toAbsolutePath();
+        final long fingerprint = settings.getFingerprint();
+        final Shard shard = this.shard;
+        final ConversionManifest manifest = incremental || watcher != null ? ConversionManifest.load(destinationPath, shard) : null;
+        final MemoryBudget budget = new MemoryBudget(memoryBudget);
+        final DuplicateIndex duplicates = deduplicate ? new DuplicateIndex() : null;
+        final FileSyncBatch syncBatch = syncOutputs ? new FileSyncBatch() : null;
+
+        final ConversionJournal journal = ConversionJournal.load(destinationPath, shard);
+        // a watch never finishes, so it is not journaled
+        final boolean resuming = watcher == null && resume && journal.matches(sourcePath, recursive, fingerprint);
+        try {
+            if (resuming) {
+                journal.resume();
+            } else if (watcher == null) {
+                journal.start(sourcePath, recursive, fingerprint);
+            }
+        } catch (final IOException ex) {
+            // go on without the journal
+        }
+        if (shard != null && !resuming) {
+            try {
+                ConversionStatistics.deleteShardSummary(destinationPath, shard);
+            } catch (final IOException ex) {
+                // it is replaced when the shard finishes, unless writing fails as well
+                reportFailure = ex;
+            }
+        }
+        final Map<String, long[]> journaledFiles = journal.getDiscovered();
+        final Map<String, Boolean> completedFiles = journal.getCompleted();
+        final boolean journaledScanFinished = journal.isScanFinished();
+        if (resuming) {
+            discoveredCount.set(journaledFiles.size());
+            // failed files are converted again, so only the succeeded ones are done
+            doneCount.set(journal.getSucceededCount());
+            successCount.set(doneCount.get());
+        }
+        final BlockingQueue<ImageTask> queue = new ArrayBlockingQueue<>(workerCount * QUEUE_CAPACITY_PER_WORKER);
+        // the files which are queued or being converted in the watch mode
+        final Set<String> inFlight = watcher != null ? ConcurrentHashMap.newKeySet() : null;
+        final AtomicLong manifestSaved = new AtomicLong(System.currentTimeMillis());
+
+        final Thread scanner = new Thread(() -> {
+            try {
+                if (resuming && journaledScanFinished) {
+                    // the previous scan had finished, so the remaining files are fed from the journal
+                    for (final Map.Entry<String, long[]> entry : journaledFiles.entrySet()) {
+                        final String relativePath = entry.getKey();
+                        if (!Boolean.TRUE.equals(completedFiles.get(relativePath))) {
+                            final long[] attributes = entry.getValue();
+                            if (!offer(queue, new ImageTask(sourcePath.resolve(relativePath), relativePath, attributes[0], attributes[1]))) {
+                                break;
+                            }
+                        }
+                    }
+                } else {
+                    new ImageFileScanner().scan(sourcePath, recursive, watcher == null ? null : dir -> {
+                        try {
+                            // before the folder is listed, so files created in it later are not missed
+                            watcher.watchFolder(dir);
+                        } catch (final IOException ex) {
+                            // the watch would miss files silently
+                            fail(ex);
+                        }
+                        return !stopping;
+                    }, (file, attributes) -> {
+                        if (watcher != null && file.startsWith(destinationPath)) {
+                            return !stopping;
+                        }
+                        final String relativePath = sourcePath.relativize(file).toString();
+                        if (shard != null && !shard.contains(relativePath)) {
+                            // another process converts it
+                            return !stopping;
+                        }
+                        final long size = attributes.size();
+                        final long lastModified = attributes.lastModifiedTime().toMillis();
+                        final boolean journaled = resuming && journaledFiles.containsKey(relativePath);
+                        if (journaled && Boolean.TRUE.equals(completedFiles.get(relativePath))) {
+                            // it has been counted from the journal
+                            return !stopping;
+                        }
+                        if (manifest != null) {
+                            if (isUpToDate(manifest, destinationPath, relativePath, size, lastModified, fingerprint)) {
+                                if (!journaled) {
+                                    journal.appendDiscovered(relativePath, size, lastModified);
+                                    discoveredCount.incrementAndGet();
+                                }
+                                journal.appendCompleted(relativePath, true);
+                                skippedCount.incrementAndGet();
+                                successCount.incrementAndGet();
+                                doneCount.incrementAndGet();
+                                return !stopping;
+                            }
+                        }
+                        if (!journaled) {
+                            // recorded before it is queued, so a completed file is always a discovered file in the journal
+                            journal.appendDiscovered(relativePath, size, lastModified);
+                        }
+                        if (inFlight != null) {
+                            inFlight.add(relativePath);
+                        }
+                        if (offer(queue, new ImageTask(file, relativePath, size, lastModified))) {
+                            if (!journaled) {
+                                discoveredCount.incrementAndGet();
+                            }
+                            return true;
+                        }
+                        return false;
+                    });
+                }
+                if (!stopping) {
+                    journal.appendScanFinished();
+                    scanFinished = true;
+                    if (watcher == null) {
+                        offer(queue, END_OF_QUEUE);
+                    }
+                    if (listener != null) {
+                        listener.onProgress(doneCount.get(), successCount.get(), discoveredCount.get(), true);
+                    }
+                    if (watcher != null) {
+                        watcher.watch((file, attributes) -> {
+                            final String relativePath = sourcePath.relativize(file).toString();
+                            if (shard != null && !shard.contains(relativePath)) {
+                                return true;
+                            }
+                            if (!inFlight.add(relativePath)) {
+                                // look at it again after it has been converted, because it can have changed since it was queued
+                                return false;
+                            }
+                            final long size = attributes.size();
+                            final long lastModified = attributes.lastModifiedTime().toMillis();
+                            if (!isUpToDate(manifest, destinationPath, relativePath, size, lastModified, fingerprint) && offer(queue, new ImageTask(file, relativePath, size, lastModified))) {
+                                discoveredCount.incrementAndGet();
+                            } else {
+                                inFlight.remove(relativePath);
+                            }
+                            return true;
+                        }, () -> stopping);
+                    }
+                }
+            } catch (final InterruptedException ex) {
+                stopping = true;
+            } catch (final Throwable ex) {
+                // the workers would wait for files forever
+                fail(ex);
+            }
+        }, "ImageResizerLight-Scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+
+        final Thread[] workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; ++i) {
+            workers[i] = new Thread(() -> {
+                // the codecs, buffers and rasters of a worker live as long as the job
+                try (final CodecContext context = new CodecContext()) {
+                    while (!stopping) {
+                        final ImageTask task = queue.poll(POLL_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+                        if (task == null) {
+                            continue;
+                        }
+                        if (task == END_OF_QUEUE) {
+                            // let other workers see the end, too
+                            queue.put(END_OF_QUEUE);
+                            break;
+                        }
+                        final int sc;
+                        final boolean success = convertTask(task, destinationPath, settings, manifest, resuming, duplicates, syncBatch, budget, statistics, context);
+                        journal.appendCompleted(task.relativePath, success);
+                        if (inFlight != null) {
+                            inFlight.remove(task.relativePath);
+                        }
+                        if (manifest != null) {
+                            final long now = System.currentTimeMillis();
+                            final long saved = manifestSaved.get();
+                            if (now - saved >= MANIFEST_SAVE_INTERVAL_MILLISECONDS && manifestSaved.compareAndSet(saved, now)) {
+                                // a process can be killed and a watch can run for days, so do not keep the manifest only in memory
+                                try {
+                                    if (syncBatch != null) {
+                                        // the outputs are durable before the manifest which records them
+                                        syncBatch.sync();
+                                    }
+                                    manifest.save();
+                                } catch (final IOException ex) {
+                                    // the outputs or the manifest are not durable as asked, so do not go on as if they were
+                                    fail(ex);
+                                }
+                            }
+                        }
+                        if (success) {
+                            sc = successCount.incrementAndGet();
+                        } else {
+                            sc = successCount.get();
+                        }
+                        final int dc = doneCount.incrementAndGet();
+                        if (listener != null) {
+                            listener.onProgress(dc, sc, discoveredCount.get(), scanFinished);
+                        }
+                    }
+                } catch (final InterruptedException ex) {
+                    stopping = true;
+                } catch (final Throwable ex) {
+                    // the scanner would wait for a free slot in the queue forever
+                    fail(ex);
+                }
+            }, "ImageResizerLight-Worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+        try {
+            scanner.join();
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        } catch (final InterruptedException ex) {
+            stopping = true;
+            throw ex;
+        } finally {
+            statistics.finish();
+            // a failure here keeps the journal, so the job can be resumed
+            if (syncBatch != null) {
+                try {
+                    syncBatch.sync();
+                } catch (final IOException ex) {
+                    fail(ex);
+                }
+            }
+            if (manifest != null) {
+                try {
+                    manifest.save();
+                } catch (final IOException ex) {
+                    fail(ex);
+                }
+            }
+            if (watcher == null) {
+                try {
+                    if (scanFinished && !stopping && doneCount.get() == discoveredCount.get()) {
+                        // nothing to resume
+                        journal.delete();
+                    } else {
+                        journal.close();
+                    }
+                } catch (final IOException ex) {
+                    //do nothing
+                }
+            }
+            if (shard != null) {
+                try {
+                    statistics.writeShardSummary(destinationPath, shard, sourcePath, fingerprint);
+                    reportFailure = null;
+                } catch (final IOException ex) {
+                    reportFailure = ex;
+                }
+            } else if (reportEnabled) {
+                try {
+                    statistics.writeReports(destinationPath);
+                } catch (final IOException ex) {
+                    reportFailure = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the outputs of an image file are up to date.
+     *
+     * @param manifest input the manifest
+     * @param destination input the destination folder
+     * @param relativePath input the path of the image file, relative to the
+     * source folder
+     * @param size input the size of the image file
+     * @param lastModified input the last modified time of the image file
+     * @param fingerprint input the fingerprint of the settings
+     * @return true if the image file has been converted with the same
+     * settings since it last changed, and its outputs still exist
+     */
+    private static boolean isUpToDate(final ConversionManifest manifest, final Path destination, final String relativePath, final long size, final long lastModified, final long fingerprint) {
+        final ConversionManifest.Entry entry = manifest.get(relativePath);
+        return entry != null && entry.matches(size, lastModified, fingerprint) && entry.getOutputPaths().stream().allMatch(outputPath -> Files.exists(destination.resolve(outputPath)));
+    }
+
+    /**
+     * Put a task into the queue. It gives up if the workers need to stop.
+     *
+     * @param queue input the queue
+     * @param task input a task
+     * @return true if the task has been put into the queue
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    private boolean offer(final BlockingQueue<ImageTask> queue, final ImageTask task) throws InterruptedException {
+        while (!queue.offer(task, POLL_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+            if (stopping) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert an image file in the queue.
+     *
+     * @param task input a task
+     * @param destination input the destination folder
+     * @param settings input the settings of the conversion
+     * @param manifest input the manifest of the incremental mode, or null
+     * @param resuming whether a stopped job is being resumed
+     * @param duplicates input the index of contents, or null if source files
+     * are not deduplicated
+     * @param syncBatch input the batch of output files to be flushed, or null
+     * if output files are not flushed
+     * @param budget input the budget of memory
+     * @param statistics input the statistics of the conversion
+     * @param context input the codec context of the worker
+     * @return true if the conversion succeeds
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    private boolean convertTask(final ImageTask task, final Path destination, final ConversionSettings settings, final ConversionManifest manifest, final boolean resuming, final DuplicateIndex duplicates, final FileSyncBatch syncBatch, final MemoryBudget budget, final ConversionStatistics statistics, final CodecContext context) throws InterruptedException {
+        final List<OutputVariant> variants = settings.getVariants();
+        final File[] newFiles = new File[variants.size()];
+        for (int i = 0; i < newFiles.length; ++i) {
+            newFiles[i] = variants.get(i).resolve(destination, task.relativePath);
+        }
+        // the stopped run may have written the outputs before it journaled or recorded them, so they are replaced rather than numbered
+        boolean overwrite = resuming || manifest != null;
+        if (manifest != null) {
+            final ConversionManifest.Entry entry = manifest.get(task.relativePath);
+            if (entry != null) {
+                // the old outputs are out of date; replace them rather than adding numbered copies
+                final List<String> outputPaths = entry.getOutputPaths();
+                if (outputPaths.size() == newFiles.length) {
+                    for (int i = 0; i < newFiles.length; ++i) {
+                        newFiles[i] = destination.resolve(outputPaths.get(i)).toFile();
+                    }
+                }
+                overwrite = true;
+            }
+        }
+        File[] outputFiles = null;
+        if (duplicates != null) {
+            final DuplicateIndex.Content content = duplicates.register(task.file, task.size);
+            if (content.isOriginal(task.file)) {
+                try {
+                    outputFiles = convertFile(task.file.toFile(), task.size, newFiles, settings, overwrite, budget, statistics, context);
+                } finally {
+                    content.complete(outputFiles);
+                }
+            } else {
+                final File[] originalFiles = content.await();
+                if (originalFiles != null) {
+                    outputFiles = linkFiles(originalFiles, newFiles, overwrite);
+                    if (outputFiles != null) {
+                        duplicateCount.incrementAndGet();
+                    }
+                }
+                if (outputFiles == null) {
+                    // the original cannot be converted or linked, so try it alone
+                    outputFiles = convertFile(task.file.toFile(), task.size, newFiles, settings, overwrite, budget, statistics, context);
+                }
+            }
+        } else {
+            outputFiles = convertFile(task.file.toFile(), task.size, newFiles, settings, overwrite, budget, statistics, context);
+        }
+        if (outputFiles == null) {
+            return false;
+        }
+        if (syncBatch != null) {
+            syncBatch.add(outputFiles);
+        }
+        if (manifest != null) {
+            final ArrayList<String> outputPaths = new ArrayList<>(outputFiles.length);
+            for (final File outputFile : outputFiles) {
+                outputPaths.add(destination.relativize(outputFile.toPath().toAbsolutePath()).toString());
+            }
+            manifest.put(task.relativePath, new ConversionManifest.Entry(task.size, task.lastModified, settings.getFingerprint(), outputPaths));
+        }
+        return true;
+    }
+
+    /**
+     * Link the outputs of an original file as the outputs of a duplicate
+     * file.
+     *
+     * @param originalFiles input the output files of the original
+     * @param newFiles input the output files of the duplicate
+     * @param overwrite whether to overwrite existing output files
+     * @return the output files, or null if they cannot be linked or copied
+     */
+    private static File[] linkFiles(final File[] originalFiles, final File[] newFiles, final boolean overwrite) {
+        final File[] outputFiles = new File[newFiles.length];
+        try {
+            for (int i = 0; i < newFiles.length; ++i) {
+                newFiles[i].getAbsoluteFile().getParentFile().mkdirs();
+                outputFiles[i] = ImageEncoder.linkFile(originalFiles[i], newFiles[i], overwrite);
+            }
+            return outputFiles;
+        } catch (final IOException ex) {
+            deleteFiles(outputFiles);
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the memory needed to convert an image. It counts the decoded
+     * raster, the intermediate raster of the horizontal resampling pass, and
+     * the resized raster with its sharpening and color conversion
+     * intermediates, at 4 bytes per pixel.
+     *
+     * @param width input the width of the source image, or -1 if unknown
+     * @param height input the height of the source image, or -1 if unknown
+     * @param subsampling input the subsampling used to decode the image
+     * @param settings input the settings of the conversion
+     * @return the estimated number of bytes, or Long.MAX_VALUE if unknown
+     */
+    private static long estimateMemory(final int width, final int height, final int subsampling, final ConversionSettings settings) {
+        if (width <= 0 || height <= 0) {
+            return Long.MAX_VALUE;
+        }
+        final long decodedWidth = (width + subsampling - 1) / subsampling;
+        final long decodedHeight = (height + subsampling - 1) / subsampling;
+        final long decodedPixels = decodedWidth * decodedHeight;
+        final long maxSide = Math.max(decodedWidth, decodedHeight);
+        final double scale = settings.isOnlyShrink() ? Math.min(1.0, settings.getMaxSideSize() * 1.0 / maxSide) : settings.getMaxSideSize() * 1.0 / maxSide;
+        final long outputWidth = (long) Math.ceil(decodedWidth * scale);
+        final long outputPixels = outputWidth * (long) Math.ceil(decodedHeight * scale);
+        return (decodedPixels + outputWidth * decodedHeight + outputPixels * 3) * 4;
+    }
+
+    /**
+     * Compute the amount of sharpening for a shrunk image. It is the same
+     * amount which ImageResize.resize uses automatically.
+     *
+     * @param sourcePixels input the number of pixels of the source image
+     * @param outputPixels input the number of pixels of the resized image
+     * @return the amount
+     */
+    private static float computeSharpenAmount(final float sourcePixels, final float outputPixels) {
+        final float areaRatio = outputPixels / 1049088f;
+        final float ratio = sourcePixels > outputPixels ? sourcePixels / outputPixels : outputPixels / sourcePixels;
+        final float amount;
+        if (ratio >= 8.5) {
+            amount = 1.1f + (areaRatio - 1) / 1.8f;
+        } else if (ratio >= 7.5) {
+            amount = 1f + (areaRatio - 1) / 2;
+        } else {
+            amount = 0.9f + (areaRatio - 1) / 2.2f;
+        }
+        return Math.min(amount, 1.5f);
+    }
+
+    /**
+     * Convert an image file into all output variants, and write them into
+     * output files.
+     *
+     * @param file input an image file
+     * @param size input the size of the image file
+     * @param newFiles input the output files, in the order of the output
+     * variants
+     * @param settings input the settings of the conversion
+     * @param overwrite whether to overwrite existing output files
+     * @param budget input the budget of memory
+     * @param statistics input the statistics of the conversion
+     * @param context input the codec context of the worker
+     * @return the output files, or null if the conversion fails
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    private static File[] convertFile(final File file, final long size, final File[] newFiles, final ConversionSettings settings, final boolean overwrite, final MemoryBudget budget, final ConversionStatistics statistics, final CodecContext context) throws InterruptedException {
+        final File[] outputFiles = new File[newFiles.length];
+        boolean success = false;
+        try {
+            success = convertImage(file, size, settings, budget, statistics, context, (index, data) -> {
+                newFiles[index].getAbsoluteFile().getParentFile().mkdirs();
+                outputFiles[index] = ImageEncoder.writeFile(data.getBytes(), data.size(), newFiles[index], overwrite);
+            });
+        } finally {
+            if (!success) {
+                deleteFiles(outputFiles);
+            }
+        }
+        return success ? outputFiles : null;
+    }
+
+    /**
+     * Convert an image file into all output variants. The header of the
+     * image is probed first, and the variants which need no resizing are the
+     * source file as it is, so they lose no quality. If no variant needs
+     * resizing, the image is not decoded at all. Otherwise, the image is
+     * decoded once, and the variants are resized in a cascade: each one is
+     * resized from the unsharpened result of the previous, larger one. The
+     * latency of each stage is recorded into the statistics, and so is the
+     * stage where the conversion fails.
+     *
+     * @param file input an image file
+     * @param size input the size of the image file
+     * @param settings input the settings of the conversion
+     * @param budget input the budget of memory
+     * @param statistics input the statistics of the conversion
+     * @param context input the codec context of the current thread
+     * @param sink input a sink to take the encoded outputs, in the order of
+     * the output variants. Its latency is recorded as the write stage
+     * @return true if the conversion succeeds
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    static boolean convertImage(final File file, final long size, final ConversionSettings settings, final MemoryBudget budget, final ConversionStatistics statistics, final CodecContext context, final OutputSink sink) throws InterruptedException {
+        final List<OutputVariant> variants = settings.getVariants();
+        final long[] reserved = new long[1];
+        final long[] waited = new long[1];
+        final int[] dimension = {-1, -1};
+        final long start = System.nanoTime();
+        ConversionStatistics.Stage stage = ConversionStatistics.Stage.PROBE;
+        try {
+            long time = System.nanoTime();
+            final ImageProbe.Header header = ImageProbe.probeJPEG(file, context);
+            final boolean[] passThrough = new boolean[variants.size()];
+            boolean allPassThrough = true;
+            for (int i = 0; i < passThrough.length; ++i) {
+                passThrough[i] = ImageProbe.canPassThrough(header, size, variants.get(i), settings.isOnlyShrink(), settings.isInterlace());
+                allPassThrough &= passThrough[i];
+            }
+            if (header != null) {
+                dimension[0] = header.getWidth();
+                dimension[1] = header.getHeight();
+            }
+            statistics.recordStage(stage, System.nanoTime() - time);
+
+            if (allPassThrough) {
+                // nothing to resize, so the pixels are never decoded
+                stage = ConversionStatistics.Stage.COPY;
+                time = System.nanoTime();
+                final ImageEncoder.EncodeBuffer data = context.getBuffer(0);
+                ImageProbe.copyJPEG(file, data);
+                statistics.recordStage(stage, System.nanoTime() - time);
+                for (int i = 0; i < variants.size(); ++i) {
+                    stage = ConversionStatistics.Stage.WRITE;
+                    time = System.nanoTime();
+                    sink.accept(i, data);
+                    statistics.recordStage(stage, System.nanoTime() - time);
+                    statistics.recordOutput(data.size());
+                    statistics.recordPassThrough();
+                }
+                statistics.recordStage(ConversionStatistics.Stage.TOTAL, System.nanoTime() - start);
+                return true;
+            }
+
+            stage = ConversionStatistics.Stage.DECODE;
+            time = System.nanoTime();
+            final BufferedImage bi = ImageDecoder.decode(file, settings.getMaxSideSize(), (width, height, subsampling) -> {
+                dimension[0] = width;
+                dimension[1] = height;
+                // called again before a full-size fallback decode, so the earlier reservation is replaced rather than held while waiting
+                final boolean again = reserved[0] > 0;
+                budget.release(reserved[0]);
+                reserved[0] = 0;
+                final long waitStart = System.nanoTime();
+                try {
+                    final long estimate = estimateMemory(width, height, subsampling, settings);
+                    // Image I/O has already failed on a file which is notified again, so it cannot be shrunk row by row with Image I/O either
+                    if (!again && estimate > budget.getBudget() && BandedResizer.isApplicable(width, height, subsampling, settings.getMaxSideSize()) && BandedResizer.isStreamable(file)) {
+                        // too big to be decoded at once, take the whole budget and shrink it row by row
+                        reserved[0] = budget.acquire(budget.getBudget());
+                        return false;
+                    }
+                    reserved[0] = budget.acquire(estimate);
+                    return true;
+                } finally {
+                    waited[0] += System.nanoTime() - waitStart;
+                }
+            }, context);
+            statistics.recordStage(ConversionStatistics.Stage.WAIT, waited[0]);
+            statistics.recordStage(ConversionStatistics.Stage.DECODE, System.nanoTime() - time - waited[0]);
+
+            // the image which the next variant is resized from
+            BufferedImage previous = bi;
+            final float sourcePixels;
+            if (bi == null) {
+                stage = ConversionStatistics.Stage.RESIZE;
+                time = System.nanoTime();
+                previous = BandedResizer.resize(file, settings.getMaxSideSize());
+                statistics.recordStage(stage, System.nanoTime() - time);
+                // the source is never decoded at once, so its size is the one in its header
+                sourcePixels = (float) dimension[0] * dimension[1];
+            } else {
+                sourcePixels = (float) bi.getWidth() * bi.getHeight();
+            }
+
+            for (int i = 0; i < variants.size(); ++i) {
+                final OutputVariant variant = variants.get(i);
+                BufferedImage resized = previous;
+                final ImageEncoder.EncodeBuffer data;
+                if (passThrough[i]) {
+                    // the source has the size of this variant, so it is written as it is
+                    stage = ConversionStatistics.Stage.COPY;
+                    time = System.nanoTime();
+                    data = context.getBuffer(0);
+                    ImageProbe.copyJPEG(file, data);
+                    statistics.recordStage(stage, System.nanoTime() - time);
+                    statistics.recordPassThrough();
+                } else {
+                    if (bi != null || i > 0) {
+                        stage = ConversionStatistics.Stage.RESIZE;
+                        time = System.nanoTime();
+                        resized = ImageResampler.resize(previous, variant.getMaxSideSize(), settings.isOnlyShrink(), settings.getResamplingTier());
+                        statistics.recordStage(stage, System.nanoTime() - time);
+                    }
+
+                    BufferedImage result = resized;
+                    // the first variant of an image shrunk row by row has been resized while it was decoded
+                    if (resized != previous || (bi == null && i == 0)) {
+                        final float outputPixels = (float) resized.getWidth() * resized.getHeight();
+                        if (sourcePixels > outputPixels && settings.getSharpenStrength() > 0) {
+                            stage = ConversionStatistics.Stage.SHARPEN;
+                            time = System.nanoTime();
+                            final float amount = computeSharpenAmount(sourcePixels, outputPixels) * settings.getSharpenStrength();
+                            if (amount > 0) {
+                                result = ImageSharpener.sharpen(resized, amount);
+                            }
+                            statistics.recordStage(stage, System.nanoTime() - time);
+                        }
+                    }
+
+                    stage = ConversionStatistics.Stage.ENCODE;
+                    time = System.nanoTime();
+                    data = variant.getTargetSize() > 0 ? ImageEncoder.encodeJPEG(result, variant.getQuality(), variant.getTargetSize(), settings.isInterlace(), context) : ImageEncoder.encodeJPEG(result, variant.getQuality(), settings.isInterlace(), context);
+                    statistics.recordStage(stage, System.nanoTime() - time);
+                    if (result != resized) {
+                        result.flush();
+                    }
+                }
+
+                stage = ConversionStatistics.Stage.WRITE;
+                time = System.nanoTime();
+                sink.accept(i, data);
+                statistics.recordStage(stage, System.nanoTime() - time);
+                statistics.recordOutput(data.size());
+
+                if (previous != bi && previous != resized) {
+                    previous.flush();
+                }
+                previous = resized;
+            }
+
+            statistics.recordStage(ConversionStatistics.Stage.TOTAL, System.nanoTime() - start);
+            return true;
+        } catch (final InterruptedException ex) {
+            throw ex;
+        } catch (final Exception ex) {
+            statistics.recordFailure(stage, file.toPath(), ex);
+        } finally {
+            budget.release(reserved[0]);
+            final String name = file.getName();
+            final int dotIndex = name.lastIndexOf('.');
+            statistics.recordSource(dotIndex < 0 ? "" : name.substring(dotIndex + 1), dimension[0], dimension[1], size);
+        }
+        return false;
+    }
+
+    /**
+     * Delete the outputs which have been written for an image whose
+     * conversion fails, so no partial set of variants is left.
+     *
+     * @param files input the output files, which can contain nulls
+     */
+    private static void deleteFiles(final File[] files) {
+        for (final File file : files) {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The journal of a conversion, stored in the destination folder. It is an
+ * append-only log of the discovered and completed image files, so a stopped
+ * or killed conversion can be resumed where it stopped. Every record is
+ * written with one system call and checked by a CRC-32 when it is read, so a
+ * torn record at the end of the log is simply dropped.
+ *
+ * @author Magic Len
+ */
+public class ConversionJournal implements Closeable {
+
+    // -----Class Constant-----
+    /**
+     * The name of the journal file.
+     */
+    public static final String FILE_NAME = ".imageresizerlight.journal";
+    /**
+     * The magic number of the journal file. It is "IRLJ" in ASCII.
+     */
+    private static final int MAGIC = 0x49524C4A;
+    /**
+     * The version of the journal format.
+     */
+    private static final int FORMAT_VERSION = 1;
+    /**
+     * The length of the file header.
+     */
+    private static final int FILE_HEADER_LENGTH = 2 * Integer.BYTES;
+    /**
+     * The type of the record which describes the job.
+     */
+    private static final byte RECORD_JOB = 1;
+    /**
+     * The type of the record of a discovered image file.
+     */
+    private static final byte RECORD_DISCOVERED = 2;
+    /**
+     * The type of the record which means the scan has finished.
+     */
+    private static final byte RECORD_SCAN_FINISHED = 3;
+    /**
+     * The type of the record of a completed image file.
+     */
+    private static final byte RECORD_COMPLETED = 4;
+    /**
+     * The minimum interval between two synchronizations of the journal with
+     * the storage device, in nanoseconds. Records survive a killed process
+     * right after they are written; this bounds what a power loss can drop.
+     */
+    private static final long FORCE_INTERVAL_NANOSECONDS = 1000000000L;
+
+    // -----Class Method-----
+    /**
+     * Load the journal in a destination folder. If there is no journal, or it
+     * is broken, the returned journal has no job.
+     *
+     * @param destination input the destination folder
+     * @return the journal
+     */
+    public static ConversionJournal load(final Path destination) {
+        return load(destination, null);
+    }
+
+    /**
+     * Load the journal in a destination folder. If there is no journal, or it
+     * is broken, the returned journal has no job.
+     *
+     * @param destination input the destination folder
+     * @param shard input the shard whose journal is loaded, or null if the job
+     * is not sharded
+     * @return the journal
+     */
+    public static ConversionJournal load(final Path destination, final Shard shard) {
+        final ConversionJournal journal = new ConversionJournal(destination, shard);
+        try (final FileChannel channel = FileChannel.open(journal.file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < FILE_HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return journal;
+            }
+            final CRC32 crc = new CRC32();
+            long validLength = FILE_HEADER_LENGTH;
+            while (buffer.remaining() >= Integer.BYTES) {
+                final int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - Integer.BYTES) {
+                    break;
+                }
+                final int start = buffer.position();
+                final ByteBuffer record = buffer.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record);
+                buffer.position(start + length);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    break;
+                }
+                buffer.position(start);
+                final byte type = buffer.get();
+                if (type == RECORD_JOB) {
+                    journal.fingerprint = buffer.getLong();
+                    journal.recursive = buffer.get() != 0;
+                    journal.source = readString(buffer);
+                } else if (journal.source == null) {
+                    break;
+                } else if (type == RECORD_DISCOVERED) {
+                    final String relativePath = readString(buffer);
+                    journal.discovered.put(relativePath, new long[]{buffer.getLong(), buffer.getLong()});
+                } else if (type == RECORD_SCAN_FINISHED) {
+                    journal.scanFinished = true;
+                } else if (type == RECORD_COMPLETED) {
+                    final String relativePath = readString(buffer);
+                    journal.completed.put(relativePath, buffer.get() != 0);
+                }
+                buffer.position(start + length + Integer.BYTES);
+                validLength = buffer.position();
+            }
+            journal.validLength = validLength;
+        } catch (final NoSuchFileException ex) {
+            //do nothing
+        } catch (final IOException | RuntimeException ex) {
+            journal.clear();
+        }
+        return journal;
+    }
+
+    /**
+     * Read a string from a buffer.
+     *
+     * @param buffer input a buffer
+     * @return the string
+     */
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a string to a stream.
+     *
+     * @param out input a stream
+     * @param s input a string
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // -----Object Constant-----
+    /**
+     * The journal file.
+     */
+    private final Path file;
+    /**
+     * The discovered image files of the loaded job, in discovered order, with
+     * their sizes and last modified times.
+     */
+    private final LinkedHashMap<String, long[]> discovered = new LinkedHashMap<>();
+    /**
+     * The completed image files of the loaded job, with whether they were
+     * converted successfully.
+     */
+    private final HashMap<String, Boolean> completed = new HashMap<>();
+    /**
+     * The record being built.
+     */
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    /**
+     * The CRC-32 of records being written.
+     */
+    private final CRC32 recordCRC = new CRC32();
+
+    // -----Object Variable-----
+    /**
+     * The path of the source folder of the loaded job, or null if there is no
+     * job.
+     */
+    private String source;
+    /**
+     * Whether the loaded job extends to subfolders.
+     */
+    private boolean recursive;
+    /**
+     * The fingerprint of the settings of the loaded job.
+     */
+    private long fingerprint;
+    /**
+     * Whether the scan of the loaded job has finished.
+     */
+    private boolean scanFinished;
+    /**
+     * The length of the valid records.
+     */
+    private long validLength;
+    /**
+     * The channel to append records, or null if the journal is not being
+     * written.
+     */
+    private FileChannel channel;
+    /**
+     * When the journal was synchronized with the storage device, in
+     * nanoseconds.
+     */
+    private long lastForceTime;
+
+    // -----Constructor-----
+    /**
+     * Construct an empty journal.
+     *
+     * @param destination input the destination folder
+     * @param shard input the shard of the journal, or null
+     */
+    private ConversionJournal(final Path destination, final Shard shard) {
+        this.file = destination.resolve(shard == null ? FILE_NAME : FILE_NAME.concat(shard.getFileSuffix()));
+    }
+
+    // -----Object Method-----
+    /**
+     * Clear the loaded job.
+     */
+    private void clear() {
+        source = null;
+        recursive = false;
+        fingerprint = 0;
+        scanFinished = false;
+        validLength = 0;
+        discovered.clear();
+        completed.clear();
+    }
+
+    /**
+     * Check whether a job has been loaded.
+     *
+     * @return true if there is a job which can be resumed
+     */
+    public boolean hasJob() {
+        return source != null;
+    }
+
+    /**
+     * Get the path of the source folder of the loaded job.
+     *
+     * @return the path, or null if there is no job
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Check whether the loaded job extends to subfolders.
+     *
+     * @return true if the job extends to subfolders
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * Check whether the loaded job is the same job as the given one.
+     *
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders
+     * @param fingerprint input the fingerprint of the settings
+     * @return true if they are the same
+     */
+    public boolean matches(final Path source, final boolean recursive, final long fingerprint) {
+        return this.source != null && this.source.equals(source.toAbsolutePath().toString()) && this.recursive == recursive && this.fingerprint == fingerprint;
+    }
+
+    /**
+     * Check whether the scan of the loaded job has finished.
+     *
+     * @return true if the scan has finished
+     */
+    public boolean isScanFinished() {
+        return scanFinished;
+    }
+
+    /**
+     * Get the discovered image files of the loaded job.
+     *
+     * @return the paths relative to the source folder, in discovered order,
+     * with their sizes and last modified times
+     */
+    public Map<String, long[]> getDiscovered() {
+        return Collections.unmodifiableMap(discovered);
+    }
+
+    /**
+     * Get the completed image files of the loaded job.
+     *
+     * @return the paths relative to the source folder, with whether they were
+     * converted successfully
+     */
+    public Map<String, Boolean> getCompleted() {
+        return Collections.unmodifiableMap(completed);
+    }
+
+    /**
+     * Get the number of image files of the loaded job which were converted
+     * successfully. Only they are done when the job is resumed; the failed
+     * ones are converted again.
+     *
+     * @return the number of image files
+     */
+    public int getSucceededCount() {
+        return (int) completed.values().stream().filter(success -> success).count();
+    }
+
+    /**
+     * Start a new job. The old journal is discarded.
+     *
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders
+     * @param fingerprint input the fingerprint of the settings
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void start(final Path source, final boolean recursive, final long fingerprint) throws IOException {
+        close();
+        clear();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        this.source = source.toAbsolutePath().toString();
+        this.recursive = recursive;
+        this.fingerprint = fingerprint;
+        final DataOutputStream out = beginRecord(RECORD_JOB);
+        out.writeLong(fingerprint);
+        out.writeByte(recursive ? 1 : 0);
+        writeString(out, this.source);
+        final FileChannel due = endRecord();
+        if (due != null) {
+            due.force(false);
+        }
+    }
+
+    /**
+     * Continue writing the loaded job. A torn record at the end of the
+     * journal is cut off first.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void resume() throws IOException {
+        if (source == null) {
+            throw new IllegalStateException("There is no job to resume.");
+        }
+        close();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+    }
+
+    /**
+     * Append the record of a discovered image file.
+     *
+     * @param relativePath input the path relative to the source folder
+     * @param size input the size of the file
+     * @param lastModified input the last modified time of the file
+     */
+    public void appendDiscovered(final String relativePath, final long size, final long lastModified) {
+        final FileChannel due;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                final DataOutputStream out = beginRecord(RECORD_DISCOVERED);
+                writeString(out, relativePath);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+                due = endRecord();
+            } catch (final IOException ex) {
+                abandon();
+                return;
+            }
+        }
+        force(due);
+    }
+
+    /**
+     * Append the record which means the scan has finished.
+     */
+    public void appendScanFinished() {
+        final FileChannel due;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                beginRecord(RECORD_SCAN_FINISHED);
+                due = endRecord();
+            } catch (final IOException ex) {
+                abandon();
+                return;
+            }
+        }
+        force(due);
+    }
+
+    /**
+     * Append the record of a completed image file.
+     *
+     * @param relativePath input the path relative to the source folder
+     * @param success whether the file was converted successfully
+     */
+    public void appendCompleted(final String relativePath, final boolean success) {
+        final FileChannel due;
+        synchronized (this) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                final DataOutputStream out = beginRecord(RECORD_COMPLETED);
+                writeString(out, relativePath);
+                out.writeByte(success ? 1 : 0);
+                due = endRecord();
+            } catch (final IOException ex) {
+                abandon();
+                return;
+            }
+        }
+        force(due);
+    }
+
+    /**
+     * Begin a record.
+     *
+     * @param type input the type of the record
+     * @return the stream to write the payload of the record
+     * @throws IOException if an I/O error occurs
+     */
+    private DataOutputStream beginRecord(final byte type) throws IOException {
+        recordBuffer.reset();
+        final DataOutputStream out = new DataOutputStream(recordBuffer);
+        out.writeInt(0);
+        out.writeByte(type);
+        return out;
+    }
+
+    /**
+     * Frame the record being built with its length and CRC-32, and append it
+     * with one write. The journal is not synchronized with the storage
+     * device here, because it can take long and the lock is held.
+     *
+     * @return the channel which is due to be synchronized with the storage
+     * device, or null if it is not due yet
+     * @throws IOException if an I/O error occurs
+     */
+    private FileChannel endRecord() throws IOException {
+        final int length = recordBuffer.size() - Integer.BYTES;
+        final ByteBuffer record = ByteBuffer.allocate(recordBuffer.size() + Integer.BYTES);
+        record.put(recordBuffer.toByteArray());
+        record.putInt(0, length);
+        recordCRC.reset();
+        recordCRC.update(record.array(), Integer.BYTES, length);
+        record.putInt((int) recordCRC.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        final long now = System.nanoTime();
+        if (now - lastForceTime >= FORCE_INTERVAL_NANOSECONDS) {
+            lastForceTime = now;
+            return channel;
+        }
+        return null;
+    }
+
+    /**
+     * Synchronize the journal with the storage device without holding the
+     * lock, so other threads can append records meanwhile.
+     *
+     * @param due input the channel returned by endRecord, or null
+     */
+    private void force(final FileChannel due) {
+        if (due == null) {
+            return;
+        }
+        try {
+            due.force(false);
+        } catch (final ClosedChannelException ex) {
+            // closed meanwhile, which synchronizes it as well
+        } catch (final IOException ex) {
+            abandon();
+        }
+    }
+
+    /**
+     * Stop writing the journal after an I/O error, so the conversion goes on
+     * without it.
+     */
+    private void abandon() {
+        try {
+            close();
+        } catch (final IOException ex) {
+            //do nothing
+        }
+    }
+
+    /**
+     * Stop writing the journal. The journal is kept, so the job can be
+     * resumed.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Stop writing the journal and delete it, because the job has finished
+     * and there is nothing to resume.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        clear();
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The manifest of converted images, stored in the destination folder. It is
+ * used by the incremental mode to skip images whose outputs are up to date.
+ * The manifest is a compact binary file which is loaded through a memory
+ * mapping.
+ *
+ * @author Magic Len
+ */
+public class ConversionManifest {
+
+    // -----Class Constant-----
+    /**
+     * The name of the manifest file.
+     */
+    public static final String FILE_NAME = ".imageresizerlight.manifest";
+    /**
+     * The magic number of the manifest file. It is "IRLM" in ASCII.
+     */
+    private static final int MAGIC = 0x49524C4D;
+    /**
+     * The version of the manifest format.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    // -----Class Class-----
+    /**
+     * An entry of the manifest.
+     */
+    public static final class Entry {
+
+        /**
+         * The size of the source file.
+         */
+        private final long size;
+        /**
+         * The last modified time of the source file, in milliseconds.
+         */
+        private final long lastModified;
+        /**
+         * The fingerprint of the settings.
+         */
+        private final long fingerprint;
+        /**
+         * The paths of the output files, relative to the destination folder.
+         */
+        private final List<String> outputPaths;
+
+        /**
+         * Construct an entry.
+         *
+         * @param size input the size of the source file
+         * @param lastModified input the last modified time of the source file
+         * @param fingerprint input the fingerprint of the settings
+         * @param outputPaths input the paths of the output files, relative to
+         * the destination folder, in the order of the output variants
+         */
+        public Entry(final long size, final long lastModified, final long fingerprint, final List<String> outputPaths) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fingerprint = fingerprint;
+            this.outputPaths = Collections.unmodifiableList(new ArrayList<>(outputPaths));
+        }
+
+        /**
+         * Get the paths of the output files.
+         *
+         * @return the paths of the output files, relative to the destination
+         * folder, in the order of the output variants
+         */
+        public List<String> getOutputPaths() {
+            return outputPaths;
+        }
+
+        /**
+         * Check whether this entry matches a source file and settings.
+         *
+         * @param size input the size of the source file
+         * @param lastModified input the last modified time of the source file
+         * @param fingerprint input the fingerprint of the settings
+         * @return true if matched
+         */
+        public boolean matches(final long size, final long lastModified, final long fingerprint) {
+            return this.size == size && this.lastModified == lastModified && this.fingerprint == fingerprint;
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Load the manifest in a destination folder. If there is no manifest, or
+     * the manifest is broken, an empty manifest is returned.
+     *
+     * @param destination input the destination folder
+     * @return the manifest
+     */
+    public static ConversionManifest load(final Path destination) {
+        return load(destination, null);
+    }
+
+    /**
+     * Load the manifest in a destination folder. If there is no manifest, or
+     * the manifest is broken, an empty manifest is returned.
+     *
+     * @param destination input the destination folder
+     * @param shard input the shard whose manifest is loaded, or null if the job
+     * is not sharded
+     * @return the manifest
+     */
+    public static ConversionManifest load(final Path destination, final Shard shard) {
+        final ConversionManifest manifest = new ConversionManifest(destination, shard);
+        try (final FileChannel channel = FileChannel.open(manifest.file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                return manifest;
+            }
+            final int version = buffer.getInt();
+            if (version != 1 && version != FORMAT_VERSION) {
+                return manifest;
+            }
+            final int count = buffer.getInt();
+            for (int i = 0; i < count; ++i) {
+                final String sourcePath = readString(buffer);
+                final long size = buffer.getLong();
+                final long lastModified = buffer.getLong();
+                final long fingerprint = buffer.getLong();
+                final List<String> outputPaths;
+                if (version == 1) {
+                    // the first version has exactly one output
+                    outputPaths = Collections.singletonList(readString(buffer));
+                } else {
+                    final int outputCount = buffer.getInt();
+                    outputPaths = new ArrayList<>(outputCount);
+                    for (int j = 0; j < outputCount; ++j) {
+                        outputPaths.add(readString(buffer));
+                    }
+                }
+                manifest.entries.put(sourcePath, new Entry(size, lastModified, fingerprint, outputPaths));
+            }
+        } catch (final NoSuchFileException ex) {
+            //do nothing
+        } catch (final IOException | RuntimeException ex) {
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Read a string from a buffer.
+     *
+     * @param buffer input a buffer
+     * @return the string
+     */
+    private static String readString(final MappedByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a string to a stream.
+     *
+     * @param out input a stream
+     * @param s input a string
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // -----Object Constant-----
+    /**
+     * The manifest file.
+     */
+    private final Path file;
+    /**
+     * The entries, keyed by the path of the source file relative to the
+     * source folder.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // -----Constructor-----
+    /**
+     * Construct an empty manifest.
+     *
+     * @param destination input the destination folder
+     * @param shard input the shard of the manifest, or null
+     */
+    private ConversionManifest(final Path destination, final Shard shard) {
+        this.file = destination.resolve(shard == null ? FILE_NAME : FILE_NAME.concat(shard.getFileSuffix()));
+    }
+
+    // -----Object Method-----
+    /**
+     * Get an entry.
+     *
+     * @param sourcePath input the path of the source file, relative to the
+     * source folder
+     * @return the entry, or null if there is no such entry
+     */
+    public Entry get(final String sourcePath) {
+        return entries.get(sourcePath);
+    }
+
+    /**
+     * Put an entry. It can be called by several threads at the same time.
+     *
+     * @param sourcePath input the path of the source file, relative to the
+     * source folder
+     * @param entry input an entry
+     */
+    public void put(final String sourcePath, final Entry entry) {
+        entries.put(sourcePath, entry);
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Save this manifest. It is written to a temporary file first and then
+     * moved over the old manifest, so a crash never leaves a broken manifest.
+     * It can be called by several threads at the same time.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void save() throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName().toString().concat(".tmp"));
+        try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(0);
+            int count = 0;
+            for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                writeString(out, e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.fingerprint);
+                out.writeInt(entry.outputPaths.size());
+                for (final String outputPath : entry.outputPaths) {
+                    writeString(out, outputPath);
+                }
+                ++count;
+            }
+            out.flush();
+            // entries can be put while saving, so the count is written at last
+            final ByteBuffer countBuffer = ByteBuffer.allocate(Integer.BYTES);
+            countBuffer.putInt(0, count);
+            channel.write(countBuffer, 2 * Integer.BYTES);
+            // the new manifest is on the storage device before it replaces the old one
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
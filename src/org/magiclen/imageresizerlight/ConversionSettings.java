@@ -0,0 +1,267 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The settings of a conversion. A conversion writes one or more output
+ * variants of each source image.
+ *
+ * @author Magic Len
+ */
+public class ConversionSettings {
+
+    // -----Class Constant-----
+    /**
+     * The default strength of sharpening. Shrunk images are sharpened by the
+     * amount which ImageResize.resize uses automatically.
+     */
+    public static final float DEFAULT_SHARPEN_STRENGTH = 1;
+    /**
+     * The maximum strength of sharpening.
+     */
+    public static final float MAX_SHARPEN_STRENGTH = 2;
+    /**
+     * The default tier of resampling.
+     */
+    public static final ImageResampler.Tier DEFAULT_RESAMPLING_TIER = ImageResampler.Tier.BEST;
+    /**
+     * The version of the conversion pipeline. It is a part of every
+     * fingerprint, so outputs which an older release wrote with the same
+     * settings are not taken as up to date. Increase it with every change
+     * which alters the output files of the same settings, such as a change
+     * of decoding, resampling, sharpening, encoding or passing sources
+     * through. Version 2 sharpens images which are shrunk row by row, and
+     * strips the metadata of sources which pass through.
+     */
+    public static final int PIPELINE_VERSION = 2;
+
+    // -----Object Constant-----
+    /**
+     * The output variants, from the largest to the smallest.
+     */
+    private final List<OutputVariant> variants;
+    /**
+     * Whether to only shrink images.
+     */
+    private final boolean onlyShrink;
+    /**
+     * Whether to interlace output images. Interlaced images are written as
+     * progressive JPEG files.
+     */
+    private final boolean interlace;
+    /**
+     * The strength of sharpening, relative to the default amount.
+     */
+    private final float sharpenStrength;
+    /**
+     * The tier of resampling.
+     */
+    private final ImageResampler.Tier resamplingTier;
+
+    // -----Constructor-----
+    /**
+     * Construct the settings of a conversion which writes one output of each
+     * source image.
+     *
+     * @param maxSideSize input the length of the max side of output images
+     * @param quality input the quality of output images, from 0 to 1
+     * @param onlyShrink whether to only shrink images
+     * @param interlace whether to interlace output images, as progressive
+     * JPEG files
+     */
+    public ConversionSettings(final int maxSideSize, final float quality, final boolean onlyShrink, final boolean interlace) {
+        this(Collections.singletonList(new OutputVariant(maxSideSize, quality, null, null)), onlyShrink, interlace);
+    }
+
+    /**
+     * Construct the settings of a conversion which writes several outputs of
+     * each source image. Each source image is decoded once, and the outputs
+     * are resized in a cascade from the largest to the smallest.
+     *
+     * @param variants input the output variants. Their subfolders and
+     * suffixes must tell them apart
+     * @param onlyShrink whether to only shrink images
+     * @param interlace whether to interlace output images, as progressive
+     * JPEG files
+     */
+    public ConversionSettings(final List<OutputVariant> variants, final boolean onlyShrink, final boolean interlace) {
+        this(variants, onlyShrink, interlace, DEFAULT_SHARPEN_STRENGTH);
+    }
+
+    /**
+     * Construct the settings of a conversion which writes several outputs of
+     * each source image, with a strength of sharpening.
+     *
+     * @param variants input the output variants. Their subfolders and
+     * suffixes must tell them apart
+     * @param onlyShrink whether to only shrink images
+     * @param interlace whether to interlace output images, as progressive
+     * JPEG files
+     * @param sharpenStrength input the strength of sharpening shrunk images,
+     * relative to the default amount, from 0 to MAX_SHARPEN_STRENGTH. 0 means
+     * no sharpening
+     */
+    public ConversionSettings(final List<OutputVariant> variants, final boolean onlyShrink, final boolean interlace, final float sharpenStrength) {
+        this(variants, onlyShrink, interlace, sharpenStrength, DEFAULT_RESAMPLING_TIER);
+    }
+
+    /**
+     * Construct the settings of a conversion which writes several outputs of
+     * each source image, with a strength of sharpening and a tier of
+     * resampling.
+     *
+     * @param variants input the output variants. Their subfolders and
+     * suffixes must tell them apart
+     * @param onlyShrink whether to only shrink images
+     * @param interlace whether to interlace output images, as progressive
+     * JPEG files
+     * @param sharpenStrength input the strength of sharpening shrunk images,
+     * relative to the default amount, from 0 to MAX_SHARPEN_STRENGTH. 0 means
+     * no sharpening
+     * @param resamplingTier input the tier of resampling
+     */
+    public ConversionSettings(final List<OutputVariant> variants, final boolean onlyShrink, final boolean interlace, final float sharpenStrength, final ImageResampler.Tier resamplingTier) {
+        if (resamplingTier == null) {
+            throw new IllegalArgumentException("The resampling tier is needed.");
+        }
+        if (!(sharpenStrength >= 0 && sharpenStrength <= MAX_SHARPEN_STRENGTH)) {
+            throw new IllegalArgumentException("The strength of sharpening must be between 0 and " + MAX_SHARPEN_STRENGTH + ".");
+        }
+        if (variants == null || variants.isEmpty()) {
+            throw new IllegalArgumentException("There must be at least one output.");
+        }
+        final HashSet<String> targets = new HashSet<>();
+        for (final OutputVariant variant : variants) {
+            if (!targets.add(variant.getFolder().concat("\0").concat(variant.getSuffix()))) {
+                throw new IllegalArgumentException("Outputs need different subfolders or suffixes.");
+            }
+        }
+        final ArrayList<OutputVariant> sorted = new ArrayList<>(variants);
+        sorted.sort((a, b) -> Integer.compare(b.getMaxSideSize(), a.getMaxSideSize()));
+        this.variants = Collections.unmodifiableList(sorted);
+        this.onlyShrink = onlyShrink;
+        this.interlace = interlace;
+        this.sharpenStrength = sharpenStrength;
+        this.resamplingTier = resamplingTier;
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the output variants.
+     *
+     * @return the output variants, from the largest to the smallest
+     */
+    public List<OutputVariant> getVariants() {
+        return variants;
+    }
+
+    /**
+     * Get the length of the max side of the largest output images.
+     *
+     * @return the length of the max side
+     */
+    public int getMaxSideSize() {
+        return variants.get(0).getMaxSideSize();
+    }
+
+    /**
+     * Get the quality of the largest output images.
+     *
+     * @return the quality, from 0 to 1
+     */
+    public float getQuality() {
+        return variants.get(0).getQuality();
+    }
+
+    /**
+     * Check whether to only shrink images.
+     *
+     * @return true if images are only shrunk
+     */
+    public boolean isOnlyShrink() {
+        return onlyShrink;
+    }
+
+    /**
+     * Check whether to interlace output images.
+     *
+     * @return true if output images are interlaced
+     */
+    public boolean isInterlace() {
+        return interlace;
+    }
+
+    /**
+     * Get the strength of sharpening shrunk images.
+     *
+     * @return the strength, relative to the default amount. 0 means no
+     * sharpening
+     */
+    public float getSharpenStrength() {
+        return sharpenStrength;
+    }
+
+    /**
+     * Get the tier of resampling.
+     *
+     * @return the tier
+     */
+    public ImageResampler.Tier getResamplingTier() {
+        return resamplingTier;
+    }
+
+    /**
+     * Get the fingerprint of these settings. Two settings which produce
+     * different output images have different fingerprints, and so do the
+     * same settings in different versions of the pipeline.
+     *
+     * @return the fingerprint
+     */
+    public long getFingerprint() {
+        long fingerprint = 1125899906842597L;
+        fingerprint = 31 * fingerprint + PIPELINE_VERSION;
+        fingerprint = 31 * fingerprint + getMaxSideSize();
+        fingerprint = 31 * fingerprint + Float.floatToIntBits(getQuality());
+        fingerprint = 31 * fingerprint + (onlyShrink ? 1 : 0);
+        fingerprint = 31 * fingerprint + (interlace ? 1 : 0);
+        if (sharpenStrength != DEFAULT_SHARPEN_STRENGTH) {
+            fingerprint = 31 * fingerprint + Float.floatToIntBits(sharpenStrength);
+        }
+        if (resamplingTier != DEFAULT_RESAMPLING_TIER) {
+            fingerprint = 31 * fingerprint + resamplingTier.getName().hashCode();
+        }
+        final OutputVariant first = variants.get(0);
+        if (variants.size() > 1 || !first.getFolder().isEmpty() || !first.getSuffix().isEmpty() || first.getTargetSize() > 0) {
+            for (final OutputVariant variant : variants) {
+                fingerprint = 31 * fingerprint + variant.getMaxSideSize();
+                fingerprint = 31 * fingerprint + Float.floatToIntBits(variant.getQuality());
+                fingerprint = 31 * fingerprint + variant.getFolder().hashCode();
+                fingerprint = 31 * fingerprint + variant.getSuffix().hashCode();
+                if (variant.getTargetSize() > 0) {
+                    fingerprint = 31 * fingerprint + Long.hashCode(variant.getTargetSize());
+                }
+            }
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,1036 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The statistics of a conversion. Workers record the latency of each stage,
+ * the formats and sizes of source images, and the stages where conversions
+ * fail, with lock-free counters. The statistics can be written as a JSON or
+ * CSV report and are exposed through JMX. A shard of a job writes its
+ * statistics as a summary, and the summaries of all shards are merged into
+ * the statistics of the whole job.
+ *
+ * @author Magic Len
+ */
+public class ConversionStatistics implements ConversionStatisticsMXBean {
+
+    // -----Class Constant-----
+    /**
+     * The name of the JMX bean.
+     */
+    public static final String OBJECT_NAME = "org.magiclen.imageresizerlight:type=ConversionStatistics";
+    /**
+     * The name of the JSON report file in the destination folder.
+     */
+    public static final String JSON_REPORT_NAME = "imageresizerlight-report.json";
+    /**
+     * The name of the CSV report file in the destination folder.
+     */
+    public static final String CSV_REPORT_NAME = "imageresizerlight-report.csv";
+    /**
+     * The maximum number of failures whose details are kept.
+     */
+    private static final int MAX_FAILURE_SAMPLES = 100;
+    /**
+     * The percentiles written into reports.
+     */
+    private static final int[] PERCENTILES = {50, 90, 99};
+    /**
+     * The indices of the counts of a merged job.
+     */
+    private static final int JOB_WORKERS = 0, JOB_DISCOVERED = 1, JOB_DONE = 2, JOB_SUCCESS = 3, JOB_SKIPPED = 4, JOB_DUPLICATES = 5;
+    /**
+     * The names of the counts of a job in shard summaries, in the order of
+     * their indices.
+     */
+    private static final String[] JOB_COUNT_NAMES = {"workers", "discovered", "done", "success", "skipped", "duplicates"};
+    /**
+     * The names of the metrics of shard summaries which describe the job and
+     * the shard rather than add up, including the header.
+     */
+    private static final Set<String> SUMMARY_JOB_NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("metric", "shard", "source", "fingerprint", "complete", "startTime", "elapsedMillis", "workers", "discovered", "done", "success", "skipped", "duplicates")));
+
+    // -----Class Enum-----
+    /**
+     * The stages of a conversion.
+     */
+    public static enum Stage {
+
+        /**
+         * Reading the header of the source image, to find out whether it
+         * needs to be converted at all.
+         */
+        PROBE,
+        /**
+         * Waiting for the memory budget.
+         */
+        WAIT,
+        /**
+         * Decoding the source image. It does not include the waiting.
+         */
+        DECODE,
+        /**
+         * Resizing. Images which are too big to be decoded at once are
+         * decoded and resized together row by row, and timed as this stage.
+         */
+        RESIZE,
+        /**
+         * Sharpening the resized image.
+         */
+        SHARPEN,
+        /**
+         * Reading a source image which needs no conversion, to be written as
+         * it is.
+         */
+        COPY,
+        /**
+         * Encoding the JPEG stream, in memory.
+         */
+        ENCODE,
+        /**
+         * Writing the output file.
+         */
+        WRITE,
+        /**
+         * The whole conversion of an image.
+         */
+        TOTAL;
+
+        /**
+         * Get the name of the stage used in reports.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * The size buckets of source images, by the number of pixels.
+     */
+    public static enum SizeBucket {
+
+        UNKNOWN("unknown", 0), UNDER_1MP("under-1mp", 1000000L), UNDER_4MP("1mp-4mp", 4000000L), UNDER_16MP("4mp-16mp", 16000000L), UNDER_64MP("16mp-64mp", 64000000L), HUGE("64mp-or-more", Long.MAX_VALUE);
+
+        private final String name;
+
+        private final long limit;
+
+        SizeBucket(final String name, final long limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+
+        /**
+         * Get the name of the bucket used in reports.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the bucket of an image.
+         *
+         * @param width input the width of the image, or -1 if unknown
+         * @param height input the height of the image, or -1 if unknown
+         * @return the bucket
+         */
+        public static SizeBucket of(final int width, final int height) {
+            if (width <= 0 || height <= 0) {
+                return UNKNOWN;
+            }
+            final long pixels = (long) width * height;
+            for (final SizeBucket bucket : values()) {
+                if (pixels < bucket.limit) {
+                    return bucket;
+                }
+            }
+            return HUGE;
+        }
+
+        /**
+         * Get the bucket of a name used in reports.
+         *
+         * @param name input the name
+         * @return the bucket
+         * @throws IllegalArgumentException if there is no such bucket
+         */
+        public static SizeBucket ofName(final String name) {
+            for (final SizeBucket bucket : values()) {
+                if (bucket.name.equals(name)) {
+                    return bucket;
+                }
+            }
+            throw new IllegalArgumentException("There is no size bucket named ".concat(name));
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Escape a string for JSON.
+     *
+     * @param s input a string
+     * @return the quoted string
+     */
+    private static String quote(final String s) {
+        final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Format a number for reports.
+     *
+     * @param value input a number
+     * @return the formatted number
+     */
+    private static String format(final double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Quote a field for CSV if needed.
+     *
+     * @param s input a field
+     * @return the quoted field
+     */
+    private static String csvField(final String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
+        return "\"".concat(s.replace("\"", "\"\"")).concat("\"");
+    }
+
+    /**
+     * Split a line of CSV into fields.
+     *
+     * @param line input a line
+     * @return the fields
+     */
+    private static List<String> parseCSVLine(final String line) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    sb.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append(c);
+                    ++i;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields;
+    }
+
+    /**
+     * Merge the summaries of all shards of a job into the statistics of the
+     * whole job. Counts and histograms are added, so percentiles are as
+     * accurate as those of one process. The elapsed time runs from the start
+     * of the earliest shard to the end of the latest one.
+     *
+     * @param summaries input the summary files of the shards
+     * @return the statistics of the job
+     * @throws IOException if a summary cannot be read or has an incorrect
+     * line, the summaries are of different jobs, or a shard has no summary
+     */
+    public static ConversionStatistics merge(final List<Path> summaries) throws IOException {
+        if (summaries.isEmpty()) {
+            throw new IOException("There is no summary of shards.");
+        }
+        final int[] jobCounts = new int[JOB_COUNT_NAMES.length];
+        final List<Map<String, List<String>>> contents = new ArrayList<>(summaries.size());
+        // the lines of the metrics, to tell which one is incorrect
+        final List<Map<String, String>> contentLines = new ArrayList<>(summaries.size());
+        final TreeMap<Integer, Path> shards = new TreeMap<>();
+        String source = null, fingerprint = null;
+        int shardCount = 0;
+        long startTime = Long.MAX_VALUE, finishTime = Long.MIN_VALUE;
+        boolean complete = true;
+        for (final Path summary : summaries) {
+            final Map<String, List<String>> content = new LinkedHashMap<>();
+            final Map<String, String> lines = new LinkedHashMap<>();
+            try (final BufferedReader reader = Files.newBufferedReader(summary, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    final List<String> fields = parseCSVLine(line);
+                    final String key = fields.get(0).equals("failureSample") ? "failureSample." + content.size() : fields.get(0);
+                    content.put(key, fields.subList(1, fields.size()));
+                    lines.put(key, line);
+                }
+            }
+            contents.add(content);
+            contentLines.add(lines);
+            final Shard shard;
+            try {
+                shard = Shard.parse(value(content, "shard", summary));
+                final long start = Long.parseLong(value(content, "startTime", summary));
+                startTime = Math.min(startTime, start);
+                finishTime = Math.max(finishTime, start + Long.parseLong(value(content, "elapsedMillis", summary)));
+                for (int i = 0; i < JOB_COUNT_NAMES.length; ++i) {
+                    jobCounts[i] += Integer.parseInt(value(content, JOB_COUNT_NAMES[i], summary));
+                }
+            } catch (final IllegalArgumentException ex) {
+                throw new IOException("The summary is broken: ".concat(summary.toString()));
+            }
+            if (source == null) {
+                source = value(content, "source", summary);
+                fingerprint = value(content, "fingerprint", summary);
+                shardCount = shard.getCount();
+            } else if (!source.equals(value(content, "source", summary)) || !fingerprint.equals(value(content, "fingerprint", summary)) || shardCount != shard.getCount()) {
+                throw new IOException("The summaries are of different jobs: ".concat(summary.toString()));
+            }
+            if (shards.put(shard.getIndex(), summary) != null) {
+                throw new IOException("There are several summaries of the shard ".concat(shard.toString()));
+            }
+            complete &= Boolean.parseBoolean(value(content, "complete", summary));
+        }
+        for (int i = 1; i <= shardCount; ++i) {
+            if (!shards.containsKey(i)) {
+                throw new IOException(String.format("The shard %d/%d has no summary. It has not run or has not finished yet.", i, shardCount));
+            }
+        }
+
+        final ConversionStatistics statistics = new ConversionStatistics(jobCounts, startTime, finishTime - startTime, shardCount, complete);
+        for (int i = 0; i < contents.size(); ++i) {
+            for (final Map.Entry<String, List<String>> entry : contents.get(i).entrySet()) {
+                final String key = entry.getKey();
+                final List<String> values = entry.getValue();
+                try {
+                    if (values.isEmpty()) {
+                        throw new IllegalArgumentException();
+                    }
+                    final String value = values.get(0);
+                    if (key.startsWith("histogram.")) {
+                        statistics.stages.get(Stage.valueOf(key.substring("histogram.".length()).toUpperCase(Locale.ROOT))).merge(value);
+                    } else if (key.startsWith("format.")) {
+                        statistics.formats.computeIfAbsent(key.substring("format.".length()), k -> new LongAdder()).add(Long.parseLong(value));
+                    } else if (key.startsWith("size.")) {
+                        statistics.sizes.addAndGet(SizeBucket.ofName(key.substring("size.".length())).ordinal(), Long.parseLong(value));
+                    } else if (key.startsWith("failure.")) {
+                        statistics.failures.addAndGet(Stage.valueOf(key.substring("failure.".length()).toUpperCase(Locale.ROOT)).ordinal(), Long.parseLong(value));
+                    } else if (key.startsWith("failureSample.")) {
+                        if (values.size() != 3) {
+                            throw new IllegalArgumentException();
+                        }
+                        if (statistics.failureSampleCount.getAndIncrement() < MAX_FAILURE_SAMPLES) {
+                            statistics.failureSamples.add(values.toArray(new String[3]));
+                        }
+                    } else {
+                        switch (key) {
+                            case "passThroughs":
+                                statistics.passThroughs.add(Long.parseLong(value));
+                                break;
+                            case "failed":
+                                statistics.failureCount.addAndGet(Long.parseLong(value));
+                                break;
+                            case "bytesRead":
+                                statistics.bytesRead.add(Long.parseLong(value));
+                                break;
+                            case "bytesWritten":
+                                statistics.bytesWritten.add(Long.parseLong(value));
+                                break;
+                            default:
+                                if (!SUMMARY_JOB_NAMES.contains(key)) {
+                                    throw new IllegalArgumentException();
+                                }
+                        }
+                    }
+                } catch (final IllegalArgumentException ex) {
+                    // a figure which cannot be added would make the report of the job silently wrong
+                    throw new IOException(String.format("The summary %s has an incorrect line: %s", summaries.get(i), contentLines.get(i).get(key)));
+                }
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Delete the summary of a shard in a destination folder. A shard deletes
+     * its summary when it starts a new run, so a merge never takes the
+     * summary of an earlier run for the one of a shard which has not
+     * finished.
+     *
+     * @param folder input the destination folder
+     * @param shard input the shard
+     * @throws IOException if the summary exists but cannot be deleted
+     */
+    public static void deleteShardSummary(final Path folder, final Shard shard) throws IOException {
+        Files.deleteIfExists(folder.resolve(shard.getSummaryName()));
+    }
+
+    /**
+     * Get the first value of a metric in a summary.
+     *
+     * @param content input the metrics of the summary
+     * @param name input the name of the metric
+     * @param summary input the summary file
+     * @return the value
+     * @throws IOException if the summary does not have the metric
+     */
+    private static String value(final Map<String, List<String>> content, final String name, final Path summary) throws IOException {
+        final List<String> values = content.get(name);
+        if (values == null || values.isEmpty()) {
+            throw new IOException("The summary is broken: ".concat(summary.toString()));
+        }
+        return values.get(0);
+    }
+
+    // -----Object Constant-----
+    /**
+     * The engine which runs the conversion, or null if the statistics are
+     * merged from shards.
+     */
+    private final ConversionEngine engine;
+    /**
+     * The time when the conversion started, in milliseconds since the epoch.
+     */
+    private final long startTime;
+    /**
+     * The time when the conversion started, in nanoseconds.
+     */
+    private final long startNanoTime;
+    /**
+     * The counts of the files of a job merged from shards, or null if the
+     * counts are kept by the engine.
+     */
+    private final int[] jobCounts;
+    /**
+     * The elapsed time of a job merged from shards, in milliseconds.
+     */
+    private final long jobElapsedMillis;
+    /**
+     * The number of merged shards, or 0 if the statistics are of one
+     * process.
+     */
+    private final int shardCount;
+    /**
+     * Whether all merged shards have finished.
+     */
+    private final boolean shardsComplete;
+    /**
+     * The latency histograms of the stages.
+     */
+    private final EnumMap<Stage, LatencyHistogram> stages = new EnumMap<>(Stage.class);
+    /**
+     * The numbers of failures in each stage.
+     */
+    private final AtomicLongArray failures = new AtomicLongArray(Stage.values().length);
+    /**
+     * The numbers of images of each size bucket.
+     */
+    private final AtomicLongArray sizes = new AtomicLongArray(SizeBucket.values().length);
+    /**
+     * The numbers of images of each format.
+     */
+    private final ConcurrentHashMap<String, LongAdder> formats = new ConcurrentHashMap<>();
+    /**
+     * The details of the first failures.
+     */
+    private final ConcurrentLinkedQueue<String[]> failureSamples = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of kept failure details.
+     */
+    private final AtomicInteger failureSampleCount = new AtomicInteger();
+    /**
+     * The number of bytes read from source files.
+     */
+    private final LongAdder bytesRead = new LongAdder();
+    /**
+     * The number of bytes written to output files.
+     */
+    private final LongAdder bytesWritten = new LongAdder();
+    /**
+     * The number of outputs which are the source files as they are.
+     */
+    private final LongAdder passThroughs = new LongAdder();
+    /**
+     * The number of failed images.
+     */
+    private final AtomicLong failureCount = new AtomicLong();
+
+    // -----Object Variable-----
+    /**
+     * The time when the conversion finished, in nanoseconds, or 0 if it is
+     * running.
+     */
+    private volatile long finishNanoTime;
+
+    // -----Constructor-----
+    /**
+     * Construct the statistics of a conversion which starts now.
+     *
+     * @param engine input the engine which runs the conversion
+     */
+    public ConversionStatistics(final ConversionEngine engine) {
+        this.engine = engine;
+        this.startTime = System.currentTimeMillis();
+        this.startNanoTime = System.nanoTime();
+        this.jobCounts = null;
+        this.jobElapsedMillis = 0;
+        this.shardCount = 0;
+        this.shardsComplete = false;
+        for (final Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Construct the empty statistics of a job merged from shards.
+     *
+     * @param jobCounts input the counts of the files of the job
+     * @param startTime input the time when the earliest shard started, in
+     * milliseconds since the epoch
+     * @param elapsedMillis input the elapsed time of the job, in milliseconds
+     * @param shardCount input the number of shards
+     * @param complete whether all shards have finished
+     */
+    private ConversionStatistics(final int[] jobCounts, final long startTime, final long elapsedMillis, final int shardCount, final boolean complete) {
+        this.engine = null;
+        this.startTime = startTime;
+        this.startNanoTime = 0;
+        this.jobCounts = jobCounts;
+        this.jobElapsedMillis = elapsedMillis;
+        this.shardCount = shardCount;
+        this.shardsComplete = complete;
+        for (final Stage stage : Stage.values()) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    // -----Object Method-----
+    /**
+     * Record the latency of a stage.
+     *
+     * @param stage input the stage
+     * @param nanoseconds input the latency, in nanoseconds
+     */
+    public void recordStage(final Stage stage, final long nanoseconds) {
+        stages.get(stage).record(nanoseconds);
+    }
+
+    /**
+     * Record a source image which has been read.
+     *
+     * @param format input the filename extension of the image
+     * @param width input the width of the image, or -1 if unknown
+     * @param height input the height of the image, or -1 if unknown
+     * @param size input the size of the image file, in bytes
+     */
+    public void recordSource(final String format, final int width, final int height, final long size) {
+        formats.computeIfAbsent(format.toLowerCase(Locale.ROOT), k -> new LongAdder()).increment();
+        sizes.incrementAndGet(SizeBucket.of(width, height).ordinal());
+        bytesRead.add(size);
+    }
+
+    /**
+     * Record an output file which has been written.
+     *
+     * @param size input the size of the output file, in bytes
+     */
+    public void recordOutput(final long size) {
+        bytesWritten.add(size);
+    }
+
+    /**
+     * Record an output which is the source file as it is, because it needs
+     * no resizing.
+     */
+    public void recordPassThrough() {
+        passThroughs.increment();
+    }
+
+    /**
+     * Record a failure.
+     *
+     * @param stage input the stage where the conversion failed
+     * @param file input the source file
+     * @param cause input the cause
+     */
+    public void recordFailure(final Stage stage, final Path file, final Throwable cause) {
+        failures.incrementAndGet(stage.ordinal());
+        failureCount.incrementAndGet();
+        if (failureSampleCount.getAndIncrement() < MAX_FAILURE_SAMPLES) {
+            final String message = cause.getMessage();
+            failureSamples.add(new String[]{file.toString(), stage.getName(), message == null ? cause.getClass().getName() : cause.getClass().getName().concat(": ").concat(message)});
+        }
+    }
+
+    /**
+     * Mark the conversion as finished, so the elapsed time stops.
+     */
+    public void finish() {
+        finishNanoTime = System.nanoTime();
+    }
+
+    /**
+     * Get the latency histogram of a stage.
+     *
+     * @param stage input a stage
+     * @return the histogram
+     */
+    public LatencyHistogram getHistogram(final Stage stage) {
+        return stages.get(stage);
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        if (jobCounts != null) {
+            return jobElapsedMillis;
+        }
+        final long finish = finishNanoTime;
+        return ((finish == 0 ? System.nanoTime() : finish) - startNanoTime) / 1000000;
+    }
+
+    @Override
+    public int getDiscoveredCount() {
+        return jobCounts == null ? engine.getDiscoveredCount() : jobCounts[JOB_DISCOVERED];
+    }
+
+    @Override
+    public int getDoneCount() {
+        return jobCounts == null ? engine.getDoneCount() : jobCounts[JOB_DONE];
+    }
+
+    @Override
+    public int getSuccessCount() {
+        return jobCounts == null ? engine.getSuccessCount() : jobCounts[JOB_SUCCESS];
+    }
+
+    @Override
+    public int getSkippedCount() {
+        return jobCounts == null ? engine.getSkippedCount() : jobCounts[JOB_SKIPPED];
+    }
+
+    @Override
+    public int getDuplicateCount() {
+        return jobCounts == null ? engine.getDuplicateCount() : jobCounts[JOB_DUPLICATES];
+    }
+
+    @Override
+    public long getPassThroughCount() {
+        return passThroughs.sum();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public double getImagesPerSecond() {
+        final long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : (getDoneCount() - getSkippedCount() - getDuplicateCount()) * 1000.0 / elapsed;
+    }
+
+    @Override
+    public double getMegabytesPerSecond() {
+        final long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : getBytesRead() / 1048576.0 * 1000.0 / elapsed;
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanMillis() {
+        final Map<String, Double> map = new LinkedHashMap<>();
+        for (final Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            map.put(entry.getKey().getName(), entry.getValue().getMeanMillis());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Millis() {
+        final Map<String, Double> map = new LinkedHashMap<>();
+        for (final Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            map.put(entry.getKey().getName(), entry.getValue().getPercentileMillis(99));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getFormatCounts() {
+        final Map<String, Long> map = new TreeMap<>();
+        formats.forEach((format, count) -> map.put(format, count.sum()));
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getSizeCounts() {
+        final Map<String, Long> map = new LinkedHashMap<>();
+        for (final SizeBucket bucket : SizeBucket.values()) {
+            map.put(bucket.getName(), sizes.get(bucket.ordinal()));
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        final Map<String, Long> map = new LinkedHashMap<>();
+        for (final Stage stage : Stage.values()) {
+            if (stage != Stage.TOTAL) {
+                map.put(stage.getName(), failures.get(stage.ordinal()));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Get the number of workers of the conversion, or of all shards.
+     *
+     * @return the number of workers
+     */
+    public int getWorkerCount() {
+        return jobCounts == null ? engine.getWorkerCount() : jobCounts[JOB_WORKERS];
+    }
+
+    /**
+     * Get the number of shards which the statistics are merged from.
+     *
+     * @return the number of shards, or 0 if the statistics are of one
+     * process
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Check whether the job has finished: the scan has finished and every
+     * discovered file is done. A job merged from shards has finished if all
+     * of its shards have.
+     *
+     * @return true if the job has finished
+     */
+    public boolean isComplete() {
+        if (jobCounts != null) {
+            return shardsComplete;
+        }
+        return engine.isScanFinished() && !engine.isStopping() && getDoneCount() == getDiscoveredCount();
+    }
+
+    /**
+     * Get the details of the first failures.
+     *
+     * @return the source files, the stages and the causes
+     */
+    public List<String[]> getFailureSamples() {
+        return Collections.unmodifiableList(new ArrayList<>(failureSamples));
+    }
+
+    /**
+     * Register the statistics as the JMX bean, replacing the statistics of a
+     * previous conversion. If it cannot be registered, the error is printed
+     * on the standard error stream and the conversion goes on.
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (final JMException | RuntimeException ex) {
+            // the conversion goes on without the bean, but monitors would wait for it silently
+            System.err.println("Cannot register the statistics through JMX: ".concat(String.valueOf(ex)));
+        }
+    }
+
+    /**
+     * Write the summary figures of the report, as name-value pairs.
+     *
+     * @return the figures, in order
+     */
+    private Map<String, String> summary() {
+        final Map<String, String> map = new LinkedHashMap<>();
+        map.put("version", quote(Version.getVersion()));
+        map.put("startTime", quote(Instant.ofEpochMilli(startTime).toString()));
+        map.put("elapsedMillis", String.valueOf(getElapsedMillis()));
+        map.put("workers", String.valueOf(getWorkerCount()));
+        if (shardCount > 0) {
+            map.put("shards", String.valueOf(shardCount));
+            map.put("complete", String.valueOf(shardsComplete));
+        }
+        map.put("discovered", String.valueOf(getDiscoveredCount()));
+        map.put("done", String.valueOf(getDoneCount()));
+        map.put("success", String.valueOf(getSuccessCount()));
+        map.put("skipped", String.valueOf(getSkippedCount()));
+        map.put("duplicates", String.valueOf(getDuplicateCount()));
+        map.put("passThroughs", String.valueOf(getPassThroughCount()));
+        map.put("failed", String.valueOf(getFailureCount()));
+        map.put("bytesRead", String.valueOf(getBytesRead()));
+        map.put("bytesWritten", String.valueOf(getBytesWritten()));
+        map.put("imagesPerSecond", format(getImagesPerSecond()));
+        map.put("megabytesPerSecond", format(getMegabytesPerSecond()));
+        return map;
+    }
+
+    /**
+     * Write the statistics as JSON.
+     *
+     * @param writer input a writer
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeJSON(final Writer writer) throws IOException {
+        writer.write("{\n");
+        for (final Map.Entry<String, String> entry : summary().entrySet()) {
+            writer.write("  " + quote(entry.getKey()) + ": " + entry.getValue() + ",\n");
+        }
+        writer.write("  \"stages\": {");
+        boolean first = true;
+        for (final Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            final LatencyHistogram histogram = entry.getValue();
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("    " + quote(entry.getKey().getName()) + ": {\"count\": " + histogram.getCount() + ", \"totalMillis\": " + format(histogram.getTotalMillis()) + ", \"meanMillis\": " + format(histogram.getMeanMillis()));
+            for (final int percentile : PERCENTILES) {
+                writer.write(", \"p" + percentile + "Millis\": " + format(histogram.getPercentileMillis(percentile)));
+            }
+            writer.write(", \"maxMillis\": " + format(histogram.getMaxMillis()) + "}");
+        }
+        writer.write("\n  },\n");
+        writeJSONObject(writer, "formats", getFormatCounts());
+        writer.write(",\n");
+        writeJSONObject(writer, "sizes", getSizeCounts());
+        writer.write(",\n");
+        writeJSONObject(writer, "failures", getFailureCounts());
+        writer.write(",\n  \"failureSamples\": [");
+        first = true;
+        for (final String[] sample : failureSamples) {
+            writer.write(first ? "\n" : ",\n");
+            first = false;
+            writer.write("    {\"file\": " + quote(sample[0]) + ", \"stage\": " + quote(sample[1]) + ", \"cause\": " + quote(sample[2]) + "}");
+        }
+        writer.write(first ? "]\n}\n" : "\n  ]\n}\n");
+    }
+
+    /**
+     * Write a map of counts as a JSON object.
+     *
+     * @param writer input a writer
+     * @param name input the name of the object
+     * @param map input the counts
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeJSONObject(final Writer writer, final String name, final Map<String, Long> map) throws IOException {
+        writer.write("  " + quote(name) + ": {");
+        boolean first = true;
+        for (final Map.Entry<String, Long> entry : map.entrySet()) {
+            writer.write(first ? "" : ", ");
+            first = false;
+            writer.write(quote(entry.getKey()) + ": " + entry.getValue());
+        }
+        writer.write("}");
+    }
+
+    /**
+     * Write the statistics as CSV, with one metric per line.
+     *
+     * @param writer input a writer
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeCSV(final Writer writer) throws IOException {
+        writer.write("metric,value\n");
+        for (final Map.Entry<String, String> entry : summary().entrySet()) {
+            final String value = entry.getValue();
+            writer.write(entry.getKey() + "," + csvField(value.startsWith("\"") ? value.substring(1, value.length() - 1) : value) + "\n");
+        }
+        for (final Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+            final String prefix = "stage." + entry.getKey().getName() + ".";
+            final LatencyHistogram histogram = entry.getValue();
+            writer.write(prefix + "count," + histogram.getCount() + "\n");
+            writer.write(prefix + "totalMillis," + format(histogram.getTotalMillis()) + "\n");
+            writer.write(prefix + "meanMillis," + format(histogram.getMeanMillis()) + "\n");
+            for (final int percentile : PERCENTILES) {
+                writer.write(prefix + "p" + percentile + "Millis," + format(histogram.getPercentileMillis(percentile)) + "\n");
+            }
+            writer.write(prefix + "maxMillis," + format(histogram.getMaxMillis()) + "\n");
+        }
+        for (final Map.Entry<String, Long> entry : getFormatCounts().entrySet()) {
+            writer.write(csvField("format." + entry.getKey()) + "," + entry.getValue() + "\n");
+        }
+        for (final Map.Entry<String, Long> entry : getSizeCounts().entrySet()) {
+            writer.write("size." + entry.getKey() + "," + entry.getValue() + "\n");
+        }
+        for (final Map.Entry<String, Long> entry : getFailureCounts().entrySet()) {
+            writer.write("failure." + entry.getKey() + "," + entry.getValue() + "\n");
+        }
+    }
+
+    /**
+     * Write the JSON and CSV reports into a folder.
+     *
+     * @param folder input the folder
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeReports(final Path folder) throws IOException {
+        Files.createDirectories(folder);
+        try (final Writer writer = Files.newBufferedWriter(folder.resolve(JSON_REPORT_NAME), StandardCharsets.UTF_8)) {
+            writeJSON(writer);
+        }
+        try (final Writer writer = Files.newBufferedWriter(folder.resolve(CSV_REPORT_NAME), StandardCharsets.UTF_8)) {
+            writeCSV(writer);
+        }
+    }
+
+    /**
+     * Write the summary of a shard into the destination folder, so it can be
+     * merged with the summaries of the other shards. The summary is a CSV
+     * file with one metric per line, like the CSV report, but its latencies
+     * are whole histograms. It is written to a temporary file first and then
+     * moved over the old summary, so a merge never reads half of it.
+     *
+     * @param folder input the destination folder
+     * @param shard input the shard
+     * @param source input the source folder
+     * @param fingerprint input the fingerprint of the settings
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeShardSummary(final Path folder, final Shard shard, final Path source, final long fingerprint) throws IOException {
+        Files.createDirectories(folder);
+        final Path file = folder.resolve(shard.getSummaryName());
+        final Path temp = file.resolveSibling(file.getFileName().toString().concat(".tmp"));
+        try (final Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("metric,value\n");
+            writer.write("shard," + shard + "\n");
+            writer.write("source," + csvField(source.toAbsolutePath().toString()) + "\n");
+            writer.write("fingerprint," + fingerprint + "\n");
+            writer.write("complete," + isComplete() + "\n");
+            writer.write("startTime," + startTime + "\n");
+            writer.write("elapsedMillis," + getElapsedMillis() + "\n");
+            writer.write("workers," + getWorkerCount() + "\n");
+            writer.write("discovered," + getDiscoveredCount() + "\n");
+            writer.write("done," + getDoneCount() + "\n");
+            writer.write("success," + getSuccessCount() + "\n");
+            writer.write("skipped," + getSkippedCount() + "\n");
+            writer.write("duplicates," + getDuplicateCount() + "\n");
+            writer.write("passThroughs," + getPassThroughCount() + "\n");
+            writer.write("failed," + getFailureCount() + "\n");
+            writer.write("bytesRead," + getBytesRead() + "\n");
+            writer.write("bytesWritten," + getBytesWritten() + "\n");
+            for (final Map.Entry<Stage, LatencyHistogram> entry : stages.entrySet()) {
+                writer.write("histogram." + entry.getKey().getName() + "," + entry.getValue().encode() + "\n");
+            }
+            for (final Map.Entry<String, Long> entry : getFormatCounts().entrySet()) {
+                writer.write(csvField("format." + entry.getKey()) + "," + entry.getValue() + "\n");
+            }
+            for (final Map.Entry<String, Long> entry : getSizeCounts().entrySet()) {
+                writer.write("size." + entry.getKey() + "," + entry.getValue() + "\n");
+            }
+            for (final Map.Entry<String, Long> entry : getFailureCounts().entrySet()) {
+                writer.write("failure." + entry.getKey() + "," + entry.getValue() + "\n");
+            }
+            for (final String[] sample : failureSamples) {
+                writer.write("failureSample");
+                for (final String field : sample) {
+                    // one sample per line
+                    writer.write("," + csvField(field.replace('\n', ' ').replace('\r', ' ')));
+                }
+                writer.write("\n");
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.util.Map;
+
+/**
+ * The management interface of the statistics of a conversion, exposed
+ * through JMX.
+ *
+ * @author Magic Len
+ */
+public interface ConversionStatisticsMXBean {
+
+    /**
+     * Get the time when the conversion started.
+     *
+     * @return the time, in milliseconds since the epoch
+     */
+    public long getStartTime();
+
+    /**
+     * Get how long the conversion has run.
+     *
+     * @return the elapsed time, in milliseconds
+     */
+    public long getElapsedMillis();
+
+    /**
+     * Get the number of image files discovered so far.
+     *
+     * @return the number of discovered image files
+     */
+    public int getDiscoveredCount();
+
+    /**
+     * Get the number of handled image files.
+     *
+     * @return the number of handled image files
+     */
+    public int getDoneCount();
+
+    /**
+     * Get the number of successfully converted image files, including skipped
+     * ones.
+     *
+     * @return the number of successful image files
+     */
+    public int getSuccessCount();
+
+    /**
+     * Get the number of image files skipped because their outputs are up to
+     * date.
+     *
+     * @return the number of skipped image files
+     */
+    public int getSkippedCount();
+
+    /**
+     * Get the number of image files whose outputs are linked to the outputs
+     * of byte-identical files.
+     *
+     * @return the number of duplicate image files
+     */
+    public int getDuplicateCount();
+
+    /**
+     * Get the number of outputs which are the source files as they are,
+     * because they need no resizing.
+     *
+     * @return the number of outputs
+     */
+    public long getPassThroughCount();
+
+    /**
+     * Get the number of image files which cannot be converted.
+     *
+     * @return the number of failed image files
+     */
+    public long getFailureCount();
+
+    /**
+     * Get the number of bytes read from source image files.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesRead();
+
+    /**
+     * Get the number of bytes written to output files.
+     *
+     * @return the number of bytes
+     */
+    public long getBytesWritten();
+
+    /**
+     * Get the throughput of converted images.
+     *
+     * @return the number of images per second
+     */
+    public double getImagesPerSecond();
+
+    /**
+     * Get the throughput of source bytes.
+     *
+     * @return the number of megabytes per second
+     */
+    public double getMegabytesPerSecond();
+
+    /**
+     * Get the mean latency of each stage.
+     *
+     * @return the mean latencies in milliseconds, by the names of the stages
+     */
+    public Map<String, Double> getStageMeanMillis();
+
+    /**
+     * Get the 99th percentile latency of each stage.
+     *
+     * @return the latencies in milliseconds, by the names of the stages
+     */
+    public Map<String, Double> getStageP99Millis();
+
+    /**
+     * Get the number of converted images of each source format.
+     *
+     * @return the numbers of images, by the filename extensions
+     */
+    public Map<String, Long> getFormatCounts();
+
+    /**
+     * Get the number of converted images of each size bucket.
+     *
+     * @return the numbers of images, by the names of the size buckets
+     */
+    public Map<String, Long> getSizeCounts();
+
+    /**
+     * Get the number of failures in each stage.
+     *
+     * @return the numbers of failures, by the names of the stages
+     */
+    public Map<String, Long> getFailureCounts();
+}
@@ -0,0 +1,226 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An index of the contents of source files, used to convert byte-identical
+ * files only once. Files are grouped by their sizes first, and only files
+ * which share a size with another file are hashed, with a streaming SHA-256
+ * digest.
+ *
+ * @author Magic Len
+ */
+public class DuplicateIndex {
+
+    // -----Class Constant-----
+    /**
+     * The size of the buffer used for hashing.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // -----Class Class-----
+    /**
+     * A unique content. The first file registered with it is its original,
+     * which is converted; the other files wait for the outputs of the
+     * original.
+     */
+    public static final class Content {
+
+        /**
+         * The original file.
+         */
+        private final Path original;
+        /**
+         * The output files of the original, or null if it failed.
+         */
+        private final CompletableFuture<File[]> outputs = new CompletableFuture<>();
+
+        /**
+         * Construct a content.
+         *
+         * @param original input the original file
+         */
+        private Content(final Path original) {
+            this.original = original;
+        }
+
+        /**
+         * Check whether a file is the original of this content.
+         *
+         * @param file input a file
+         * @return true if the file is the original
+         */
+        public boolean isOriginal(final Path file) {
+            return original.equals(file);
+        }
+
+        /**
+         * Set the output files of the original. It must be called once by the
+         * worker which converts the original, even if the conversion fails.
+         *
+         * @param outputFiles input the output files, or null if the
+         * conversion fails
+         */
+        public void complete(final File[] outputFiles) {
+            outputs.complete(outputFiles);
+        }
+
+        /**
+         * Wait for the output files of the original.
+         *
+         * @return the output files, or null if the conversion of the original
+         * fails
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public File[] await() throws InterruptedException {
+            try {
+                return outputs.get();
+            } catch (final ExecutionException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The files which have the same size.
+     */
+    private static final class SizeGroup {
+
+        /**
+         * The first file of the size, which is not hashed until another file
+         * of the same size comes.
+         */
+        private Content unhashed;
+        /**
+         * Completed once the first file of the size has been hashed into the
+         * contents, or null if no other file of the same size has come yet.
+         */
+        private CompletableFuture<Void> firstHashed;
+        /**
+         * The contents of the size, keyed by their digests.
+         */
+        private final HashMap<ByteBuffer, Content> contents = new HashMap<>();
+    }
+
+    // -----Class Method-----
+    /**
+     * Compute the digest of a file.
+     *
+     * @param file input a file
+     * @return the digest
+     * @throws IOException if the file cannot be read
+     */
+    private static ByteBuffer digest(final Path file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    // -----Object Constant-----
+    /**
+     * The groups of files, keyed by their sizes.
+     */
+    private final ConcurrentHashMap<Long, SizeGroup> groups = new ConcurrentHashMap<>();
+
+    // -----Object Method-----
+    /**
+     * Register a file. If no registered file has the same content, the file
+     * becomes the original of a new content. Files are hashed outside the
+     * lock of their size group, so files of the same size are hashed in
+     * parallel.
+     *
+     * @param file input a file
+     * @param size input the size of the file
+     * @return the content of the file
+     */
+    public Content register(final Path file, final long size) {
+        final SizeGroup group = groups.computeIfAbsent(size, k -> new SizeGroup());
+        final Content first;
+        final CompletableFuture<Void> firstHashed;
+        synchronized (group) {
+            if (group.firstHashed == null) {
+                if (group.unhashed == null) {
+                    group.unhashed = new Content(file);
+                    return group.unhashed;
+                }
+                // another file of the same size has come, so this thread hashes the first one
+                first = group.unhashed;
+                group.unhashed = null;
+                group.firstHashed = new CompletableFuture<>();
+            } else {
+                first = null;
+            }
+            firstHashed = group.firstHashed;
+        }
+        if (first != null) {
+            try {
+                final ByteBuffer firstKey = digest(first.original);
+                synchronized (group) {
+                    group.contents.put(firstKey, first);
+                }
+            } catch (final IOException ex) {
+                //do nothing
+            } finally {
+                firstHashed.complete(null);
+            }
+        }
+        final ByteBuffer key;
+        try {
+            key = digest(file);
+        } catch (final IOException ex) {
+            // cannot be compared, so it is converted alone
+            return new Content(file);
+        }
+        // the first file can still be being hashed by another thread
+        firstHashed.join();
+        synchronized (group) {
+            final Content existing = group.contents.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            final Content content = new Content(file);
+            group.contents.put(key, content);
+            return content;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A batch of written files which are flushed to the storage device together.
+ * Flushing every file as soon as it is written makes each worker wait for the
+ * device; flushing them in one batch later lets the operating system write
+ * most of their pages back in the meantime. Files can be added by several
+ * threads at the same time.
+ *
+ * @author Magic Len
+ */
+public final class FileSyncBatch {
+
+    // -----Object Constant-----
+    /**
+     * The files which have not been flushed.
+     */
+    private final ConcurrentLinkedQueue<Path> files = new ConcurrentLinkedQueue<>();
+
+    // -----Object Method-----
+    /**
+     * Add written files to the batch.
+     *
+     * @param writtenFiles input the files
+     */
+    public void add(final File... writtenFiles) {
+        for (final File file : writtenFiles) {
+            files.add(file.toPath().toAbsolutePath());
+        }
+    }
+
+    /**
+     * Flush the files in the batch, and then the folders which contain them,
+     * so their entries are durable, too. Folders are skipped where they
+     * cannot be opened, such as on Windows. The batch is empty afterward.
+     *
+     * @throws IOException if a file cannot be flushed. The other files are
+     * still flushed
+     */
+    public synchronized void sync() throws IOException {
+        final LinkedHashSet<Path> folders = new LinkedHashSet<>();
+        IOException failure = null;
+        Path file;
+        while ((file = files.poll()) != null) {
+            try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (final NoSuchFileException ex) {
+                // it has been removed, so there is nothing to flush
+                continue;
+            } catch (final IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                }
+            }
+            final Path folder = file.getParent();
+            if (folder != null) {
+                folders.add(folder);
+            }
+        }
+        for (final Path folder : folders) {
+            try (final FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (final IOException ex) {
+                //do nothing
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
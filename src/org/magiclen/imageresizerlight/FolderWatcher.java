@@ -0,0 +1,358 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Watch a folder for image files which are created or modified, through the
+ * WatchService of the file system. A file is handed over only after it has
+ * stayed unchanged for a quiet period, so files which are still being written
+ * or copied are not read too early.
+ *
+ * @author Magic Len
+ */
+public class FolderWatcher implements Closeable {
+
+    // -----Class Constant-----
+    /**
+     * The default quiet period, in milliseconds.
+     */
+    public static final long DEFAULT_QUIET_PERIOD_MILLISECONDS = 200;
+    /**
+     * How long the watcher waits for events before checking whether it needs
+     * to stop, in milliseconds.
+     */
+    private static final long POLL_TIMEOUT_MILLISECONDS = 100;
+
+    // -----Class Interface-----
+    /**
+     * Handle image files which have stayed unchanged for the quiet period. It
+     * is called by the watching thread.
+     */
+    public static interface Handler {
+
+        /**
+         * Handle an image file.
+         *
+         * @param file the image file
+         * @param attributes the attributes of the image file
+         * @return false to hand over the file again after another quiet period
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public boolean handle(final Path file, final BasicFileAttributes attributes) throws InterruptedException;
+    }
+
+    // -----Class Class-----
+    /**
+     * An image file which is waiting for its quiet period to pass.
+     */
+    private static final class PendingFile {
+
+        /**
+         * When the quiet period passes, in nanoseconds.
+         */
+        private long deadline;
+        /**
+         * The size of the file when it was last seen.
+         */
+        private long size = -1;
+        /**
+         * The last modified time of the file when it was last seen, in
+         * milliseconds.
+         */
+        private long lastModified = -1;
+    }
+
+    // -----Object Constant-----
+    /**
+     * The watched folder.
+     */
+    private final Path folder;
+    /**
+     * Whether to extend to subfolders.
+     */
+    private final boolean recursive;
+    /**
+     * A folder which is not watched, or null.
+     */
+    private final Path excluded;
+    /**
+     * The quiet period, in nanoseconds.
+     */
+    private final long quietPeriod;
+    /**
+     * The watch service.
+     */
+    private final WatchService watchService;
+    /**
+     * The watched folders of the keys.
+     */
+    private final HashMap<WatchKey, Path> folders = new HashMap<>();
+    /**
+     * The image files which are waiting for their quiet periods to pass.
+     */
+    private final HashMap<Path, PendingFile> pendingFiles = new HashMap<>();
+
+    // -----Constructor-----
+    /**
+     * Construct a watcher of a folder. The folder and its subfolders are
+     * watched once they are given to the watchFolder method, which is meant to
+     * be called while they are scanned, so the tree is not walked twice.
+     * Events which happen before the watch method is called are kept.
+     *
+     * @param folder input a folder
+     * @param recursive whether to extend to subfolders, including the ones
+     * which are created later
+     * @param excluded input a folder which is not watched, or null
+     * @param quietPeriod input the quiet period, in milliseconds
+     * @throws IOException if the watch service cannot be created
+     */
+    public FolderWatcher(final Path folder, final boolean recursive, final Path excluded, final long quietPeriod) throws IOException {
+        if (quietPeriod < 0) {
+            throw new IllegalArgumentException("The quiet period cannot be negative.");
+        }
+        this.folder = folder.toAbsolutePath();
+        this.recursive = recursive;
+        this.excluded = excluded == null ? null : excluded.toAbsolutePath();
+        this.quietPeriod = TimeUnit.MILLISECONDS.toNanos(quietPeriod);
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    // -----Object Method-----
+    /**
+     * Start watching a folder, which is the watched folder or one of its
+     * subfolders, without its subfolders. Image files which are created in it
+     * before this method is called are not handed over, so it needs to be
+     * called before the folder is listed. It can be called by several threads
+     * at the same time, before the watch method is called.
+     *
+     * @param dir input a folder
+     * @throws IOException if the folder cannot be watched
+     */
+    public void watchFolder(final Path dir) throws IOException {
+        final Path absoluteDir = dir.toAbsolutePath();
+        if (excluded != null && absoluteDir.startsWith(excluded)) {
+            return;
+        }
+        final WatchKey key = absoluteDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        synchronized (folders) {
+            folders.put(key, absoluteDir);
+        }
+    }
+
+    /**
+     * Register a folder, and its subfolders in the recursive mode. The image
+     * files in the folders are put into the pending files, because they can
+     * have been created before the folders were registered.
+     *
+     * @param start input a folder
+     * @throws IOException if the folder cannot be registered
+     */
+    private void register(final Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) throws IOException {
+                if (excluded != null && dir.startsWith(excluded)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchFolder(dir);
+                return recursive || dir.equals(folder) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && ImageFileScanner.isSupportedImage(file.getFileName().toString())) {
+                    schedule(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException ex) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Put an image file into the pending files, or restart its quiet period
+     * if it is already there.
+     *
+     * @param file input an image file
+     */
+    private void schedule(final Path file) {
+        final PendingFile pendingFile = pendingFiles.computeIfAbsent(file, key -> new PendingFile());
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            pendingFile.size = attributes.size();
+            pendingFile.lastModified = attributes.lastModifiedTime().toMillis();
+        } catch (final IOException ex) {
+            pendingFile.size = -1;
+        }
+        pendingFile.deadline = System.nanoTime() + quietPeriod;
+    }
+
+    /**
+     * Handle the events of a key.
+     *
+     * @param key input a key which has been signalled
+     */
+    private void handleEvents(final WatchKey key) {
+        final Path dir;
+        synchronized (folders) {
+            dir = folders.get(key);
+        }
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // some events are lost, so look at every file again
+                try {
+                    register(folder);
+                } catch (final IOException ex) {
+                    //do nothing
+                }
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            final Path child = dir.resolve((Path) event.context());
+            if (Files.isDirectory(child)) {
+                if (recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    try {
+                        register(child);
+                    } catch (final IOException ex) {
+                        //do nothing
+                    }
+                }
+            } else if (ImageFileScanner.isSupportedImage(child.getFileName().toString())) {
+                schedule(child);
+            }
+        }
+        if (!key.reset()) {
+            // the folder has been deleted
+            synchronized (folders) {
+                folders.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Hand over the pending files whose quiet periods have passed and which
+     * have not changed since they were last seen.
+     *
+     * @param handler input a handler to handle image files
+     * @return the time until the next quiet period passes, in nanoseconds, or
+     * Long.MAX_VALUE if there is no pending file
+     * @throws InterruptedException if the handler is interrupted
+     */
+    private long handlePendingFiles(final Handler handler) throws InterruptedException {
+        final long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        final Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, PendingFile> entry = iterator.next();
+            final PendingFile pendingFile = entry.getValue();
+            if (pendingFile.deadline - now > 0) {
+                next = Math.min(next, pendingFile.deadline - now);
+                continue;
+            }
+            final Path file = entry.getKey();
+            final BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (final IOException ex) {
+                // it has been deleted or moved away
+                iterator.remove();
+                continue;
+            }
+            if (!attributes.isRegularFile()) {
+                iterator.remove();
+                continue;
+            }
+            final long size = attributes.size();
+            final long lastModified = attributes.lastModifiedTime().toMillis();
+            // writers can pause without sending events, so the file also needs to look the same twice
+            if ((size == pendingFile.size && lastModified == pendingFile.lastModified) && handler.handle(file, attributes)) {
+                iterator.remove();
+                continue;
+            }
+            pendingFile.size = size;
+            pendingFile.lastModified = lastModified;
+            pendingFile.deadline = now + quietPeriod;
+            next = Math.min(next, quietPeriod);
+        }
+        return next;
+    }
+
+    /**
+     * Watch the folder. This method blocks until it needs to stop or this
+     * watcher is closed.
+     *
+     * @param handler input a handler to handle image files
+     * @param stopping input a condition which tells whether to stop
+     * @throws InterruptedException if the current thread or the handler is
+     * interrupted
+     */
+    public void watch(final Handler handler, final BooleanSupplier stopping) throws InterruptedException {
+        try {
+            long timeout = 0;
+            while (!stopping.getAsBoolean()) {
+                final WatchKey key = watchService.poll(Math.min(TimeUnit.NANOSECONDS.toMillis(timeout) + 1, POLL_TIMEOUT_MILLISECONDS), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handleEvents(key);
+                    // take the other signalled keys without waiting
+                    WatchKey other;
+                    while ((other = watchService.poll()) != null) {
+                        handleEvents(other);
+                    }
+                }
+                timeout = handlePendingFiles(handler);
+            }
+        } catch (final ClosedWatchServiceException ex) {
+            //do nothing
+        }
+    }
+
+    /**
+     * Stop watching and release the watch service.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
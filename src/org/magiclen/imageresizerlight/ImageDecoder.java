@@ -0,0 +1,277 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import org.apache.commons.imaging.ImageReadException;
+import org.apache.commons.imaging.Imaging;
+
+/**
+ * Decode image files. The header of an image is read first, so that an image
+ * which is much bigger than the target size can be decoded straight at a
+ * reduced resolution. Only the first frame of multi-frame images, such as
+ * animated GIF files and multi-page TIFF files, is decoded. Files are read
+ * through channel image input streams in large blocks.
+ *
+ * @author Magic Len
+ */
+public final class ImageDecoder {
+
+    // -----Class Interface-----
+    /**
+     * Receive the header of an image before its pixels are decoded.
+     */
+    public static interface HeaderListener {
+
+        /**
+         * Called before the pixels of an image are decoded. It is called
+         * again with the subsampling 1 if Image I/O fails after it was
+         * called with a bigger subsampling, because the image is then
+         * decoded at its full size without Image I/O.
+         *
+         * @param width the width of the source image, or -1 if unknown
+         * @param height the height of the source image, or -1 if unknown
+         * @param subsampling the subsampling which will be used
+         * @return true to go on decoding; false to stop, and then the decoder
+         * returns null
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public boolean onHeader(final int width, final int height, final int subsampling) throws InterruptedException;
+    }
+
+    // -----Class Method-----
+    /**
+     * Compute the largest power-of-two subsampling whose result is still not
+     * smaller than the target size.
+     *
+     * @param width input the width of the source image
+     * @param height input the height of the source image
+     * @param targetMaxSide input the length of the max side of the target
+     * image. If it is not bigger than zero, the image is not subsampled
+     * @return the subsampling, at least 1
+     */
+    public static int computeSubsampling(final int width, final int height, final int targetMaxSide) {
+        if (targetMaxSide <= 0) {
+            return 1;
+        }
+        final int maxSide = Math.max(width, height);
+        int subsampling = 1;
+        while (maxSide / (subsampling * 2) >= targetMaxSide) {
+            subsampling *= 2;
+        }
+        return subsampling;
+    }
+
+    /**
+     * Decode the first frame of an image file at full resolution. The other
+     * frames are never read.
+     *
+     * @param file input an image file
+     * @return the first frame
+     * @throws IOException if the image cannot be decoded
+     */
+    public static BufferedImage decodeFirstFrame(final File file) throws IOException {
+        return decode(file, 0);
+    }
+
+    /**
+     * Decode the first frame of an image file. If the image is at least twice
+     * as big as the target size, it is decoded at a reduced resolution which
+     * is still not smaller than the target size, so the resampler can do the
+     * final high-quality step.
+     *
+     * @param file input an image file
+     * @param targetMaxSide input the length of the max side of the target
+     * image, or 0 to decode at full resolution
+     * @return the image
+     * @throws IOException if the image cannot be decoded
+     */
+    public static BufferedImage decode(final File file, final int targetMaxSide) throws IOException {
+        try {
+            return decode(file, targetMaxSide, null);
+        } catch (final InterruptedException ex) {
+            // no listener, never happens
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Decode the first frame of an image file. The header of the image is
+     * given to the listener before the pixels are decoded, so the caller can
+     * decide when to let the decoding go on.
+     *
+     * @param file input an image file
+     * @param targetMaxSide input the length of the max side of the target
+     * image, or 0 to decode at full resolution
+     * @param listener input a listener to receive the header, or null
+     * @return the image, or null if the listener stops the decoding
+     * @throws IOException if the image cannot be decoded
+     * @throws InterruptedException if the listener is interrupted
+     */
+    public static BufferedImage decode(final File file, final int targetMaxSide, final HeaderListener listener) throws IOException, InterruptedException {
+        return decode(file, targetMaxSide, listener, null);
+    }
+
+    /**
+     * Decode the first frame of an image file with the readers of a context.
+     * If the image has a common type and is not too big, it is decoded into a
+     * pooled raster of the context, and the returned image is only valid until
+     * the next image is decoded with the same context.
+     *
+     * @param file input an image file
+     * @param targetMaxSide input the length of the max side of the target
+     * image, or 0 to decode at full resolution
+     * @param listener input a listener to receive the header, or null
+     * @param context input a context, or null to create the reader and the
+     * raster for this image only
+     * @return the image, or null if the listener stops the decoding
+     * @throws IOException if the image cannot be decoded
+     * @throws InterruptedException if the listener is interrupted
+     */
+    public static BufferedImage decode(final File file, final int targetMaxSide, final HeaderListener listener, final CodecContext context) throws IOException, InterruptedException {
+        // the subsampling which the listener has been told, or 0 if it has not been told
+        int notifiedSubsampling = 0;
+        int width = -1, height = -1;
+        try (final ImageInputStream iis = new ChannelImageInputStream(file, context != null ? context.getReadWindow() : null)) {
+            final ImageReader reader;
+            if (context != null) {
+                reader = context.getReader(iis);
+            } else {
+                final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                reader = readers.hasNext() ? readers.next() : null;
+            }
+            if (reader != null) {
+                try {
+                    // seeking forward only and ignoring metadata let the reader stop after the first frame
+                    reader.setInput(iis, true, true);
+                    width = reader.getWidth(0);
+                    height = reader.getHeight(0);
+                    final int subsampling = computeSubsampling(width, height, targetMaxSide);
+                    if (listener != null) {
+                        notifiedSubsampling = subsampling;
+                        if (!listener.onHeader(width, height, subsampling)) {
+                            return null;
+                        }
+                    }
+                    final ImageReadParam param = reader.getDefaultReadParam();
+                    if (subsampling > 1) {
+                        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    }
+                    if (context != null) {
+                        final int decodedWidth = (width + subsampling - 1) / subsampling;
+                        final int decodedHeight = (height + subsampling - 1) / subsampling;
+                        final BufferedImage destination = getPooledDestination(reader, context, decodedWidth, decodedHeight);
+                        if (destination != null) {
+                            param.setDestination(destination);
+                            return reader.read(0, param);
+                        }
+                    }
+                    return reader.read(0, param);
+                } catch (final IOException | RuntimeException ex) {
+                    // some images, such as CMYK JPEG files, are not supported by Image I/O
+                } finally {
+                    if (context != null) {
+                        reader.reset();
+                    } else {
+                        reader.dispose();
+                    }
+                }
+            }
+        }
+        if (listener != null && notifiedSubsampling != 1) {
+            if (notifiedSubsampling == 0) {
+                try {
+                    final Dimension size = Imaging.getImageSize(file);
+                    width = size.width;
+                    height = size.height;
+                } catch (final ImageReadException | IOException | RuntimeException ex) {
+                    //do nothing
+                }
+            }
+            // the fallback decodes the whole image, which is bigger than the subsampled one the listener was told of
+            if (!listener.onHeader(width, height, 1)) {
+                return null;
+            }
+        }
+        return decodeFirstFrameWithoutImageIO(file);
+    }
+
+    /**
+     * Get a pooled raster which the first frame of an image can be decoded
+     * into. Only the common types, whose pixels the reader overwrites
+     * completely, are pooled.
+     *
+     * @param reader input the reader of the image
+     * @param context input a context
+     * @param width input the width of the decoded image
+     * @param height input the height of the decoded image
+     * @return the raster, or null if the image cannot be decoded into a
+     * pooled raster
+     * @throws IOException if the types of the image cannot be read
+     */
+    private static BufferedImage getPooledDestination(final ImageReader reader, final CodecContext context, final int width, final int height) throws IOException {
+        // the reader decodes into its first type unless it is told otherwise
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types == null || !types.hasNext()) {
+            return null;
+        }
+        return context.getRaster(types.next().getBufferedImageType(), width, height);
+    }
+
+    /**
+     * Decode the first frame of an image file without Image I/O. Unlike
+     * ImageBuffer.getBufferedImages, it does not materialize all frames.
+     *
+     * @param file input an image file
+     * @return the first frame
+     * @throws IOException if the image cannot be decoded
+     */
+    private static BufferedImage decodeFirstFrameWithoutImageIO(final File file) throws IOException {
+        BufferedImage image = null;
+        try {
+            image = Imaging.getBufferedImage(file);
+        } catch (final ImageReadException | IOException | RuntimeException ex) {
+            try {
+                image = com.icafe4j.image.ImageIO.read(file);
+            } catch (final Exception ex2) {
+                //do nothing
+            }
+        }
+        if (image == null) {
+            throw new IOException("Cannot decode the image: ".concat(file.getAbsolutePath()));
+        }
+        return image;
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageDecoder() {
+
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Encode images into JPEG files in process. Progressive (interlaced) JPEG
+ * files are written in one encoding pass, so no external program is needed.
+ *
+ * @author Magic Len
+ */
+public final class ImageEncoder {
+
+    // -----Class Constant-----
+    /**
+     * The filename extension of output files.
+     */
+    public static final String JPEG_EXTEND = "jpg";
+    /**
+     * The color which transparent pixels are flattened onto.
+     */
+    private static final Color BACKGROUND = Color.WHITE;
+    /**
+     * The maximum number of encodes used to search for the quality which
+     * meets a target size.
+     */
+    public static final int MAX_QUALITY_PROBES = 8;
+    /**
+     * The search for the quality which meets a target size stops when the
+     * quality is known to this precision.
+     */
+    private static final float QUALITY_PRECISION = 0.01f;
+
+    // -----Class Class-----
+    /**
+     * A growable buffer of encoded bytes which an image writer can write into
+     * directly. It can be rewound and reused by any number of encodes, so
+     * its array is only allocated again when an output is bigger than all
+     * outputs before.
+     */
+    public static final class EncodeBuffer extends ImageOutputStreamImpl {
+
+        /**
+         * The initial capacity of a buffer.
+         */
+        private static final int INITIAL_CAPACITY = 1 << 16;
+        /**
+         * The maximum capacity of a buffer.
+         */
+        private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+        /**
+         * The bytes. Only the first length bytes are valid.
+         */
+        private byte[] bytes = new byte[0];
+        /**
+         * The number of valid bytes.
+         */
+        private int length;
+
+        /**
+         * Get the array of the bytes. It can be longer than the valid bytes.
+         *
+         * @return the array
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Get the number of valid bytes.
+         *
+         * @return the number of valid bytes
+         */
+        public int size() {
+            return length;
+        }
+
+        /**
+         * Copy the valid bytes into a new array.
+         *
+         * @return the valid bytes
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        /**
+         * Empty this buffer, and keep its array for the next encode.
+         */
+        public void rewind() {
+            length = 0;
+            streamPos = 0;
+            flushedPos = 0;
+            bitOffset = 0;
+        }
+
+        /**
+         * Empty this buffer and drop its array.
+         */
+        public void release() {
+            rewind();
+            bytes = new byte[0];
+        }
+
+        /**
+         * Replace the bytes of this buffer with the bytes of a file, such as
+         * a source image which is written as an output as it is. The file is
+         * read through a file channel straight into the array.
+         *
+         * @param file input a file
+         * @throws IOException if the file cannot be read
+         */
+        public void readFile(final File file) throws IOException {
+            rewind();
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                prepare(size);
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("The file is truncated while it is being read: ".concat(file.getAbsolutePath()));
+                    }
+                }
+                length = (int) size;
+            }
+        }
+
+        /**
+         * Make sure the array can hold the bytes before a position, and fill
+         * the gap after the valid bytes with zeros.
+         *
+         * @param end input the position
+         * @throws IOException if the buffer cannot be so big
+         */
+        private void prepare(final long end) throws IOException {
+            if (end > MAX_CAPACITY) {
+                throw new IOException("The encoded image is too big.");
+            }
+            if (end > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(MAX_CAPACITY, Math.max(end, Math.max(INITIAL_CAPACITY, (long) bytes.length * 2))));
+            }
+            if (streamPos > length) {
+                Arrays.fill(bytes, length, (int) streamPos, (byte) 0);
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            flushBits();
+            prepare(streamPos + 1);
+            bytes[(int) streamPos++] = (byte) b;
+            length = (int) Math.max(length, streamPos);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            flushBits();
+            prepare(streamPos + len);
+            System.arraycopy(b, off, bytes, (int) streamPos, len);
+            streamPos += len;
+            length = (int) Math.max(length, streamPos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            bitOffset = 0;
+            if (streamPos >= length) {
+                return -1;
+            }
+            return bytes[(int) streamPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            bitOffset = 0;
+            if (len == 0) {
+                return 0;
+            }
+            if (streamPos >= length) {
+                return -1;
+            }
+            final int n = (int) Math.min(len, length - streamPos);
+            System.arraycopy(bytes, (int) streamPos, b, off, n);
+            streamPos += n;
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void close() {
+            // nothing is held but the array, which is reused
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Adjust the output file. Its filename extension is changed to "jpg"
+     * unless it is already "jpg" or "jpeg". If the file exists and it cannot
+     * be overwritten, a number is appended to its name. The returned file is
+     * created atomically, so workers never pick the same name.
+     *
+     * @param file input an output file
+     * @param overwrite whether to overwrite an existing file
+     * @return the adjusted output file, which exists and is empty
+     * @throws IOException if the file cannot be created
+     */
+    public static File adjustOutputFile(final File file, final boolean overwrite) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        final String name = file.getName();
+        final int dotIndex = name.lastIndexOf('.');
+        final String base;
+        final String extend;
+        if (dotIndex > 0) {
+            final String e = name.substring(dotIndex + 1);
+            base = name.substring(0, dotIndex);
+            extend = e.equalsIgnoreCase("jpg") || e.equalsIgnoreCase("jpeg") ? e : JPEG_EXTEND;
+        } else {
+            base = name;
+            extend = JPEG_EXTEND;
+        }
+        File outputFile = new File(parent, base.concat(".").concat(extend));
+        if (overwrite) {
+            Files.deleteIfExists(outputFile.toPath());
+        }
+        for (int i = 1;; ++i) {
+            try {
+                Files.createFile(outputFile.toPath());
+                return outputFile;
+            } catch (final FileAlreadyExistsException ex) {
+                outputFile = new File(parent, base.concat("-").concat(String.valueOf(i)).concat(".").concat(extend));
+            }
+        }
+    }
+
+    /**
+     * Convert an image to the RGB type which JPEG encoders accept. Transparent
+     * pixels are flattened onto a white background.
+     *
+     * @param image input an image
+     * @return the RGB image, or the input image if it is already RGB
+     */
+    public static BufferedImage toRGB(final BufferedImage image) {
+        return toRGB(image, null);
+    }
+
+    /**
+     * Convert an image to the RGB type which JPEG encoders accept, into the
+     * pooled raster of a context if possible. Transparent pixels are
+     * flattened onto a white background. With a context, images of
+     * TYPE_INT_RGB are also copied into the pooled raster, because the JPEG
+     * writer makes a much bigger temporary copy of them than of images of
+     * TYPE_3BYTE_BGR.
+     *
+     * @param image input an image
+     * @param context input a context, or null
+     * @return the RGB image, or the input image if it is already RGB
+     */
+    private static BufferedImage toRGB(final BufferedImage image, final CodecContext context) {
+        final int type = image.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || (type == BufferedImage.TYPE_INT_RGB && context == null)) {
+            return image;
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final BufferedImage pooled = context == null ? null : context.getRGBRaster(width, height);
+        if (pooled == null && type == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        final BufferedImage rgb = pooled == null ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB) : pooled;
+        final Graphics2D g = rgb.createGraphics();
+        try {
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return rgb;
+    }
+
+    /**
+     * Encode an image into a JPEG stream.
+     *
+     * @param image input an image
+     * @param output input an output stream
+     * @param quality input the quality, from 0 to 1
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeJPEG(final BufferedImage image, final ImageOutputStream output, final float quality, final boolean progressive) throws IOException {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(toRGB(image), null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Encode an image into JPEG bytes in memory.
+     *
+     * @param image input an image
+     * @param quality input the quality, from 0 to 1
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @return the JPEG bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public static byte[] encodeJPEG(final BufferedImage image, final float quality, final boolean progressive) throws IOException {
+        try (final CodecContext context = new CodecContext()) {
+            return encodeJPEG(image, quality, progressive, context).toByteArray();
+        }
+    }
+
+    /**
+     * Encode an image into JPEG bytes in memory, with the writer and a buffer
+     * of a context.
+     *
+     * @param image input an image
+     * @param quality input the quality, from 0 to 1
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @param context input a context
+     * @return a buffer of the context which holds the JPEG bytes until the
+     * next encode
+     * @throws IOException if an I/O error occurs
+     */
+    public static EncodeBuffer encodeJPEG(final BufferedImage image, final float quality, final boolean progressive, final CodecContext context) throws IOException {
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("The quality must be between 0 and 1.");
+        }
+        final ImageWriter writer = context.getJPEGWriter();
+        final ImageWriteParam param = context.getJPEGWriteParam();
+        param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        final EncodeBuffer buffer = context.getBuffer(0);
+        writeJPEG(writer, param, new IIOImage(toRGB(image, context), null, null), buffer, quality);
+        return buffer;
+    }
+
+    /**
+     * Encode an image into JPEG bytes which are not bigger than a target
+     * size.
+     *
+     * @param image input an image
+     * @param maxQuality input the maximum quality, from 0 to 1
+     * @param targetSize input the target size, in bytes
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @return the JPEG bytes
+     * @throws IOException if an I/O error occurs
+     */
+    public static byte[] encodeJPEG(final BufferedImage image, final float maxQuality, final long targetSize, final boolean progressive) throws IOException {
+        try (final CodecContext context = new CodecContext()) {
+            return encodeJPEG(image, maxQuality, targetSize, progressive, context).toByteArray();
+        }
+    }
+
+    /**
+     * Encode an image into JPEG bytes which are not bigger than a target
+     * size. The quality is binary-searched below the maximum quality, in
+     * memory, with at most MAX_QUALITY_PROBES encodes of the same image. The
+     * two buffers of the context hold the best candidate and the trial. If
+     * even the lowest probed quality is too big, the smallest encode is
+     * returned.
+     *
+     * @param image input an image
+     * @param maxQuality input the maximum quality, from 0 to 1
+     * @param targetSize input the target size, in bytes
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @param context input a context
+     * @return a buffer of the context which holds the JPEG bytes until the
+     * next encode
+     * @throws IOException if an I/O error occurs
+     */
+    public static EncodeBuffer encodeJPEG(final BufferedImage image, final float maxQuality, final long targetSize, final boolean progressive, final CodecContext context) throws IOException {
+        if (maxQuality < 0 || maxQuality > 1) {
+            throw new IllegalArgumentException("The quality must be between 0 and 1.");
+        }
+        if (targetSize <= 0) {
+            throw new IllegalArgumentException("The target size must be bigger than zero.");
+        }
+        final ImageWriter writer = context.getJPEGWriter();
+        final ImageWriteParam param = context.getJPEGWriteParam();
+        param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        final IIOImage iioImage = new IIOImage(toRGB(image, context), null, null);
+
+        EncodeBuffer trial = context.getBuffer(0);
+        writeJPEG(writer, param, iioImage, trial, maxQuality);
+        if (trial.size() <= targetSize) {
+            return trial;
+        }
+        // the best candidate is the biggest one which fits, or the smallest one if none fits yet
+        EncodeBuffer best = trial;
+        trial = context.getBuffer(1);
+        boolean fits = false;
+        float low = 0, high = maxQuality;
+        for (int probes = 1; probes < MAX_QUALITY_PROBES && high - low > QUALITY_PRECISION; ++probes) {
+            final float quality = (low + high) / 2;
+            writeJPEG(writer, param, iioImage, trial, quality);
+            final boolean trialFits = trial.size() <= targetSize;
+            if (trialFits) {
+                low = quality;
+            } else {
+                high = quality;
+            }
+            if (trialFits || (!fits && trial.size() < best.size())) {
+                fits = trialFits;
+                final EncodeBuffer swap = best;
+                best = trial;
+                trial = swap;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Encode an image into a buffer with a writer which is reused.
+     *
+     * @param writer input a JPEG writer
+     * @param param input the parameters of the writer
+     * @param image input an RGB image
+     * @param buffer input a buffer. It is rewound first
+     * @param quality input the quality, from 0 to 1
+     * @throws IOException if an I/O error occurs
+     */
+    private static void writeJPEG(final ImageWriter writer, final ImageWriteParam param, final IIOImage image, final EncodeBuffer buffer, final float quality) throws IOException {
+        buffer.rewind();
+        param.setCompressionQuality(quality);
+        writer.setOutput(buffer);
+        try {
+            writer.write(null, image, param);
+        } finally {
+            writer.setOutput(null);
+        }
+    }
+
+    /**
+     * Write encoded bytes into an output file.
+     *
+     * @param data input the encoded bytes
+     * @param file input an output file. Its name may be adjusted
+     * @param overwrite whether to overwrite an existing file
+     * @return the output file
+     * @throws IOException if an I/O error occurs
+     */
+    public static File writeFile(final byte[] data, final File file, final boolean overwrite) throws IOException {
+        return writeFile(data, data.length, file, overwrite);
+    }
+
+    /**
+     * Write the first bytes of an array into an output file. They are
+     * written through a file channel at once into a temporary file beside
+     * the output file, which is then moved over it, so a killed process
+     * never leaves a truncated output. The file is not flushed to the
+     * storage device; a FileSyncBatch can flush many files later.
+     *
+     * @param data input the encoded bytes
+     * @param length input the number of bytes to write
+     * @param file input an output file. Its name may be adjusted
+     * @param overwrite whether to overwrite an existing file
+     * @return the output file
+     * @throws IOException if an I/O error occurs
+     */
+    public static File writeFile(final byte[] data, final int length, final File file, final boolean overwrite) throws IOException {
+        final File outputFile = adjustOutputFile(file, overwrite);
+        final Path target = outputFile.toPath();
+        // the name has been claimed by an empty file, so the image is written aside and moved over it
+        final Path temp = target.resolveSibling(".".concat(outputFile.getName()).concat(".part"));
+        boolean success = false;
+        try {
+            try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // the whole image goes to the file in one write, not in the small blocks of a stream
+                final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            success = true;
+        } finally {
+            if (!success) {
+                temp.toFile().delete();
+                outputFile.delete();
+            }
+        }
+        return outputFile;
+    }
+
+    /**
+     * Materialize an existing output as another output file. The file is a
+     * hard link to the existing output if possible, or a copy of it
+     * otherwise.
+     *
+     * @param existing input an existing output file
+     * @param file input an output file. Its name may be adjusted
+     * @param overwrite whether to overwrite an existing file
+     * @return the output file
+     * @throws IOException if an I/O error occurs
+     */
+    public static File linkFile(final File existing, final File file, final boolean overwrite) throws IOException {
+        final File outputFile = adjustOutputFile(file, overwrite);
+        final Path target = outputFile.toPath();
+        // the name has been claimed by an empty file, so the link is made aside and moved over it
+        final Path temp = target.resolveSibling(".".concat(outputFile.getName()).concat(".link"));
+        boolean success = false;
+        try {
+            Files.deleteIfExists(temp);
+            try {
+                Files.createLink(temp, existing.toPath());
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final IOException | UnsupportedOperationException ex) {
+                Files.deleteIfExists(temp);
+                Files.copy(existing.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                outputFile.delete();
+            }
+        }
+        return outputFile;
+    }
+
+    /**
+     * Export an image to a JPEG file.
+     *
+     * @param image input an image
+     * @param file input an output file. Its name may be adjusted
+     * @param quality input the quality, from 0 to 1
+     * @param progressive whether to write a progressive (interlaced) JPEG
+     * @param overwrite whether to overwrite an existing file
+     * @return the output file
+     * @throws IOException if an I/O error occurs
+     */
+    public static File exportToJPEG(final BufferedImage image, final File file, final float quality, final boolean progressive, final boolean overwrite) throws IOException {
+        return writeFile(encodeJPEG(image, quality, progressive), file, overwrite);
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageEncoder() {
+
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Scan folders for image files which Image Resizer Light supports. Folders
+ * are walked in parallel by a fork-join pool, and the attributes of each entry
+ * are read only once.
+ *
+ * @author Magic Len
+ */
+public class ImageFileScanner {
+
+    // -----Class Constant-----
+    /**
+     * The default number of threads which walk folders. Walking folders on
+     * network shares is bound by latency rather than CPU, so at least a few
+     * threads are used even on small machines.
+     */
+    public static final int DEFAULT_PARALLELISM = Math.max(4, Runtime.getRuntime().availableProcessors());
+    /**
+     * The set of filename extensions that Image Resizer Light supports, in
+     * lowercase and without dots.
+     */
+    public static final Set<String> SUPPORT_IMAGE_EXTENDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "bmp", "tiff", "gif")));
+
+    // -----Class Interface-----
+    /**
+     * Handle image files which are found. It is called by several threads at
+     * the same time.
+     */
+    public static interface Handler {
+
+        /**
+         * Handle an image file.
+         *
+         * @param file the image file
+         * @param attributes the attributes of the image file
+         * @return false to stop the scan
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public boolean handle(final Path file, final BasicFileAttributes attributes) throws InterruptedException;
+    }
+
+    /**
+     * Handle folders which are about to be walked. It is called by several
+     * threads at the same time.
+     */
+    public static interface FolderHandler {
+
+        /**
+         * Handle a folder. It is called before the entries of the folder are
+         * listed.
+         *
+         * @param folder the folder
+         * @return false to stop the scan
+         * @throws InterruptedException if the current thread is interrupted
+         */
+        public boolean handle(final Path folder) throws InterruptedException;
+    }
+
+    // -----Class Method-----
+    /**
+     * Check whether a filename has an extension which Image Resizer Light
+     * supports.
+     *
+     * @param filename input a filename
+     * @return true if the extension is supported
+     */
+    public static boolean isSupportedImage(final String filename) {
+        final int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex < 0) {
+            return false;
+        }
+        return SUPPORT_IMAGE_EXTENDS.contains(filename.substring(dotIndex + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Check whether a folder has readable subfolders.
+     *
+     * @param folder input a folder
+     * @return true if the folder has readable subfolders
+     */
+    public static boolean hasSubFolders(final Path folder) {
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (final Path entry : stream) {
+                try {
+                    if (Files.readAttributes(entry, BasicFileAttributes.class).isDirectory() && Files.isReadable(entry)) {
+                        return true;
+                    }
+                } catch (final IOException ex) {
+                    //do nothing
+                }
+            }
+        } catch (final IOException | DirectoryIteratorException ex) {
+            //do nothing
+        }
+        return false;
+    }
+
+    // -----Object Constant-----
+    /**
+     * The number of threads which walk folders.
+     */
+    private final int parallelism;
+
+    // -----Constructor-----
+    /**
+     * Construct a scanner which uses the default number of threads.
+     */
+    public ImageFileScanner() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Construct a scanner.
+     *
+     * @param parallelism input the number of threads which walk folders
+     */
+    public ImageFileScanner(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The number of threads must be bigger than zero.");
+        }
+        this.parallelism = parallelism;
+    }
+
+    // -----Object Method-----
+    /**
+     * Scan a folder. This method blocks until the scan finishes or is stopped
+     * by the handler. Folders which are reached again through symbolic links
+     * are skipped, so loops cannot make the scan endless.
+     *
+     * @param folder input a folder
+     * @param recursive whether to extend to subfolders
+     * @param handler input a handler to handle image files
+     * @throws IOException if the folder cannot be read
+     * @throws InterruptedException if the handler is interrupted
+     */
+    public void scan(final Path folder, final boolean recursive, final Handler handler) throws IOException, InterruptedException {
+        scan(folder, recursive, null, handler);
+    }
+
+    /**
+     * Scan a folder, and tell a handler about every folder which is walked.
+     * This method blocks until the scan finishes or is stopped by the
+     * handlers. Folders which are reached again through symbolic links are
+     * skipped, so loops cannot make the scan endless.
+     *
+     * @param folder input a folder
+     * @param recursive whether to extend to subfolders
+     * @param folderHandler input a handler to handle folders, or null
+     * @param handler input a handler to handle image files
+     * @throws IOException if the folder cannot be read. Subfolders which
+     * cannot be read are skipped
+     * @throws InterruptedException if the handlers are interrupted
+     */
+    public void scan(final Path folder, final boolean recursive, final FolderHandler folderHandler, final Handler handler) throws IOException, InterruptedException {
+        final Scan scan = new Scan(recursive, folderHandler, handler);
+        final BasicFileAttributes attributes = Files.readAttributes(folder, BasicFileAttributes.class);
+        if (!attributes.isDirectory()) {
+            throw new NotDirectoryException(folder.toString());
+        }
+        // opened here as well, so an unreadable source is a failure rather than an empty one
+        Files.newDirectoryStream(folder).close();
+        scan.visit(folder, attributes);
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(scan.new FolderTask(folder));
+        } finally {
+            pool.shutdown();
+        }
+        if (scan.interrupted) {
+            throw new InterruptedException();
+        }
+    }
+
+    // -----Inner Class-----
+    /**
+     * The state of one scan.
+     */
+    private static final class Scan {
+
+        /**
+         * Whether to extend to subfolders.
+         */
+        private final boolean recursive;
+        /**
+         * The handler to handle folders, or null.
+         */
+        private final FolderHandler folderHandler;
+        /**
+         * The handler to handle image files.
+         */
+        private final Handler handler;
+        /**
+         * The keys of folders which have been visited.
+         */
+        private final Set<Object> visitedFolders = ConcurrentHashMap.newKeySet();
+        /**
+         * Whether the scan needs to stop.
+         */
+        private volatile boolean cancelled;
+        /**
+         * Whether the handler has been interrupted.
+         */
+        private volatile boolean interrupted;
+
+        /**
+         * Construct the state of a scan.
+         *
+         * @param recursive whether to extend to subfolders
+         * @param folderHandler input a handler to handle folders, or null
+         * @param handler input a handler to handle image files
+         */
+        private Scan(final boolean recursive, final FolderHandler folderHandler, final Handler handler) {
+            this.recursive = recursive;
+            this.folderHandler = folderHandler;
+            this.handler = handler;
+        }
+
+        /**
+         * Mark a folder as visited.
+         *
+         * @param folder input a folder
+         * @param attributes input the attributes of the folder
+         * @return true if the folder has not been visited yet
+         */
+        private boolean visit(final Path folder, final BasicFileAttributes attributes) {
+            Object key = attributes.fileKey();
+            if (key == null) {
+                try {
+                    key = folder.toRealPath();
+                } catch (final IOException ex) {
+                    return false;
+                }
+            }
+            return visitedFolders.add(key);
+        }
+
+        /**
+         * A task which walks a folder and forks tasks for its subfolders.
+         */
+        private final class FolderTask extends RecursiveAction {
+
+            private static final long serialVersionUID = 1L;
+
+            /**
+             * The folder to walk.
+             */
+            private final Path folder;
+
+            /**
+             * Construct a task.
+             *
+             * @param folder input a folder
+             */
+            private FolderTask(final Path folder) {
+                this.folder = folder;
+            }
+
+            @Override
+            protected void compute() {
+                final ArrayList<FolderTask> subTasks = new ArrayList<>();
+                try {
+                    if (cancelled || folderHandler != null && !folderHandler.handle(folder)) {
+                        cancelled = true;
+                        return;
+                    }
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                    cancelled = true;
+                    return;
+                }
+                try (final DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                    for (final Path entry : stream) {
+                        if (cancelled) {
+                            break;
+                        }
+                        final BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        } catch (final IOException ex) {
+                            continue;
+                        }
+                        if (attributes.isDirectory()) {
+                            if (recursive && visit(entry, attributes)) {
+                                final FolderTask subTask = new FolderTask(entry);
+                                subTask.fork();
+                                subTasks.add(subTask);
+                            }
+                        } else if (attributes.isRegularFile() && isSupportedImage(entry.getFileName().toString())) {
+                            if (!handler.handle(entry, attributes)) {
+                                cancelled = true;
+                            }
+                        }
+                    }
+                } catch (final IOException | DirectoryIteratorException ex) {
+                    //do nothing
+                } catch (final InterruptedException ex) {
+                    interrupted = true;
+                    cancelled = true;
+                }
+                for (final FolderTask subTask : subTasks) {
+                    subTask.join();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Probe the headers of image files. Only the markers of a JPEG file before
+ * its first scan are read, so the dimensions, the coding and the quality of
+ * an image are known without decoding any pixel. A JPEG file which needs no
+ * resizing can then be written to the destination without its metadata.
+ *
+ * @author Magic Len
+ */
+public final class ImageProbe {
+
+    // -----Class Class-----
+    /**
+     * The frame header of a JPEG file.
+     */
+    public static final class Header {
+
+        /**
+         * The width of the image.
+         */
+        private final int width;
+        /**
+         * The height of the image.
+         */
+        private final int height;
+        /**
+         * Whether the image is progressive.
+         */
+        private final boolean progressive;
+        /**
+         * The estimated quality of the image.
+         */
+        private final float quality;
+
+        /**
+         * Construct a header.
+         *
+         * @param width input the width of the image
+         * @param height input the height of the image
+         * @param progressive whether the image is progressive
+         * @param quality input the estimated quality of the image, or -1 if
+         * it is unknown
+         */
+        private Header(final int width, final int height, final boolean progressive, final float quality) {
+            this.width = width;
+            this.height = height;
+            this.progressive = progressive;
+            this.quality = quality;
+        }
+
+        /**
+         * Get the width of the image.
+         *
+         * @return the width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get the height of the image.
+         *
+         * @return the height
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Check whether the image is progressive (interlaced).
+         *
+         * @return true if the image is progressive
+         */
+        public boolean isProgressive() {
+            return progressive;
+        }
+
+        /**
+         * Get the quality of the image, estimated from its luminance
+         * quantization table as the quality which the IJG encoder, and Image
+         * I/O, would have been given.
+         *
+         * @return the quality, from 0 to 1, or -1 if it is unknown
+         */
+        public float getQuality() {
+            return quality;
+        }
+    }
+
+    // -----Class Constant-----
+    /**
+     * The size of the window which headers are read through, in bytes.
+     */
+    private static final int PROBE_WINDOW_SIZE = 1 << 13;
+    /**
+     * The marker of the start of an image.
+     */
+    private static final int SOI = 0xD8;
+    /**
+     * The marker of the end of an image.
+     */
+    private static final int EOI = 0xD9;
+    /**
+     * The marker of the start of a scan.
+     */
+    private static final int SOS = 0xDA;
+    /**
+     * The marker of a baseline frame.
+     */
+    private static final int SOF0 = 0xC0;
+    /**
+     * The marker of an extended sequential frame.
+     */
+    private static final int SOF1 = 0xC1;
+    /**
+     * The marker of a progressive frame.
+     */
+    private static final int SOF2 = 0xC2;
+    /**
+     * The marker of quantization tables.
+     */
+    private static final int DQT = 0xDB;
+    /**
+     * The marker of a comment.
+     */
+    private static final int COM = 0xFE;
+    /**
+     * The marker of the first application segment.
+     */
+    private static final int APP0 = 0xE0;
+    /**
+     * The marker of the application segment of ICC profiles.
+     */
+    private static final int APP2 = 0xE2;
+    /**
+     * The marker of the application segment of Adobe, which tells how the
+     * colors are transformed.
+     */
+    private static final int APP14 = 0xEE;
+    /**
+     * The marker of the last application segment.
+     */
+    private static final int APP15 = 0xEF;
+    /**
+     * The identifiers of the application segments which are kept when a
+     * JPEG file is copied, in the order of APP0, APP2 and APP14.
+     */
+    private static final byte[][] KEPT_SEGMENTS = {"JFIF\0".getBytes(StandardCharsets.US_ASCII), "ICC_PROFILE\0".getBytes(StandardCharsets.US_ASCII), "Adobe".getBytes(StandardCharsets.US_ASCII)};
+    /**
+     * The luminance quantization table of the IJG encoder at quality 50.
+     */
+    private static final int[] STANDARD_LUMINANCE_TABLE = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    // -----Class Method-----
+    /**
+     * Check whether a filename has the extension of a JPEG file.
+     *
+     * @param filename input a filename
+     * @return true if the extension is "jpg" or "jpeg"
+     */
+    public static boolean isJPEGFilename(final String filename) {
+        final int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex < 0) {
+            return false;
+        }
+        final String extend = filename.substring(dotIndex + 1);
+        return extend.equalsIgnoreCase("jpg") || extend.equalsIgnoreCase("jpeg");
+    }
+
+    /**
+     * Read the frame header of a JPEG file which every JPEG reader can
+     * decode: a Huffman-coded 8-bit baseline, extended sequential or
+     * progressive frame of gray or YCbCr samples. Files without the extension
+     * of a JPEG file are not read at all, and the others are read through a
+     * small window, since the headers are usually in the first few kilobytes.
+     *
+     * @param file input an image file
+     * @param context input a context whose read window is used, or null
+     * @return the header, or null if the file is not such a JPEG file
+     * @throws IOException if the file cannot be read
+     */
+    public static Header probeJPEG(final File file, final CodecContext context) throws IOException {
+        if (!isJPEGFilename(file.getName())) {
+            return null;
+        }
+        final ByteBuffer window;
+        if (context != null) {
+            // a part of the read window, so the decoder does not read the same megabyte again
+            final ByteBuffer readWindow = context.getReadWindow();
+            readWindow.clear();
+            readWindow.limit(Math.min(PROBE_WINDOW_SIZE, readWindow.capacity()));
+            window = readWindow.slice();
+        } else {
+            window = ByteBuffer.allocate(PROBE_WINDOW_SIZE);
+        }
+        try (final ImageInputStream iis = new ChannelImageInputStream(file, window)) {
+            if (iis.read() != 0xFF || iis.read() != SOI) {
+                return null;
+            }
+            int width = 0, height = 0;
+            boolean progressive = false;
+            float quality = -1;
+            while (true) {
+                int b = iis.read();
+                if (b < 0) {
+                    return null;
+                }
+                if (b != 0xFF) {
+                    // garbage between segments, which readers skip as well
+                    continue;
+                }
+                // a marker can be preceded by any number of fill bytes
+                do {
+                    b = iis.read();
+                } while (b == 0xFF);
+                if (b < 0 || b == EOI) {
+                    return null;
+                }
+                if (b == SOS) {
+                    // the tables of the first scan are all known, null if there is no frame
+                    return width > 0 ? new Header(width, height, progressive, quality) : null;
+                }
+                if (b == 0x01 || (b >= 0xD0 && b <= 0xD7)) {
+                    // standalone markers without lengths
+                    continue;
+                }
+                final int length = iis.readUnsignedShort();
+                if (length < 2) {
+                    return null;
+                }
+                if (b >= 0xC0 && b <= 0xCF && b != 0xC4 && b != 0xC8 && b != 0xCC) {
+                    if (b != SOF0 && b != SOF1 && b != SOF2) {
+                        // lossless, hierarchical and arithmetic-coded frames are rarely supported
+                        return null;
+                    }
+                    if (width > 0) {
+                        // more than one frame
+                        return null;
+                    }
+                    final int precision = iis.read();
+                    height = iis.readUnsignedShort();
+                    width = iis.readUnsignedShort();
+                    final int components = iis.read();
+                    if (precision != 8 || height == 0 || width == 0 || (components != 1 && components != 3)) {
+                        // CMYK and 12-bit images are converted, so all outputs are viewable
+                        return null;
+                    }
+                    progressive = b == SOF2;
+                    iis.skipBytes(length - 8);
+                } else if (b == DQT) {
+                    final float tableQuality = readLuminanceQuality(iis, length - 2);
+                    if (tableQuality >= 0) {
+                        quality = tableQuality;
+                    }
+                } else {
+                    iis.skipBytes(length - 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the quantization tables of a DQT segment, and estimate the quality
+     * of the luminance table among them.
+     *
+     * @param iis input a stream after the length of a DQT segment
+     * @param length input the length of the segment after its length
+     * @return the quality, from 0 to 1, or -1 if the segment has no
+     * luminance table
+     * @throws IOException if the stream cannot be read
+     */
+    private static float readLuminanceQuality(final ImageInputStream iis, final int length) throws IOException {
+        float quality = -1;
+        int remaining = length;
+        while (remaining > 0) {
+            final int info = iis.read();
+            if (info < 0) {
+                throw new IOException("The JPEG file is truncated.");
+            }
+            final boolean wide = (info >> 4) != 0;
+            long sum = 0;
+            for (int i = 0; i < 64; ++i) {
+                sum += wide ? iis.readUnsignedShort() : iis.read();
+            }
+            remaining -= 1 + (wide ? 128 : 64);
+            if ((info & 0x0F) == 0) {
+                quality = estimateQuality(sum);
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * Estimate the quality which the IJG encoder scaled its luminance table
+     * with, from the sum of a luminance table.
+     *
+     * @param sum input the sum of the 64 values of a luminance table
+     * @return the quality, from 0 to 1
+     */
+    private static float estimateQuality(final long sum) {
+        long standardSum = 0;
+        for (final int value : STANDARD_LUMINANCE_TABLE) {
+            standardSum += value;
+        }
+        // the IJG encoder scales the table by 5000 / quality under 50, and by 200 - 2 * quality from 50
+        final double scale = sum * 100.0 / standardSum;
+        final double quality = scale <= 100 ? (200 - scale) / 2 : 5000 / scale;
+        return Math.max(1, Math.min(100, Math.round(quality))) / 100f;
+    }
+
+    /**
+     * Copy a JPEG file into a buffer without its metadata. Application
+     * segments other than JFIF, ICC profiles and the Adobe color transform,
+     * such as Exif, XMP and their GPS positions and orientations, are dropped
+     * with comments, as they are when an image is converted.
+     *
+     * @param file input a JPEG file
+     * @param buffer input a buffer which the file is copied into
+     * @throws IOException if the file cannot be read, or it is not a JPEG
+     * file
+     */
+    public static void copyJPEG(final File file, final ImageEncoder.EncodeBuffer buffer) throws IOException {
+        buffer.readFile(file);
+        final byte[] bytes = buffer.getBytes();
+        final int length = buffer.size();
+        if (length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != SOI) {
+            throw new IOException("Not a JPEG file: ".concat(file.getAbsolutePath()));
+        }
+        // the kept bytes are written back into the same array, never after where they are read
+        buffer.rewind();
+        buffer.write(bytes, 0, 2);
+        int offset = 2;
+        while (offset + 4 <= length) {
+            if ((bytes[offset] & 0xFF) != 0xFF) {
+                // garbage between segments, which readers skip as well
+                ++offset;
+                continue;
+            }
+            final int marker = bytes[offset + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // a fill byte
+                ++offset;
+                continue;
+            }
+            if (marker == SOS || marker == EOI) {
+                break;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                buffer.write(bytes, offset, 2);
+                offset += 2;
+                continue;
+            }
+            final int end = offset + 2 + (((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF));
+            if (end > length) {
+                break;
+            }
+            if (!isDroppedSegment(bytes, offset, end)) {
+                buffer.write(bytes, offset, end - offset);
+            }
+            offset = end;
+        }
+        // the scans and everything after them are copied as they are
+        buffer.write(bytes, offset, length - offset);
+    }
+
+    /**
+     * Check whether a segment of a JPEG file is metadata which is dropped
+     * when the file is copied.
+     *
+     * @param bytes input the bytes of the file
+     * @param offset input the offset of the marker of the segment
+     * @param end input the offset after the segment
+     * @return true if the segment is dropped
+     */
+    private static boolean isDroppedSegment(final byte[] bytes, final int offset, final int end) {
+        final int marker = bytes[offset + 1] & 0xFF;
+        if (marker == COM) {
+            return true;
+        }
+        if (marker < APP0 || marker > APP15) {
+            return false;
+        }
+        final byte[] identifier;
+        switch (marker) {
+            case APP0:
+                identifier = KEPT_SEGMENTS[0];
+                break;
+            case APP2:
+                identifier = KEPT_SEGMENTS[1];
+                break;
+            case APP14:
+                identifier = KEPT_SEGMENTS[2];
+                break;
+            default:
+                return true;
+        }
+        final int start = offset + 4;
+        if (end - start < identifier.length) {
+            return true;
+        }
+        for (int i = 0; i < identifier.length; ++i) {
+            if (bytes[start + i] != identifier[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the source image of a header can be written as an output
+     * as it is. It can if the output would have the same size, the source
+     * is not of a higher quality than the output, the source file meets the
+     * target size, and the source is progressive if the output needs to be
+     * interlaced. Images of Image I/O cannot be turned into progressive JPEG
+     * files without decoding them, so baseline sources are converted in that
+     * case. Sources whose quality cannot be estimated are always converted.
+     *
+     * @param header input the header of the source image, or null
+     * @param size input the size of the source file
+     * @param variant input an output variant
+     * @param onlyShrink whether to only shrink images
+     * @param interlace whether to interlace output images
+     * @return true if the source file can be written as the output
+     */
+    public static boolean canPassThrough(final Header header, final long size, final OutputVariant variant, final boolean onlyShrink, final boolean interlace) {
+        if (header == null) {
+            return false;
+        }
+        final int maxSide = Math.max(header.width, header.height);
+        if (maxSide > variant.getMaxSideSize() || (maxSide < variant.getMaxSideSize() && !onlyShrink)) {
+            return false;
+        }
+        if (header.quality < 0 || Math.round(header.quality * 100) > Math.round(variant.getQuality() * 100)) {
+            // re-encoding a source of a higher quality makes a smaller file
+            return false;
+        }
+        if (variant.getTargetSize() > 0 && size > variant.getTargetSize()) {
+            return false;
+        }
+        return !interlace || header.progressive;
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageProbe() {
+
+    }
+}
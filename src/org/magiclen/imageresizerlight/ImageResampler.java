@@ -0,0 +1,167 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import com.mortennobel.imagescaling.AdvancedResizeOp;
+import com.mortennobel.imagescaling.ResampleFilters;
+import com.mortennobel.imagescaling.ResampleOp;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Locale;
+import org.magiclen.magicimage.ImageResize;
+
+/**
+ * Resample images at a chosen tier of quality. The best tier is the Lanczos3
+ * filter of ImageResize.resize, the balanced tier is the Mitchell filter
+ * with a narrower support, and the fast tier halves the image with bilinear
+ * interpolation until it is at most twice as big as the output, and then
+ * interpolates the last step. All tiers produce images of the same size.
+ *
+ * @author Magic Len
+ */
+public final class ImageResampler {
+
+    // -----Class Enum-----
+    /**
+     * The tiers of quality of resampling.
+     */
+    public static enum Tier {
+
+        /**
+         * Progressive 2x bilinear halving. It is much faster than the
+         * filters, and good enough for previews and contact sheets.
+         */
+        FAST,
+        /**
+         * The Mitchell filter, which reads fewer source pixels than the
+         * Lanczos3 filter and rings less.
+         */
+        BALANCED,
+        /**
+         * The Lanczos3 filter of ImageResize.resize.
+         */
+        BEST;
+
+        /**
+         * Get the name of the tier used in options and reports.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Get a tier by its name.
+         *
+         * @param name input the name of a tier, in any case
+         * @return the tier
+         * @throws IllegalArgumentException if there is no such tier
+         */
+        public static Tier of(final String name) {
+            for (final Tier tier : values()) {
+                if (tier.getName().equalsIgnoreCase(name.trim())) {
+                    return tier;
+                }
+            }
+            throw new IllegalArgumentException("The resampling tier must be fast, balanced or best.");
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Resize an image so that its max side is a given length, as
+     * ImageResize.resize does without sharpening.
+     *
+     * @param image input an image
+     * @param maxSideSize input the length of the max side of the output image
+     * @param onlyShrink whether to only shrink the image
+     * @param tier input the tier of quality
+     * @return the resized image, or the input image if it does not need to
+     * be resized
+     */
+    public static BufferedImage resize(final BufferedImage image, final int maxSideSize, final boolean onlyShrink, final Tier tier) {
+        if (tier == Tier.BEST) {
+            return ImageResize.resize(image, maxSideSize, 0, onlyShrink, true);
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (onlyShrink && Math.max(width, height) <= maxSideSize) {
+            return image;
+        }
+        final int[] outputSize = BandedResizer.computeOutputSize(width, height, maxSideSize);
+        if (tier == Tier.BALANCED) {
+            final ResampleOp op = new ResampleOp(outputSize[0], outputSize[1]);
+            op.setFilter(ResampleFilters.getMitchellFilter());
+            op.setUnsharpenMask(AdvancedResizeOp.UnsharpenMask.None);
+            return op.filter(image, null);
+        }
+        return halve(image, outputSize[0], outputSize[1]);
+    }
+
+    /**
+     * Resize an image by halving it with bilinear interpolation while it is
+     * at least twice as big as the output, and then interpolating the last
+     * step. Each halving reads every source pixel, so no detail is skipped
+     * as a single bilinear step would skip it.
+     *
+     * @param image input an image
+     * @param outputWidth input the width of the output image
+     * @param outputHeight input the height of the output image
+     * @return the resized image, of TYPE_INT_ARGB if the image has alpha, or
+     * of TYPE_INT_RGB otherwise
+     */
+    private static BufferedImage halve(final BufferedImage image, final int outputWidth, final int outputHeight) {
+        final int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        do {
+            if (width / 2 >= outputWidth && height / 2 >= outputHeight) {
+                width /= 2;
+                height /= 2;
+            } else {
+                width = outputWidth;
+                height = outputHeight;
+            }
+            final BufferedImage step = new BufferedImage(width, height, type);
+            final Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+                g.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            if (current != image) {
+                current.flush();
+            }
+            current = step;
+        } while (width != outputWidth || height != outputHeight);
+        return current;
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageResampler() {
+
+    }
+}
@@ -18,12 +18,14 @@
 package org.magiclen.imageresizerlight;
 
 import java.awt.Desktop;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Optional;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.binding.StringBinding;
@@ -36,26 +38,23 @@ import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.Slider;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tooltip;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.stage.DirectoryChooser;
-import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.util.StringConverter;
-import org.magiclen.magicimage.ImageBuffer;
-import org.magiclen.magicimage.ImageExport;
-import org.magiclen.magicimage.ImageInterlacer;
-import org.magiclen.magicimage.ImageResize;
 
 /**
  * Image Resizer Light
@@ -64,27 +63,6 @@ import org.magiclen.magicimage.ImageResize;
  */
 public class ImageResizerLight extends Application {
 
-    // -----Class Constant-----
-    /**
-     * Use the max side length of the current screen to set the defalut value of
-     * picture's max side.
-     */
-    private static final int DEFAULT_MAX_SIDE;
-    private static final int SCREEN_WIDTH, SCREEN_HEIGHT;
-    /**
-     * The list of filename extensions that Image Resizer Light supports.
-     */
-    private static final String[] SUPPORT_IMAGE_EXTENDS = {".jpg", ".jpeg", ".png", ".bmp", ".tiff", ".gif"};
-
-    // -----Initial Static-----
-    static {
-        final Screen mainScreen = Screen.getPrimary();
-        final Rectangle2D screenRectangle = mainScreen.getBounds();
-        SCREEN_WIDTH = (int) screenRectangle.getWidth();
-        SCREEN_HEIGHT = (int) screenRectangle.getHeight();
-        DEFAULT_MAX_SIDE = Math.max(SCREEN_WIDTH, SCREEN_HEIGHT);
-    }
-
     // -----Object Constant-----
     /**
      * The default value of width.
@@ -93,7 +71,7 @@ public class ImageResizerLight extends Application {
     /**
      * The default value of Height.
      */
-    private final int HEIGHT = 500;
+    private final int HEIGHT = 600;
     /**
      * The default distance of controls.
      */
@@ -111,15 +89,19 @@ public class ImageResizerLight extends Application {
      */
     private final float PROGRESS_HEIGHT = 50;
     /**
-     * The list of image files.
+     * How often the progress is refreshed, in milliseconds. Workers never
+     * touch the UI; the UI samples their counters at this rate instead.
      */
-    private final ArrayList<File> imageFileList = new ArrayList<>();
-    /**
-     * The list of folders.
-     */
-    private final ArrayList<File> folderList = new ArrayList<>();
+    private final int PROGRESS_REFRESH_MILLIS = 100;
 
     // -----Object Variable-----
+    /**
+     * Use the max side length of the current screen to set the defalut value of
+     * picture's max side. It is computed when the stage is constructed, so that
+     * the screen is not touched until the UI really starts.
+     */
+    private int defaultMaxSide;
+    private int screenWidth, screenHeight;
     /**
      * The font of text.
      */
@@ -144,19 +126,69 @@ public class ImageResizerLight extends Application {
      * The root panel of controls.
      */
     private VBox MAIN_ROOT;
-    private Label lSource, lDestination, lMaxSide, lQuality, lAuthor;
-    private TextField tfSource, tfDestination, tfMaxSide, tfInterlace;
+    private Label lSource, lDestination, lMaxSide, lResampling, lQuality, lTargetSize, lProgress, lThroughput, lAuthor;
+    private TextField tfSource, tfDestination, tfMaxSide, tfTargetSize;
     private Slider sQuality;
     private Button bStartOrStop;
-    private BorderPane bpInterlace;
-    private CheckBox cbOnlyShrink, cbInterlace;
+    private HBox hbOptions, hbResampling;
+    private CheckBox cbOnlyShrink, cbIncremental, cbInterlace, cbSharpen, cbWatch;
+    private ChoiceBox<ImageResampler.Tier> chResampling;
     private ProgressBar pbProgress;
     private DirectoryChooser directoryChooser;
-    private FileChooser fcChooser;
+    /**
+     * The timeline which refreshes the progress while converting.
+     */
+    private Timeline tlProgress;
+
+    /**
+     * The engine which is converting images.
+     */
+    private volatile ConversionEngine conversionEngine;
 
-    private boolean running, stopping;
+    private volatile boolean running;
 
     // -----Object Method-----
+    /**
+     * Format a duration.
+     *
+     * @param seconds input the duration, in seconds
+     * @return the formatted duration
+     */
+    private static String formatDuration(final long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    /**
+     * Refresh the progress from the counters of the engine. It is called by
+     * the progress timeline on the JavaFX application thread.
+     *
+     * @param engine input the engine which is converting images
+     */
+    private void refreshProgress(final ConversionEngine engine) {
+        final ConversionStatistics statistics = engine.getStatistics();
+        if (statistics == null) {
+            return;
+        }
+        final int doneCount = engine.getDoneCount();
+        final int discoveredCount = engine.getDiscoveredCount();
+        final boolean scanFinished = engine.isScanFinished();
+        if (scanFinished) {
+            pbProgress.setProgress(discoveredCount > 0 ? doneCount * 1.0 / discoveredCount : 1);
+            lProgress.setText(String.format("%d / %d", doneCount, discoveredCount));
+        } else {
+            lProgress.setText(String.format("%d done / %d discovered so far", doneCount, discoveredCount));
+        }
+        final long elapsedSeconds = statistics.getElapsedMillis() / 1000;
+        final double imagesPerSecond = statistics.getImagesPerSecond();
+        final String eta;
+        if (scanFinished && imagesPerSecond > 0) {
+            eta = formatDuration((long) Math.ceil((discoveredCount - doneCount) / imagesPerSecond));
+        } else {
+            eta = "--:--:--";
+        }
+        lThroughput.setText(String.format("%.1f images/s, %.1f MB/s, elapsed %s, ETA %s, %d failed", imagesPerSecond, statistics.getMegabytesPerSecond(), formatDuration(elapsedSeconds), eta, statistics.getFailureCount()));
+    }
+
     /**
      * Lock or unclock controls.
      *
@@ -166,10 +198,14 @@ public class ImageResizerLight extends Application {
         tfSource.setDisable(disable);
         tfDestination.setDisable(disable);
         tfMaxSide.setDisable(disable);
-        tfInterlace.setDisable(disable);
         sQuality.setDisable(disable);
+        tfTargetSize.setDisable(disable);
         cbOnlyShrink.setDisable(disable);
+        cbIncremental.setDisable(disable);
         cbInterlace.setDisable(disable);
+        cbSharpen.setDisable(disable);
+        chResampling.setDisable(disable);
+        cbWatch.setDisable(disable);
         bStartOrStop.setText(disable ? "Stop" : "Start");
     }
 
@@ -181,28 +217,16 @@ public class ImageResizerLight extends Application {
             return;
         }
         running = true;
-        stopping = false;
         lockOrUnlock(true);
-        folderList.clear();
-        imageFileList.clear();
         pbProgress.setProgress(-1);
+        lProgress.setText("");
+        lThroughput.setText("");
 
         final String sourcePath = tfSource.getText().trim();
         final String destinationPath = tfDestination.getText().trim();
         final String sideValue = tfMaxSide.getText().trim();
+        final String targetSizeValue = tfTargetSize.getText().trim();
         try {
-            if (cbInterlace.isSelected()) {
-                final String magickPath = tfInterlace.getText().trim();
-                if (magickPath.length() == 0) {
-                    showAlertDialog(AlertType.INFORMATION, "Hint", null, "You need input the path of a ImageMagick executable binary file usually named 'magick'.");
-                    throw new Exception();
-                }
-                ImageInterlacer.MAGICK_PATH = magickPath;
-                if (!ImageInterlacer.isAvailable()) {
-                    showAlertDialog(AlertType.WARNING, "Hint", null, "You need input the path of a ImageMagick executable binary file usually named 'magick' correctly.");
-                    throw new Exception();
-                }
-            }
             if (sourcePath.length() == 0) {
                 showAlertDialog(AlertType.INFORMATION, "Hint", null, "You need input the path of a source folder.");
                 throw new Exception();
@@ -220,10 +244,9 @@ public class ImageResizerLight extends Application {
                 showAlertDialog(AlertType.INFORMATION, "Hint", null, "You need to input the path of a source folder correctly.");
                 throw new Exception();
             }
-            folderList.add(source);
 
             final File destination = new File(destinationPath).getAbsoluteFile();
-            if (folderList.contains(destination)) {
+            if (source.getAbsoluteFile().equals(destination)) {
                 showAlertDialog(AlertType.WARNING, "Hint", null, "You cannot set your destination in the same folder as the source.");
                 throw new Exception();
             }
@@ -245,83 +268,109 @@ public class ImageResizerLight extends Application {
                 throw new Exception();
             }
 
-            final int maxSideSize;
+            final String[] sides = sideValue.split(",");
+            final int[] maxSideSizes = new int[sides.length];
             try {
-                maxSideSize = Integer.parseInt(sideValue);
-                if (maxSideSize <= 0) {
-                    throw new Exception();
+                for (int i = 0; i < sides.length; ++i) {
+                    maxSideSizes[i] = Integer.parseInt(sides[i].trim());
+                    if (maxSideSizes[i] <= 0) {
+                        throw new Exception();
+                    }
+                    for (int j = 0; j < i; ++j) {
+                        if (maxSideSizes[j] == maxSideSizes[i]) {
+                            throw new Exception();
+                        }
+                    }
                 }
             } catch (Exception ex) {
                 showAlertDialog(AlertType.INFORMATION, "Hint", null, "You need to input the length of the max side of your output picture correctly.");
                 throw new Exception();
             }
 
+            long targetSize = 0;
+            if (targetSizeValue.length() > 0) {
+                try {
+                    targetSize = Long.parseLong(targetSizeValue) << 10;
+                    if (targetSize <= 0) {
+                        throw new Exception();
+                    }
+                } catch (final Exception ex) {
+                    showAlertDialog(AlertType.INFORMATION, "Hint", null, "You need to input the maximum size of your output files correctly.");
+                    throw new Exception();
+                }
+            }
+
             final boolean onlyShrink = cbOnlyShrink.isSelected();
+            final boolean incremental = cbIncremental.isSelected();
             final boolean interlace = cbInterlace.isSelected();
+            final boolean sharpen = cbSharpen.isSelected();
+            final ImageResampler.Tier resamplingTier = chResampling.getValue();
+            final boolean watch = cbWatch.isSelected();
 
             final float quality = (float) (sQuality.getValue() / 100.0f);
 
-            fetchFiles(source, true);
-            final int fileCount = imageFileList.size();
-
-            if (fileCount > 0) {
-                if (showConfirmDialog("Hint", String.format("%d file(s) to convert.", fileCount), "Do you want to continue?")) {
-                    new Thread() {
-                        @Override
-                        public void run() {
-                            int doneCount = 0;
-                            int successCount = 0;
-                            final String sourcePath = source.getAbsolutePath();
-                            final int sourcePathLength = sourcePath.length();
-                            for (final File file : imageFileList) {
-                                if (stopping) {
-                                    break;
-                                }
-                                ++doneCount;
-                                try {
-                                    final String imgPath = file.getAbsolutePath();
-                                    final File newFile = new File(destination, imgPath.substring(sourcePathLength, imgPath.length()));
-                                    newFile.getAbsoluteFile().getParentFile().mkdirs();
-                                    final BufferedImage bi = ImageBuffer.getBufferedImages(file)[0];
-                                    final BufferedImage result = ImageResize.resize(bi, maxSideSize, -1, onlyShrink, true);
-                                    if (ImageExport.exportToJPEG(result, newFile, quality, false) != null) {
-                                        if (interlace) {
-                                            if (ImageInterlacer.setInterlace(newFile, ImageInterlacer.Interlace.PLANE, false)) {
-                                                successCount++;
-                                            } else {
-                                                newFile.delete();
-                                            }
-                                        } else {
-                                            successCount++;
-                                        }
-                                    }
-                                } catch (final Exception ex) {
-                                    //do nothing
-                                }
-                                final double p = doneCount * 1f / fileCount;
-                                Platform.runLater(() -> {
-                                    pbProgress.setProgress(p);
-                                });
-                            }
-                            final int dc = doneCount;
-                            final int sc = successCount;
-                            Platform.runLater(() -> {
-                                if (dc < fileCount) {
-                                    showAlertDialog(AlertType.INFORMATION, "Hint", null, String.format("Stopped!(%d/%d/%d)", sc, dc, fileCount));
-                                } else {
-                                    showAlertDialog(AlertType.INFORMATION, "Hint", null, String.format("Finished!(%d/%d)", sc, fileCount));
-                                }
-
-                                lockOrUnlock(false);
-                            });
-                            running = false;
+            // several sizes are written into subfolders named after them
+            final ArrayList<OutputVariant> variants = new ArrayList<>();
+            for (final int maxSideSize : maxSideSizes) {
+                variants.add(new OutputVariant(maxSideSize, quality, targetSize, maxSideSizes.length > 1 ? String.valueOf(maxSideSize) : null, null));
+            }
+            final ConversionSettings settings = new ConversionSettings(variants, onlyShrink, interlace, sharpen ? ConversionSettings.DEFAULT_SHARPEN_STRENGTH : 0, resamplingTier);
+
+            final ConversionJournal journal = ConversionJournal.load(destination.toPath());
+            final boolean resume = !watch && journal.matches(source.toPath(), journal.isRecursive(), settings.getFingerprint()) && showConfirmDialog("Hint", String.format("A stopped job with the same folders and settings has been found. %d file(s) have been done.", journal.getSucceededCount()), "Do you want to resume it?");
+
+            final boolean recursive = resume ? journal.isRecursive() : ImageFileScanner.hasSubFolders(source.toPath()) && showConfirmDialog("Hint", null, "Do you want to input images from subfolders?");
+
+            if (resume || showConfirmDialog("Hint", watch ? "Images will be converted, and then the source folder will be watched for new or modified images until you stop." : "Images will be converted while the source folder is being scanned.", "Do you want to continue?")) {
+                final ConversionEngine engine = new ConversionEngine();
+                engine.setIncremental(incremental);
+                engine.setResume(resume);
+                conversionEngine = engine;
+                tlProgress = new Timeline(new KeyFrame(Duration.millis(PROGRESS_REFRESH_MILLIS), e -> refreshProgress(engine)));
+                tlProgress.setCycleCount(Animation.INDEFINITE);
+                tlProgress.play();
+                new Thread(() -> {
+                    boolean watchFailed = false;
+                    try {
+                        if (watch) {
+                            engine.watch(source, recursive, destination, settings, null);
+                        } else {
+                            engine.convert(source, recursive, destination, settings, null);
                         }
-                    }.start();
-                } else {
-                    throw new Exception();
-                }
+                    } catch (final IOException ex) {
+                        watchFailed = true;
+                    } catch (final InterruptedException ex) {
+                        //do nothing
+                    }
+                    final boolean cannotWatch = watchFailed;
+                    final int dc = engine.getDoneCount();
+                    final int sc = engine.getSuccessCount();
+                    final int fileCount = engine.getDiscoveredCount();
+                    final Throwable failure = engine.getFailure();
+                    final boolean finished = engine.isScanFinished() && dc == fileCount && failure == null;
+                    Platform.runLater(() -> {
+                        tlProgress.stop();
+                        refreshProgress(engine);
+                        if (cannotWatch) {
+                            showAlertDialog(AlertType.ERROR, "Hint", null, "Cannot watch the folder: ".concat(source.getAbsolutePath()));
+                        } else if (failure != null) {
+                            showAlertDialog(AlertType.ERROR, "Hint", String.format("Stopped!(%d/%d/%d)", sc, dc, fileCount), "The conversion is stopped by an error: ".concat(String.valueOf(failure)));
+                        } else if (watch) {
+                            showAlertDialog(AlertType.INFORMATION, "Hint", null, String.format("Stopped watching!(%d/%d)", sc, dc));
+                        } else if (!finished) {
+                            showAlertDialog(AlertType.INFORMATION, "Hint", null, String.format("Stopped!(%d/%d/%d)", sc, dc, fileCount));
+                        } else if (fileCount == 0) {
+                            showAlertDialog(AlertType.INFORMATION, "Hint", null, "Nothing to resize.");
+                        } else {
+                            showAlertDialog(AlertType.INFORMATION, "Hint", null, String.format("Finished!(%d/%d)", sc, fileCount));
+                        }
+                        pbProgress.setProgress(finished ? 1 : 0);
+                        lockOrUnlock(false);
+                    });
+                    conversionEngine = null;
+                    running = false;
+                }).start();
             } else {
-                showAlertDialog(AlertType.INFORMATION, "Hint", null, "Nothing to resize.");
                 throw new Exception();
             }
         } catch (final Exception ex) {
@@ -339,7 +388,10 @@ public class ImageResizerLight extends Application {
             return;
         }
         if (stopConfirm()) {
-            stopping = true;
+            final ConversionEngine engine = conversionEngine;
+            if (engine != null) {
+                engine.stop();
+            }
         }
     }
 
@@ -362,7 +414,7 @@ public class ImageResizerLight extends Application {
      * @return yes or no
      */
     private boolean stopConfirm() {
-        return showConfirmDialog("Hint", "Do you really want to stop the running tasks?", "If you stop your tasks, they cannot be continued.");
+        return showConfirmDialog("Hint", "Do you really want to stop the running tasks?", "If you stop your tasks, they can be resumed by starting them again with the same folders and settings.");
     }
 
     /**
@@ -397,68 +449,6 @@ public class ImageResizerLight extends Application {
         return alert.showAndWait();
     }
 
-    /**
-     * Recursively add directories and files into lists.
-     *
-     * @param file input a root folder
-     * @param askSubFolderask whether to extend to subfolders
-     *
-     */
-    private void fetchFiles(final File file, boolean askSubFolder) {
-        final File subFiles[] = file.listFiles(pathname -> {
-            if (pathname.canRead()) {
-                if (pathname.isDirectory()) {
-                    return true;
-                } else if (pathname.isFile()) {
-                    for (final String extend : SUPPORT_IMAGE_EXTENDS) {
-                        if (pathname.getName().toLowerCase().endsWith(extend)) {
-                            return true;
-                        }
-                    }
-                }
-            }
-            return false;
-        });
-        if (askSubFolder) {
-            boolean subFolder = true;
-            for (final File subFile : subFiles) {
-                if (subFile.isDirectory()) {
-                    if (askSubFolder) {
-                        subFolder = showConfirmDialog("Hint", null, "Do you want to input images from subfolders?");
-                        askSubFolder = false;
-                    }
-                    if (subFolder) {
-                        folderList.add(subFile);
-                        fetchFiles(subFile, false);
-                    }
-                } else {
-                    imageFileList.add(subFile);
-                }
-            }
-        } else {
-            for (final File subFile : subFiles) {
-                if (subFile.isDirectory()) {
-                    folderList.add(subFile);
-                    fetchFiles(subFile, false);
-                } else {
-                    imageFileList.add(subFile);
-                }
-            }
-        }
-    }
-
-    /**
-     * Choose a ImageMagick executable binary file.
-     */
-    private void chooseMagickFile() {
-        fcChooser.setTitle("Choose a ImageMagick executable binary file usually named 'magick'");
-        final File file = fcChooser.showOpenDialog(MAIN_STAGE);
-        if (file != null) {
-            fcChooser.setInitialDirectory(file.getParentFile());
-            tfInterlace.setText(file.getAbsolutePath());
-        }
-    }
-
     /**
      * Choose a folder to input images.
      */
@@ -503,11 +493,6 @@ public class ImageResizerLight extends Application {
                 chooseOutputFolder();
             }
         });
-        tfInterlace.setOnMouseClicked(e -> {
-            if (tfInterlace.isEditable() && e.getClickCount() == 3) {
-                chooseMagickFile();
-            }
-        });
         tfSource.setOnKeyPressed(e -> {
             if (e.getCode() == KeyCode.ENTER) {
                 chooseInputFolder();
@@ -518,11 +503,6 @@ public class ImageResizerLight extends Application {
                 chooseOutputFolder();
             }
         });
-        tfInterlace.setOnKeyPressed(e -> {
-            if (tfInterlace.isEditable() && e.getCode() == KeyCode.ENTER) {
-                chooseMagickFile();
-            }
-        });
 
         bStartOrStop.setOnAction(e -> {
             if (running) {
@@ -549,59 +529,100 @@ public class ImageResizerLight extends Application {
      */
     @Override
     public void start(final Stage primaryStage) {
+        final Rectangle2D screenRectangle = Screen.getPrimary().getBounds();
+        screenWidth = (int) screenRectangle.getWidth();
+        screenHeight = (int) screenRectangle.getHeight();
+        defaultMaxSide = Math.max(screenWidth, screenHeight);
+
         font = new Font(FONT_SIZE);
         insets = new Insets(GAP, GAP, GAP, GAP);
         padding = new Insets(PADDING_GAP, PADDING_GAP, PADDING_GAP, PADDING_GAP);
 
         directoryChooser = new DirectoryChooser();
-        fcChooser = new FileChooser();
 
         lSource = new Label("Source Folder:");
         lDestination = new Label("Destination Folder:");
         lMaxSide = new Label("Side Maximum:");
+        lResampling = new Label("Resampling:");
         lQuality = new Label("Quality:");
+        lTargetSize = new Label("File Size Maximum (KiB):");
+        lProgress = new Label();
+        lThroughput = new Label();
         lAuthor = new Label("Powered by magiclen.org");
 
         lSource.setFont(font);
         lDestination.setFont(font);
         lMaxSide.setFont(font);
+        lResampling.setFont(font);
         lQuality.setFont(font);
+        lTargetSize.setFont(font);
+        lProgress.setFont(font);
+        lThroughput.setFont(new Font(FONT_SIZE * 0.75));
         lAuthor.setFont(font);
 
+        lProgress.setAlignment(Pos.CENTER);
+        lProgress.setMaxWidth(Integer.MAX_VALUE);
+        lThroughput.setAlignment(Pos.CENTER);
+        lThroughput.setMaxWidth(Integer.MAX_VALUE);
+
         lAuthor.setAlignment(Pos.BASELINE_RIGHT);
         lAuthor.setMaxWidth(Integer.MAX_VALUE);
 
         tfSource = new TextField();
         tfDestination = new TextField();
-        tfMaxSide = new TextField(String.valueOf(DEFAULT_MAX_SIDE));
-        tfInterlace = new TextField();
+        tfMaxSide = new TextField(String.valueOf(defaultMaxSide));
+        tfTargetSize = new TextField();
 
         tfSource.setFont(font);
         tfDestination.setFont(font);
         tfMaxSide.setFont(font);
-        tfInterlace.setFont(font);
+        tfTargetSize.setFont(font);
 
         tfSource.setPromptText("Click here 3 times or press enter to choose a folder.");
         tfDestination.setPromptText("Click here 3 times or press enter to choose a folder.");
-        tfMaxSide.setPromptText("Input a value which must be bigger than zero.");
-        tfInterlace.setPromptText("Interlace is disabled.");
+        tfMaxSide.setPromptText("Input values bigger than zero, separated by commas.");
+        tfTargetSize.setPromptText("Leave it empty to always use the quality.");
 
         cbOnlyShrink = new CheckBox("Only Shrink");
+        cbIncremental = new CheckBox("Incremental");
         cbInterlace = new CheckBox("Interlace");
+        cbSharpen = new CheckBox("Sharpen");
+        cbWatch = new CheckBox("Watch");
 
         cbOnlyShrink.setFont(font);
         cbOnlyShrink.setMaxWidth(Integer.MAX_VALUE);
         cbOnlyShrink.setSelected(true);
+        cbIncremental.setFont(font);
+        cbIncremental.setSelected(false);
         cbInterlace.setFont(font);
         cbInterlace.setSelected(false);
+        cbSharpen.setFont(font);
+        cbSharpen.setSelected(true);
+        cbWatch.setFont(font);
+        cbWatch.setSelected(false);
+
+        chResampling = new ChoiceBox<>();
+        chResampling.getItems().addAll(ImageResampler.Tier.values());
+        chResampling.setValue(ConversionSettings.DEFAULT_RESAMPLING_TIER);
+        chResampling.setStyle(String.format("-fx-font-size: %.0fpx;", FONT_SIZE));
+        chResampling.setConverter(new StringConverter<ImageResampler.Tier>() {
+            @Override
+            public String toString(final ImageResampler.Tier tier) {
+                switch (tier) {
+                    case FAST:
+                        return "Fast";
+                    case BALANCED:
+                        return "Balanced";
+                    default:
+                        return "Best";
+                }
+            }
 
-        tfInterlace.editableProperty().bind(cbInterlace.selectedProperty());
-        tfInterlace.editableProperty().addListener((e) -> {
-            if (tfInterlace.isEditable()) {
-                tfInterlace.setPromptText("Click here 3 times or press enter to choose a magick file.");
-            } else {
-                tfInterlace.setPromptText("Interlace is disabled.");
+            @Override
+            public ImageResampler.Tier fromString(final String string) {
+                return ImageResampler.Tier.of(string);
             }
+
         });
 
         sQuality = new Slider(0, 100, 80);
@@ -641,21 +662,34 @@ public class ImageResizerLight extends Application {
         bStartOrStop.setFont(font);
         bStartOrStop.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
 
-        BorderPane.setMargin(cbInterlace, insets);
-        BorderPane.setMargin(tfInterlace, insets);
-        BorderPane.setAlignment(cbInterlace, Pos.CENTER);
-        BorderPane.setAlignment(tfInterlace, Pos.CENTER);
-        bpInterlace = new BorderPane(tfInterlace);
-        bpInterlace.setLeft(cbInterlace);
-
-        final Tooltip tipInterlace = new Tooltip("It will be user-friendly on web pages.");
+        final Tooltip tipInterlace = new Tooltip("It will be user-friendly on web pages. Output images are progressive JPEG files.");
         tipInterlace.setFont(font);
         Tooltip.install(cbInterlace, tipInterlace);
 
+        final Tooltip tipSharpen = new Tooltip("Sharpen shrunk images appropriately.");
+        tipSharpen.setFont(font);
+        Tooltip.install(cbSharpen, tipSharpen);
+
+        final Tooltip tipResampling = new Tooltip("Fast is good enough for previews. Best keeps the most details.");
+        tipResampling.setFont(font);
+        Tooltip.install(chResampling, tipResampling);
+
+        final Tooltip tipIncremental = new Tooltip("Skip images whose outputs are up to date.");
+        tipIncremental.setFont(font);
+        Tooltip.install(cbIncremental, tipIncremental);
+
+        final Tooltip tipWatch = new Tooltip("Keep watching the source folder and convert new or modified images until you stop.");
+        tipWatch.setFont(font);
+        Tooltip.install(cbWatch, tipWatch);
+
         final Tooltip tipQuality = new Tooltip("The higher quality, the bigger file size.");
         tipQuality.setFont(font);
         Tooltip.install(sQuality, tipQuality);
 
+        final Tooltip tipTargetSize = new Tooltip("The quality is lowered as little as possible to keep output files within this size.");
+        tipTargetSize.setFont(font);
+        Tooltip.install(tfTargetSize, tipTargetSize);
+
         final Tooltip tipAuthor = new Tooltip("Magic Len");
         tipAuthor.setFont(font);
         Tooltip.install(lAuthor, tipAuthor);
@@ -667,9 +701,25 @@ public class ImageResizerLight extends Application {
         VBox.setMargin(tfSource, insets);
         VBox.setMargin(tfDestination, insets);
         VBox.setMargin(tfMaxSide, insets);
-        VBox.setMargin(cbOnlyShrink, insets);
+        HBox.setMargin(cbOnlyShrink, insets);
+        HBox.setMargin(cbIncremental, insets);
+        HBox.setMargin(cbInterlace, insets);
+        HBox.setMargin(cbSharpen, insets);
+        HBox.setMargin(cbWatch, insets);
+        HBox.setHgrow(cbOnlyShrink, Priority.ALWAYS);
+        hbOptions = new HBox(cbOnlyShrink, cbIncremental, cbInterlace, cbSharpen, cbWatch);
+        hbOptions.setAlignment(Pos.CENTER_LEFT);
+        HBox.setMargin(lResampling, insets);
+        HBox.setMargin(chResampling, insets);
+        hbResampling = new HBox(lResampling, chResampling);
+        hbResampling.setAlignment(Pos.CENTER_LEFT);
+
         VBox.setMargin(sQuality, insets);
+        VBox.setMargin(lTargetSize, insets);
+        VBox.setMargin(tfTargetSize, insets);
         VBox.setMargin(pbProgress, insets);
+        VBox.setMargin(lProgress, insets);
+        VBox.setMargin(lThroughput, insets);
         VBox.setMargin(bStartOrStop, insets);
         VBox.setMargin(lAuthor, insets);
 
@@ -679,15 +729,15 @@ public class ImageResizerLight extends Application {
         MAIN_ROOT = new VBox();
         MAIN_ROOT.setAlignment(Pos.TOP_LEFT);
         MAIN_ROOT.setPadding(padding);
-        MAIN_ROOT.getChildren().addAll(lSource, tfSource, lDestination, tfDestination, lMaxSide, tfMaxSide, bpInterlace, cbOnlyShrink, lQuality, sQuality, pbProgress, bStartOrStop, lAuthor);
+        MAIN_ROOT.getChildren().addAll(lSource, tfSource, lDestination, tfDestination, lMaxSide, tfMaxSide, hbOptions, hbResampling, lQuality, sQuality, lTargetSize, tfTargetSize, pbProgress, lProgress, lThroughput, bStartOrStop, lAuthor);
 
         MAIN_SCENE = new Scene(MAIN_ROOT, WIDTH, HEIGHT);
 
         primaryStage.setResizable(true);
         primaryStage.setTitle("Image Resizer Light");
         primaryStage.setScene(MAIN_SCENE);
-        primaryStage.setX((SCREEN_WIDTH - WIDTH) / 2);
-        primaryStage.setY((SCREEN_HEIGHT - HEIGHT) / 2);
+        primaryStage.setX((screenWidth - WIDTH) / 2);
+        primaryStage.setY((screenHeight - HEIGHT) / 2);
 
         MAIN_STAGE = primaryStage;
 
@@ -697,7 +747,8 @@ public class ImageResizerLight extends Application {
     }
 
     /**
-     * The initiation of this program.
+     * The initiation of this program. To convert images without a display,
+     * use {@link ImageResizerLightCLI} instead.
      *
      * @param args not used
      */
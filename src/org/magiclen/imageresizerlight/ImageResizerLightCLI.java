@@ -0,0 +1,669 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The command-line interface of Image Resizer Light. It converts images in
+ * batches without a display and without starting JavaFX.
+ *
+ * @author Magic Len
+ */
+public final class ImageResizerLightCLI {
+
+    // -----Class Constant-----
+    /**
+     * The default value of picture's max side.
+     */
+    private static final int DEFAULT_MAX_SIDE = 1920;
+    /**
+     * The default value of quality, from 0 to 100.
+     */
+    private static final int DEFAULT_QUALITY = 80;
+    /**
+     * The exit code when all files are converted successfully.
+     */
+    public static final int EXIT_SUCCESS = 0;
+    /**
+     * The exit code when some files cannot be converted.
+     */
+    public static final int EXIT_FAILURE = 1;
+    /**
+     * The exit code when the arguments are incorrect.
+     */
+    public static final int EXIT_USAGE = 2;
+    /**
+     * How long the shutdown hook waits for a watch to stop, in seconds.
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+    /**
+     * The default address which the server listens on. Only local clients
+     * can connect to it.
+     */
+    private static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+
+    // -----Class Method-----
+    /**
+     * Print the usage of this program.
+     *
+     * @param out input a print stream
+     */
+    private static void printUsage(final PrintStream out) {
+        out.println("Image Resizer Light ".concat(Version.getVersion()));
+        out.println();
+        out.println("Usage: java -cp ImageResizerLight.jar org.magiclen.imageresizerlight.ImageResizerLightCLI [options] <source> <destination>");
+        out.println("       java -cp ImageResizerLight.jar org.magiclen.imageresizerlight.ImageResizerLightCLI --serve <port> [options] <source>");
+        out.println("       java -cp ImageResizerLight.jar org.magiclen.imageresizerlight.ImageResizerLightCLI --merge-shards <destination>");
+        out.println();
+        out.println("Options:");
+        out.println("  -s, --max-side <pixels>      The length of the max side of output images. (default: " + DEFAULT_MAX_SIDE + ")");
+        out.println("  -q, --quality <0-100>        The quality of output images. (default: " + DEFAULT_QUALITY + ")");
+        out.println("  -t, --target-size <KiB>      The maximum size of output files. The quality is lowered as little as");
+        out.println("                               possible to meet it.");
+        out.println("  --size <pixels>[,quality=<0-100>][,target=<KiB>][,folder=<name>][,suffix=<text>]");
+        out.println("                               Add an output size. It can be used several times, and each image is");
+        out.println("                               decoded once for all sizes. If there are several sizes without folders");
+        out.println("                               or suffixes, each one is written into a subfolder named after its size.");
+        out.println("  --only-shrink                Do not enlarge small images. (default)");
+        out.println("  --allow-enlarge              Enlarge small images to the max side.");
+        out.println("  -i, --interlace              Write progressive (interlaced) JPEG files.");
+        out.println("  --sharpen <0-200>            The strength of sharpening shrunk images, in percent of the automatic");
+        out.println("                               amount. (default: " + Math.round(ConversionSettings.DEFAULT_SHARPEN_STRENGTH * 100) + ")");
+        out.println("  --no-sharpen                 Do not sharpen shrunk images.");
+        out.println("  --resampling <tier>          The quality of resampling: fast (progressive bilinear halving), balanced");
+        out.println("                               (Mitchell) or best (Lanczos3). (default: " + ConversionSettings.DEFAULT_RESAMPLING_TIER.getName() + ")");
+        out.println("  -w, --workers <count>        The number of workers. (default: " + ConversionEngine.DEFAULT_WORKER_COUNT + ")");
+        out.println("  -m, --memory-budget <MiB>    The memory budget for images being converted. (default: " + (MemoryBudget.DEFAULT_BUDGET >> 20) + ")");
+        out.println("  --incremental                Skip images whose outputs are up to date.");
+        out.println("  --no-subfolders              Do not input images from subfolders.");
+        out.println("  --resume                     Resume the stopped job in the destination folder.");
+        out.println("  --dedup                      Convert byte-identical images once and link the other outputs.");
+        out.println("  --watch                      Keep watching the source folder and convert new or modified images,");
+        out.println("                               until Ctrl+C is pressed. The manifest of --incremental is always kept.");
+        out.println("  --quiet-period <ms>          How long a watched image needs to stay unchanged before it is converted.");
+        out.println("                               (default: " + FolderWatcher.DEFAULT_QUIET_PERIOD_MILLISECONDS + ")");
+        out.println("  --shard <index>/<count>      Convert only one shard of the images, picked by a stable hash of their");
+        out.println("                               paths, such as 2/4. Processes of all shards can share one destination");
+        out.println("                               folder, and each one writes the summary of its shard into it.");
+        out.println("  --merge-shards               Merge the summaries of all shards in the destination folder into the");
+        out.println("                               JSON and CSV reports of the whole job.");
+        out.println("  --sync                       Flush the output files to the storage device in one batch at the end.");
+        out.println("  --serve <port>               Serve images in the source folder resized on demand over HTTP, at");
+        out.println("                               /resize?path=<path>&maxSide=<pixels>&quality=<0-100>&resampling=<tier>.");
+        out.println("  --bind <address>             The address which the server listens on. (default: " + DEFAULT_BIND_ADDRESS + ")");
+        out.println("  --max-side-limit <pixels>    The largest max side which a request can ask for. (default: " + ResizeServer.DEFAULT_MAX_SIDE_LIMIT + ")");
+        out.println("  --memory-cache <MiB>         The size of the memory tier of the result cache. (default: " + (ResultCache.DEFAULT_MEMORY_CAPACITY >> 20) + ")");
+        out.println("  --disk-cache <folder>        The folder of the disk tier of the result cache.");
+        out.println("                               (default: " + ResultCache.DEFAULT_FOLDER.getAbsolutePath() + ")");
+        out.println("  --disk-cache-size <MiB>      The size of the disk tier of the result cache. (default: " + (ResultCache.DEFAULT_DISK_CAPACITY >> 20) + ")");
+        out.println("  -r, --report                 Write JSON and CSV reports of the statistics into the destination folder.");
+        out.println("  -h, --help                   Show this help.");
+    }
+
+    /**
+     * Parse an integer argument.
+     *
+     * @param name input the name of the option
+     * @param value input the value of the option
+     * @param min input the minimum value
+     * @param max input the maximum value
+     * @return the integer
+     * @throws IllegalArgumentException if the value is incorrect
+     */
+    private static int parseInt(final String name, final String value, final int min, final int max) {
+        if (value == null) {
+            throw new IllegalArgumentException(String.format("The option %s needs a value.", name));
+        }
+        final int i;
+        try {
+            i = Integer.parseInt(value.trim());
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("The value of the option %s must be an integer.", name));
+        }
+        if (i < min || i > max) {
+            throw new IllegalArgumentException(String.format("The value of the option %s must be between %d and %d.", name, min, max));
+        }
+        return i;
+    }
+
+    /**
+     * Parse the value of the --size option.
+     *
+     * @param name input the name of the option
+     * @param value input the value of the option
+     * @param defaultQuality input the quality used if the value has none,
+     * from 0 to 100
+     * @param defaultTargetSize input the target size used if the value has
+     * none, in bytes
+     * @param multiple whether there are several sizes
+     * @return the output variant
+     * @throws IllegalArgumentException if the value is incorrect
+     */
+    private static OutputVariant parseVariant(final String name, final String value, final int defaultQuality, final long defaultTargetSize, final boolean multiple) {
+        final String[] fields = value.split(",");
+        final int maxSideSize = parseInt(name, fields[0], 1, Integer.MAX_VALUE);
+        int quality = defaultQuality;
+        long targetSize = defaultTargetSize;
+        String folder = null, suffix = null;
+        for (int i = 1; i < fields.length; ++i) {
+            final String field = fields[i];
+            final int equalIndex = field.indexOf('=');
+            final String key = equalIndex < 0 ? field.trim() : field.substring(0, equalIndex).trim();
+            final String v = equalIndex < 0 ? null : field.substring(equalIndex + 1);
+            switch (key) {
+                case "quality":
+                    quality = parseInt(name.concat(" quality"), v, 0, 100);
+                    break;
+                case "target":
+                    targetSize = (long) parseInt(name.concat(" target"), v, 1, Integer.MAX_VALUE) << 10;
+                    break;
+                case "folder":
+                    folder = v;
+                    break;
+                case "suffix":
+                    suffix = v;
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown field of the option %s: %s", name, key));
+            }
+        }
+        if (multiple && folder == null && suffix == null) {
+            folder = String.valueOf(maxSideSize);
+        }
+        return new OutputVariant(maxSideSize, quality / 100.0f, targetSize, folder, suffix);
+    }
+
+    /**
+     * Run this program.
+     *
+     * @param args input arguments
+     * @return the exit code
+     */
+    public static int run(final String[] args) {
+        int maxSideSize = DEFAULT_MAX_SIDE;
+        int quality = DEFAULT_QUALITY;
+        long targetSize = 0;
+        int workerCount = ConversionEngine.DEFAULT_WORKER_COUNT;
+        boolean onlyShrink = true;
+        boolean recursive = true;
+        boolean incremental = false;
+        long memoryBudget = MemoryBudget.DEFAULT_BUDGET;
+        boolean interlace = false;
+        int sharpen = Math.round(ConversionSettings.DEFAULT_SHARPEN_STRENGTH * 100);
+        ImageResampler.Tier resamplingTier = ConversionSettings.DEFAULT_RESAMPLING_TIER;
+        boolean report = false;
+        boolean deduplicate = false;
+        boolean sync = false;
+        int port = -1;
+        String bindAddress = DEFAULT_BIND_ADDRESS;
+        int maxSideLimit = ResizeServer.DEFAULT_MAX_SIDE_LIMIT;
+        long memoryCacheSize = ResultCache.DEFAULT_MEMORY_CAPACITY;
+        File diskCacheFolder = ResultCache.DEFAULT_FOLDER;
+        long diskCacheSize = ResultCache.DEFAULT_DISK_CAPACITY;
+        boolean resume = false;
+        boolean watch = false;
+        long quietPeriod = FolderWatcher.DEFAULT_QUIET_PERIOD_MILLISECONDS;
+        Shard shard = null;
+        boolean mergeShards = false;
+        boolean maxSideSet = false;
+        final ArrayList<String> paths = new ArrayList<>();
+        final ArrayList<String[]> sizes = new ArrayList<>();
+        final ArrayList<OutputVariant> variants = new ArrayList<>();
+        final ConversionSettings settings;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                final String value = i + 1 < args.length ? args[i + 1] : null;
+                switch (arg) {
+                    case "-h":
+                    case "--help":
+                        printUsage(System.out);
+                        return EXIT_SUCCESS;
+                    case "-s":
+                    case "--max-side":
+                        maxSideSize = parseInt(arg, value, 1, Integer.MAX_VALUE);
+                        maxSideSet = true;
+                        ++i;
+                        break;
+                    case "--size":
+                        if (value == null) {
+                            throw new IllegalArgumentException(String.format("The option %s needs a value.", arg));
+                        }
+                        sizes.add(new String[]{arg, value});
+                        ++i;
+                        break;
+                    case "-q":
+                    case "--quality":
+                        quality = parseInt(arg, value, 0, 100);
+                        ++i;
+                        break;
+                    case "-t":
+                    case "--target-size":
+                        targetSize = (long) parseInt(arg, value, 1, Integer.MAX_VALUE) << 10;
+                        ++i;
+                        break;
+                    case "-w":
+                    case "--workers":
+                        workerCount = parseInt(arg, value, 1, Integer.MAX_VALUE);
+                        ++i;
+                        break;
+                    case "-m":
+                    case "--memory-budget":
+                        memoryBudget = (long) parseInt(arg, value, 1, Integer.MAX_VALUE) << 20;
+                        ++i;
+                        break;
+                    case "-i":
+                    case "--interlace":
+                        interlace = true;
+                        break;
+                    case "--sharpen":
+                        sharpen = parseInt(arg, value, 0, Math.round(ConversionSettings.MAX_SHARPEN_STRENGTH * 100));
+                        ++i;
+                        break;
+                    case "--no-sharpen":
+                        sharpen = 0;
+                        break;
+                    case "--resampling":
+                        if (value == null) {
+                            throw new IllegalArgumentException(String.format("The option %s needs a value.", arg));
+                        }
+                        resamplingTier = ImageResampler.Tier.of(value);
+                        ++i;
+                        break;
+                    case "--only-shrink":
+                        onlyShrink = true;
+                        break;
+                    case "--allow-enlarge":
+                        onlyShrink = false;
+                        break;
+                    case "--incremental":
+                        incremental = true;
+                        break;
+                    case "--no-subfolders":
+                        recursive = false;
+                        break;
+                    case "--resume":
+                        resume = true;
+                        break;
+                    case "--watch":
+                        watch = true;
+                        break;
+                    case "--quiet-period":
+                        quietPeriod = parseInt(arg, value, 0, Integer.MAX_VALUE);
+                        ++i;
+                        break;
+                    case "--dedup":
+                        deduplicate = true;
+                        break;
+                    case "--sync":
+                        sync = true;
+                        break;
+                    case "--shard":
+                        if (value == null) {
+                            throw new IllegalArgumentException(String.format("The option %s needs a value.", arg));
+                        }
+                        shard = Shard.parse(value);
+                        ++i;
+                        break;
+                    case "--merge-shards":
+                        mergeShards = true;
+                        break;
+                    case "--serve":
+                        port = parseInt(arg, value, 0, 65535);
+                        ++i;
+                        break;
+                    case "--bind":
+                        if (value == null) {
+                            throw new IllegalArgumentException(String.format("The option %s needs a value.", arg));
+                        }
+                        bindAddress = value;
+                        ++i;
+                        break;
+                    case "--max-side-limit":
+                        maxSideLimit = parseInt(arg, value, 1, Integer.MAX_VALUE);
+                        ++i;
+                        break;
+                    case "--memory-cache":
+                        memoryCacheSize = (long) parseInt(arg, value, 0, Integer.MAX_VALUE) << 20;
+                        ++i;
+                        break;
+                    case "--disk-cache":
+                        if (value == null) {
+                            throw new IllegalArgumentException(String.format("The option %s needs a value.", arg));
+                        }
+                        diskCacheFolder = new File(value).getAbsoluteFile();
+                        ++i;
+                        break;
+                    case "--disk-cache-size":
+                        diskCacheSize = (long) parseInt(arg, value, 0, Integer.MAX_VALUE) << 20;
+                        ++i;
+                        break;
+                    case "-r":
+                    case "--report":
+                        report = true;
+                        break;
+                    default:
+                        if (arg.startsWith("-") && arg.length() > 1) {
+                            throw new IllegalArgumentException("Unknown option: ".concat(arg));
+                        }
+                        paths.add(arg);
+                }
+            }
+            if (mergeShards) {
+                if (paths.size() != 1) {
+                    throw new IllegalArgumentException("You need input the path of the destination folder of the shards.");
+                }
+                if (port >= 0 || shard != null) {
+                    throw new IllegalArgumentException("The option --merge-shards cannot be used with --serve or --shard.");
+                }
+            } else if (port >= 0) {
+                if (paths.size() != 1) {
+                    throw new IllegalArgumentException("You need input the path of a source folder to serve.");
+                }
+                if (!sizes.isEmpty() || watch || resume || shard != null) {
+                    throw new IllegalArgumentException("The option --serve cannot be used with --size, --watch, --resume or --shard.");
+                }
+            } else if (paths.size() != 2) {
+                throw new IllegalArgumentException("You need input the path of a source folder and the path of a destination folder.");
+            }
+            if (maxSideSet && !sizes.isEmpty()) {
+                throw new IllegalArgumentException("The options --max-side and --size cannot be used together.");
+            }
+            if (watch && resume) {
+                throw new IllegalArgumentException("The options --watch and --resume cannot be used together.");
+            }
+            for (final String[] size : sizes) {
+                variants.add(parseVariant(size[0], size[1], quality, targetSize, sizes.size() > 1));
+            }
+            if (variants.isEmpty()) {
+                variants.add(new OutputVariant(maxSideSize, quality / 100.0f, targetSize, null, null));
+            }
+            settings = new ConversionSettings(variants, onlyShrink, interlace, sharpen / 100.0f, resamplingTier);
+        } catch (final IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println();
+            printUsage(System.err);
+            return EXIT_USAGE;
+        }
+
+        if (mergeShards) {
+            return mergeShards(new File(paths.get(0)).getAbsoluteFile());
+        }
+        final File source = new File(paths.get(0)).getAbsoluteFile();
+        if (!source.exists() || !source.isDirectory()) {
+            System.err.println("You need to input the path of a source folder correctly.");
+            return EXIT_USAGE;
+        }
+        if (port >= 0) {
+            return serve(source, new InetSocketAddress(bindAddress, port), settings, workerCount, memoryBudget, maxSideLimit, memoryCacheSize, diskCacheFolder, diskCacheSize);
+        }
+        final File destination = new File(paths.get(1)).getAbsoluteFile();
+        if (destination.equals(source)) {
+            System.err.println("You cannot set your destination in the same folder as the source.");
+            return EXIT_USAGE;
+        }
+        final File destinationParent = destination.getParentFile();
+        if (destinationParent != null && destinationParent.getAbsolutePath().startsWith(source.getAbsolutePath())) {
+            System.err.println("You cannot set your destination in the subfolders of the source.");
+            return EXIT_USAGE;
+        }
+        if (!destination.exists()) {
+            if (!destination.mkdirs()) {
+                System.err.println("Cannot create folder: ".concat(destination.getAbsolutePath()));
+                return EXIT_FAILURE;
+            }
+        } else if (!destination.isDirectory()) {
+            System.err.println("You need to input the path of a destination folder correctly.");
+            return EXIT_USAGE;
+        } else if (!destination.canWrite()) {
+            System.err.println("Cannot write files in the folder: ".concat(destination.getAbsolutePath()));
+            return EXIT_FAILURE;
+        }
+
+        final ConversionEngine engine = new ConversionEngine(workerCount);
+        engine.setIncremental(incremental);
+        engine.setMemoryBudget(memoryBudget);
+        engine.setReportEnabled(report);
+        engine.setDeduplicate(deduplicate);
+        engine.setSyncOutputs(sync);
+        engine.setResume(resume);
+        engine.setQuietPeriod(quietPeriod);
+        engine.setShard(shard);
+        if (resume) {
+            final ConversionJournal journal = ConversionJournal.load(destination.toPath(), shard);
+            if (journal.matches(source.toPath(), recursive, settings.getFingerprint())) {
+                System.out.println(String.format("Resuming: %d file(s) have been done.", journal.getSucceededCount()));
+            } else {
+                System.out.println("There is no stopped job with the same source and settings. A new job is started.");
+            }
+        }
+        if (watch) {
+            return watch(engine, source, recursive, destination, settings);
+        }
+        try {
+            engine.convert(source, recursive, destination, settings, null);
+        } catch (final InterruptedException ex) {
+            //do nothing
+        }
+
+        final ConversionStatistics statistics = engine.getStatistics();
+        for (final String[] failure : statistics.getFailureSamples()) {
+            System.err.println(String.format("Failed to %s %s: %s", failure[1], failure[0], failure[2]));
+        }
+        if (engine.getFailure() != null) {
+            System.err.println("The conversion is stopped by an error: ".concat(String.valueOf(engine.getFailure())));
+        }
+        final IOException reportFailure = engine.getReportFailure();
+        if (reportFailure != null) {
+            System.err.println(String.format("Cannot write the %s: %s", shard != null ? "summary of the shard " + shard : "reports", reportFailure));
+        } else if (shard != null) {
+            System.out.println(String.format("Summary of the shard %s: %s", shard, new File(destination, shard.getSummaryName()).getAbsolutePath()));
+        } else if (report) {
+            System.out.println("Reports: ".concat(new File(destination, ConversionStatistics.JSON_REPORT_NAME).getAbsolutePath()));
+        }
+
+        final int doneCount = engine.getDoneCount();
+        final int successCount = engine.getSuccessCount();
+        final int fileCount = engine.getDiscoveredCount();
+        if (!engine.isScanFinished() || doneCount < fileCount || engine.getFailure() != null) {
+            System.out.println(String.format("Stopped!(%d/%d/%d)", successCount, doneCount, fileCount));
+            return EXIT_FAILURE;
+        } else if (fileCount == 0) {
+            System.out.println("Nothing to resize.");
+            return reportFailure == null ? EXIT_SUCCESS : EXIT_FAILURE;
+        }
+        if (incremental) {
+            System.out.println(String.format("%d file(s) are up to date.", engine.getSkippedCount()));
+        }
+        if (deduplicate) {
+            System.out.println(String.format("%d file(s) are duplicates.", engine.getDuplicateCount()));
+        }
+        final long passThroughCount = statistics.getPassThroughCount();
+        if (passThroughCount > 0) {
+            System.out.println(String.format("%d output(s) need no resizing and are copied without their metadata.", passThroughCount));
+        }
+        System.out.println(String.format("Finished!(%d/%d)", successCount, fileCount));
+        return successCount == fileCount && reportFailure == null ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    /**
+     * Convert images in the source folder and keep watching it until the
+     * program is interrupted.
+     *
+     * @param engine input the engine
+     * @param source input the source folder
+     * @param recursive whether to extend to subfolders
+     * @param destination input the destination folder
+     * @param settings input the settings of the conversion
+     * @return the exit code
+     */
+    private static int watch(final ConversionEngine engine, final File source, final boolean recursive, final File destination, final ConversionSettings settings) {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        // let Ctrl+C finish the files being converted and save the manifest
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            engine.stop();
+            try {
+                stopped.await(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (final InterruptedException ex) {
+                //do nothing
+            }
+        }));
+        try {
+            System.out.println(String.format("Watching %s. Press Ctrl+C to stop.", source.getAbsolutePath()));
+            engine.watch(source, recursive, destination, settings, (doneCount, successCount, discoveredCount, scanFinished) -> {
+                System.out.println(String.format("(%d/%d/%d)", successCount, doneCount, discoveredCount));
+            });
+        } catch (final IOException ex) {
+            System.err.println("Cannot watch the folder: ".concat(source.getAbsolutePath()));
+            return EXIT_FAILURE;
+        } catch (final InterruptedException ex) {
+            //do nothing
+        } finally {
+            final ConversionStatistics statistics = engine.getStatistics();
+            if (statistics != null) {
+                for (final String[] failure : statistics.getFailureSamples()) {
+                    System.err.println(String.format("Failed to %s %s: %s", failure[1], failure[0], failure[2]));
+                }
+            }
+            if (engine.getFailure() != null) {
+                System.err.println("The watch is stopped by an error: ".concat(String.valueOf(engine.getFailure())));
+            }
+            if (engine.getReportFailure() != null) {
+                System.err.println("Cannot write the summary or the reports: ".concat(String.valueOf(engine.getReportFailure())));
+            }
+            System.out.println(String.format("Stopped watching!(%d/%d)", engine.getSuccessCount(), engine.getDoneCount()));
+            stopped.countDown();
+        }
+        return engine.getFailure() == null && engine.getReportFailure() == null && engine.getSuccessCount() == engine.getDoneCount() ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    /**
+     * Merge the summaries of all shards in a destination folder into the
+     * reports of the whole job.
+     *
+     * @param destination input the destination folder
+     * @return the exit code
+     */
+    private static int mergeShards(final File destination) {
+        final File[] files = destination.listFiles(file -> Shard.ofSummary(file) != null);
+        if (files == null) {
+            System.err.println("You need to input the path of a destination folder correctly.");
+            return EXIT_USAGE;
+        }
+        final ArrayList<Path> summaries = new ArrayList<>(files.length);
+        for (final File file : files) {
+            summaries.add(file.toPath());
+        }
+        final ConversionStatistics statistics;
+        try {
+            statistics = ConversionStatistics.merge(summaries);
+            statistics.writeReports(destination.toPath());
+        } catch (final IOException ex) {
+            System.err.println("Cannot merge the shards: ".concat(String.valueOf(ex.getMessage())));
+            return EXIT_FAILURE;
+        }
+        for (final String[] failure : statistics.getFailureSamples()) {
+            System.err.println(String.format("Failed to %s %s: %s", failure[1], failure[0], failure[2]));
+        }
+        System.out.println("Reports: ".concat(new File(destination, ConversionStatistics.JSON_REPORT_NAME).getAbsolutePath()));
+        final int successCount = statistics.getSuccessCount();
+        final int fileCount = statistics.getDiscoveredCount();
+        if (!statistics.isComplete()) {
+            System.out.println(String.format("Stopped!(%d/%d/%d, %d shards)", successCount, statistics.getDoneCount(), fileCount, statistics.getShardCount()));
+            return EXIT_FAILURE;
+        }
+        System.out.println(String.format("Finished!(%d/%d, %d shards)", successCount, fileCount, statistics.getShardCount()));
+        return successCount == fileCount ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    /**
+     * Serve images in the source folder resized on demand until the program
+     * is interrupted.
+     *
+     * @param source input the source folder
+     * @param address input the address to listen on
+     * @param settings input the settings whose max side and quality are used
+     * when a request does not have them
+     * @param threadCount input the number of threads which handle requests
+     * @param memoryBudget input the budget of memory for images which are
+     * being converted, in bytes
+     * @param maxSideLimit input the largest max side which a request can ask
+     * for
+     * @param memoryCacheSize input the size of the memory tier, in bytes
+     * @param diskCacheFolder input the folder of the disk tier
+     * @param diskCacheSize input the size of the disk tier, in bytes
+     * @return the exit code
+     */
+    private static int serve(final File source, final InetSocketAddress address, final ConversionSettings settings, final int threadCount, final long memoryBudget, final int maxSideLimit, final long memoryCacheSize, final File diskCacheFolder, final long diskCacheSize) {
+        if (address.isUnresolved()) {
+            System.err.println("Cannot resolve the address: ".concat(address.getHostString()));
+            return EXIT_USAGE;
+        }
+        final ResizeServer server;
+        try {
+            final ResultCache cache = new ResultCache(memoryCacheSize, diskCacheFolder, diskCacheSize);
+            server = new ResizeServer(source, address, settings, cache, threadCount, memoryBudget);
+            server.setMaxSideLimit(maxSideLimit);
+        } catch (final IOException ex) {
+            System.err.println("Cannot start the server: ".concat(String.valueOf(ex.getMessage())));
+            return EXIT_FAILURE;
+        }
+        final CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            System.out.println(String.format("Stopped serving!(requests: %d, memory: %d, disk: %d, coalesced: %d, converted: %d)", server.getRequestCount(), server.getMemoryHitCount(), server.getDiskHitCount(), server.getCoalescedCount(), server.getConversionCount()));
+            stopped.countDown();
+        }));
+        server.start();
+        final InetSocketAddress bound = server.getAddress();
+        System.out.println(String.format("Serving %s at http://%s:%d%s. Press Ctrl+C to stop.", source.getAbsolutePath(), bound.getHostString(), bound.getPort(), ResizeServer.RESIZE_PATH));
+        try {
+            stopped.await();
+        } catch (final InterruptedException ex) {
+            //do nothing
+        }
+        return EXIT_SUCCESS;
+    }
+
+    /**
+     * The initiation of the command-line interface.
+     *
+     * @param args input arguments
+     */
+    public static void main(final String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageResizerLightCLI() {
+
+    }
+}
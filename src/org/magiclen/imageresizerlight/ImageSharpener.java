@@ -0,0 +1,381 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.RecursiveAction;
+import org.magiclen.magicimage.ImageSharpen;
+
+/**
+ * Sharpen images on their pixel arrays. ImageSharpen.sharpen convolves a
+ * 3x3 kernel which weighs the center by 1 + amount and each neighbor by
+ * -amount / 8. Here the same kernel is computed as an unsharp mask with a
+ * separable box blur: each row is summed horizontally once, and three row
+ * sums make the box. The result is the same up to rounding. The rows are
+ * sharpened in bands by a fork-join task, so the threads of the common pool
+ * help with big images, and the inner loops run on plain int arrays which
+ * the JIT compiler can vectorize.
+ *
+ * @author Magic Len
+ */
+public final class ImageSharpener {
+
+    // -----Class Constant-----
+    /**
+     * The number of fraction bits of the fixed-point weights.
+     */
+    private static final int SHIFT = 12;
+    /**
+     * The minimum number of pixels of a band. Smaller images are sharpened
+     * by the calling thread alone.
+     */
+    private static final int MIN_BAND_PIXELS = 1 << 17;
+    /**
+     * The minimum number of rows of a band.
+     */
+    private static final int MIN_BAND_ROWS = 8;
+
+    // -----Class Class-----
+    /**
+     * The pixel array of an image whose layout is known.
+     */
+    private static final class Pixels {
+
+        /**
+         * The packed pixels, or null if the samples are bytes.
+         */
+        private final int[] ints;
+        /**
+         * The interleaved samples, or null if the pixels are packed.
+         */
+        private final byte[] bytes;
+        /**
+         * The index of the first pixel of the image in the array.
+         */
+        private final int offset;
+        /**
+         * The number of array elements between two rows.
+         */
+        private final int stride;
+        /**
+         * The number of samples of a pixel in a row of samples.
+         */
+        private final int channels;
+        /**
+         * The offset of the alpha sample of a pixel, or -1 if there is none.
+         * For packed pixels it is the shift of the alpha bits.
+         */
+        private final int alpha;
+        /**
+         * The width of the image.
+         */
+        private final int width;
+
+        /**
+         * Construct the pixel array of an image.
+         *
+         * @param ints input the packed pixels, or null
+         * @param bytes input the interleaved samples, or null
+         * @param offset input the index of the first pixel
+         * @param stride input the number of array elements between two rows
+         * @param channels input the number of samples of a pixel
+         * @param alpha input the offset of the alpha sample, or -1
+         * @param width input the width of the image
+         */
+        private Pixels(final int[] ints, final byte[] bytes, final int offset, final int stride, final int channels, final int alpha, final int width) {
+            this.ints = ints;
+            this.bytes = bytes;
+            this.offset = offset;
+            this.stride = stride;
+            this.channels = channels;
+            this.alpha = alpha;
+            this.width = width;
+        }
+
+        /**
+         * Get the pixel array of an image.
+         *
+         * @param image input an image
+         * @return the pixel array, or null if the layout of the image is not
+         * supported
+         */
+        private static Pixels of(final BufferedImage image) {
+            final WritableRaster raster = image.getRaster();
+            final SampleModel sampleModel = raster.getSampleModel();
+            final DataBuffer dataBuffer = raster.getDataBuffer();
+            if (dataBuffer.getNumBanks() != 1) {
+                return null;
+            }
+            final int width = image.getWidth();
+            switch (image.getType()) {
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_ARGB: {
+                    if (!(sampleModel instanceof SinglePixelPackedSampleModel) || !(dataBuffer instanceof DataBufferInt)) {
+                        return null;
+                    }
+                    final SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+                    final int stride = packed.getScanlineStride();
+                    final int offset = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+                    return new Pixels(((DataBufferInt) dataBuffer).getData(), null, offset, stride, 3, image.getType() == BufferedImage.TYPE_INT_ARGB ? 24 : -1, width);
+                }
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_BYTE_GRAY: {
+                    if (!(sampleModel instanceof PixelInterleavedSampleModel) || !(dataBuffer instanceof DataBufferByte)) {
+                        return null;
+                    }
+                    final PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) sampleModel;
+                    final int channels = interleaved.getPixelStride();
+                    final int stride = interleaved.getScanlineStride();
+                    final int offset = dataBuffer.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX() * channels;
+                    final int[] bandOffsets = interleaved.getBandOffsets();
+                    if (channels != bandOffsets.length) {
+                        return null;
+                    }
+                    return new Pixels(null, ((DataBufferByte) dataBuffer).getData(), offset, stride, channels, image.getColorModel().hasAlpha() ? bandOffsets[bandOffsets.length - 1] : -1, width);
+                }
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Read a row into a row of samples.
+         *
+         * @param y input the index of the row
+         * @param samples input the row of samples
+         */
+        private void load(final int y, final int[] samples) {
+            final int start = offset + y * stride;
+            if (ints != null) {
+                for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                    final int pixel = ints[start + x];
+                    samples[i] = (pixel >> 16) & 0xFF;
+                    samples[i + 1] = (pixel >> 8) & 0xFF;
+                    samples[i + 2] = pixel & 0xFF;
+                }
+            } else {
+                final int n = width * channels;
+                for (int i = 0; i < n; ++i) {
+                    samples[i] = bytes[start + i] & 0xFF;
+                }
+            }
+        }
+
+        /**
+         * Write a row of samples into a row. The alpha samples are taken from
+         * the same row of the source, so transparency is never sharpened.
+         *
+         * @param y input the index of the row
+         * @param samples input the row of samples, from 0 to 255
+         * @param source input the pixel array of the source image
+         */
+        private void store(final int y, final int[] samples, final Pixels source) {
+            final int start = offset + y * stride;
+            final int sourceStart = source.offset + y * source.stride;
+            if (ints != null) {
+                final int alphaMask = alpha < 0 ? 0xFF000000 : 0xFF << alpha;
+                for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                    ints[start + x] = (source.ints[sourceStart + x] & alphaMask) | (samples[i] << 16) | (samples[i + 1] << 8) | samples[i + 2];
+                }
+            } else {
+                final int n = width * channels;
+                for (int i = 0; i < n; ++i) {
+                    bytes[start + i] = (byte) samples[i];
+                }
+                if (alpha >= 0) {
+                    for (int i = alpha; i < n; i += channels) {
+                        bytes[start + i] = source.bytes[sourceStart + i - alpha + source.alpha];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A task which sharpens a band of rows, and splits itself while the band
+     * is big enough.
+     */
+    private static final class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The pixel array of the source image.
+         */
+        private final Pixels source;
+        /**
+         * The pixel array of the sharpened image.
+         */
+        private final Pixels destination;
+        /**
+         * The fixed-point weight of the center.
+         */
+        private final int centerWeight;
+        /**
+         * The fixed-point weight of the 3x3 box sum.
+         */
+        private final int boxWeight;
+        /**
+         * The minimum number of rows of a band.
+         */
+        private final int minRows;
+        /**
+         * The index of the first row of the band.
+         */
+        private final int from;
+        /**
+         * The index after the last row of the band.
+         */
+        private final int to;
+
+        /**
+         * Construct a task.
+         *
+         * @param source input the pixel array of the source image
+         * @param destination input the pixel array of the sharpened image
+         * @param centerWeight input the fixed-point weight of the center
+         * @param boxWeight input the fixed-point weight of the box sum
+         * @param minRows input the minimum number of rows of a band
+         * @param from input the index of the first row, at least 1
+         * @param to input the index after the last row, at most the height
+         * minus 1
+         */
+        private BandTask(final Pixels source, final Pixels destination, final int centerWeight, final int boxWeight, final int minRows, final int from, final int to) {
+            this.source = source;
+            this.destination = destination;
+            this.centerWeight = centerWeight;
+            this.boxWeight = boxWeight;
+            this.minRows = minRows;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from >= minRows * 2) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new BandTask(source, destination, centerWeight, boxWeight, minRows, from, middle), new BandTask(source, destination, centerWeight, boxWeight, minRows, middle, to));
+                return;
+            }
+            final int channels = source.channels;
+            final int n = source.width * channels;
+            final int half = 1 << (SHIFT - 1);
+            int[] current = new int[n];
+            int[] below = new int[n];
+            int[] sumAbove = new int[n];
+            int[] sumCurrent = new int[n];
+            int[] sumBelow = new int[n];
+            final int[] output = new int[n];
+            // the row above the band is only needed for its horizontal sums
+            source.load(from - 1, below);
+            sumRow(below, sumAbove, channels, n);
+            source.load(from, current);
+            sumRow(current, sumCurrent, channels, n);
+            for (int y = from; y < to; ++y) {
+                source.load(y + 1, below);
+                sumRow(below, sumBelow, channels, n);
+                // the edge columns are kept, as ConvolveOp.EDGE_NO_OP does
+                System.arraycopy(current, 0, output, 0, channels);
+                System.arraycopy(current, n - channels, output, n - channels, channels);
+                for (int i = channels; i < n - channels; ++i) {
+                    final int value = (current[i] * centerWeight - (sumAbove[i] + sumCurrent[i] + sumBelow[i]) * boxWeight + half) >> SHIFT;
+                    output[i] = Math.max(0, Math.min(255, value));
+                }
+                destination.store(y, output, source);
+
+                final int[] row = current;
+                current = below;
+                below = row;
+                final int[] sum = sumAbove;
+                sumAbove = sumCurrent;
+                sumCurrent = sumBelow;
+                sumBelow = sum;
+            }
+        }
+
+        /**
+         * Sum each sample of a row with the same samples of its left and
+         * right neighbors. The sums of the edge pixels are not computed.
+         *
+         * @param samples input a row of samples
+         * @param sums input the row of sums
+         * @param channels input the number of samples of a pixel
+         * @param n input the number of samples of the row
+         */
+        private static void sumRow(final int[] samples, final int[] sums, final int channels, final int n) {
+            for (int i = channels; i < n - channels; ++i) {
+                sums[i] = samples[i - channels] + samples[i] + samples[i + channels];
+            }
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Sharpen an image. The alpha samples and the pixels on the edges are
+     * kept. Images whose types are not TYPE_INT_RGB, TYPE_INT_ARGB,
+     * TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR or TYPE_BYTE_GRAY are sharpened by
+     * ImageSharpen.sharpen.
+     *
+     * @param image input an image
+     * @param amount input the amount of sharpening
+     * @return a new sharpened image of the same type, or the input image if
+     * the amount is not bigger than zero or the image is too small to be
+     * sharpened
+     */
+    public static BufferedImage sharpen(final BufferedImage image, final float amount) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        if (amount <= 0 || width < 3 || height < 3) {
+            return image;
+        }
+        final Pixels source = Pixels.of(image);
+        if (source == null) {
+            return ImageSharpen.sharpen(image, amount);
+        }
+        final BufferedImage sharpened = new BufferedImage(width, height, image.getType());
+        final Pixels destination = Pixels.of(sharpened);
+        // (1 + a) * p - a / 8 * (box - p) = (1 + 9a / 8) * p - a / 8 * box
+        final int centerWeight = Math.round((1 + amount * 9 / 8) * (1 << SHIFT));
+        final int boxWeight = Math.round(amount / 8 * (1 << SHIFT));
+        final int minRows = Math.max(MIN_BAND_ROWS, MIN_BAND_PIXELS / width);
+        new BandTask(source, destination, centerWeight, boxWeight, minRows, 1, height - 1).invoke();
+
+        final int[] edge = new int[width * source.channels];
+        source.load(0, edge);
+        destination.store(0, edge, source);
+        source.load(height - 1, edge);
+        destination.store(height - 1, edge, source);
+        return sharpened;
+    }
+
+    // -----Constructor-----
+    /**
+     * Private constructor. It cannot be instantiated.
+     */
+    private ImageSharpener() {
+
+    }
+}
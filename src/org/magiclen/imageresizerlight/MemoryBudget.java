@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.util.ArrayDeque;
+
+/**
+ * A budget of memory shared by workers. Workers reserve the memory which
+ * they are going to use before decoding an image, and wait while the budget
+ * is used up. Reservations are admitted in arrival order, so a big image is
+ * not starved by small ones. A reservation bigger than the whole budget waits
+ * until nothing else is reserved and then runs alone.
+ *
+ * @author Magic Len
+ */
+public class MemoryBudget {
+
+    // -----Class Constant-----
+    /**
+     * The default budget. It is half of the maximum heap size.
+     */
+    public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+
+    // -----Object Constant-----
+    /**
+     * The budget, in bytes.
+     */
+    private final long budget;
+
+    /**
+     * The waiting reservations, in arrival order.
+     */
+    private final ArrayDeque<Object> waiters = new ArrayDeque<>();
+
+    // -----Object Variable-----
+    /**
+     * The number of reserved bytes.
+     */
+    private long used;
+
+    // -----Constructor-----
+    /**
+     * Construct a budget.
+     *
+     * @param budget input the budget, in bytes
+     */
+    public MemoryBudget(final long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("The budget must be bigger than zero.");
+        }
+        this.budget = budget;
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the budget.
+     *
+     * @return the budget, in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the number of reserved bytes.
+     *
+     * @return the number of reserved bytes
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Reserve memory. This method blocks until the memory can be reserved.
+     *
+     * @param bytes input the number of bytes
+     * @return the number of bytes actually reserved, which needs to be
+     * released later
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public synchronized long acquire(final long bytes) throws InterruptedException {
+        final long need = Math.max(0, Math.min(bytes, budget));
+        final Object waiter = new Object();
+        waiters.addLast(waiter);
+        try {
+            while (waiters.peekFirst() != waiter || used + need > budget) {
+                wait();
+            }
+        } catch (final InterruptedException ex) {
+            waiters.remove(waiter);
+            notifyAll();
+            throw ex;
+        }
+        waiters.removeFirst();
+        used += need;
+        notifyAll();
+        return need;
+    }
+
+    /**
+     * Release memory.
+     *
+     * @param bytes input the number of bytes which was returned by the
+     * acquire method
+     */
+    public synchronized void release(final long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+}
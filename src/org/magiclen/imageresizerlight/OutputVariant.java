@@ -0,0 +1,178 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * An output of each source image. A conversion can write several outputs of
+ * different sizes, which are told apart by their subfolders in the
+ * destination folder or by suffixes appended to their names.
+ *
+ * @author Magic Len
+ */
+public class OutputVariant {
+
+    // -----Object Constant-----
+    /**
+     * The length of the max side of output images.
+     */
+    private final int maxSideSize;
+    /**
+     * The quality of output images, from 0 to 1.
+     */
+    private final float quality;
+    /**
+     * The target size of output files in bytes, or 0 if there is none.
+     */
+    private final long targetSize;
+    /**
+     * The subfolder in the destination folder, or an empty string.
+     */
+    private final String folder;
+    /**
+     * The suffix appended to the names of output files, or an empty string.
+     */
+    private final String suffix;
+
+    // -----Constructor-----
+    /**
+     * Construct an output variant.
+     *
+     * @param maxSideSize input the length of the max side of output images
+     * @param quality input the quality of output images, from 0 to 1
+     * @param folder input a relative subfolder in the destination folder, or
+     * null
+     * @param suffix input a suffix appended to the names of output files, or
+     * null
+     */
+    public OutputVariant(final int maxSideSize, final float quality, final String folder, final String suffix) {
+        this(maxSideSize, quality, 0, folder, suffix);
+    }
+
+    /**
+     * Construct an output variant whose files are not bigger than a target
+     * size. The quality of each output image is searched below the given
+     * quality to meet the target size.
+     *
+     * @param maxSideSize input the length of the max side of output images
+     * @param quality input the maximum quality of output images, from 0 to 1
+     * @param targetSize input the target size of output files in bytes, or 0
+     * to always use the quality
+     * @param folder input a relative subfolder in the destination folder, or
+     * null
+     * @param suffix input a suffix appended to the names of output files, or
+     * null
+     */
+    public OutputVariant(final int maxSideSize, final float quality, final long targetSize, final String folder, final String suffix) {
+        if (maxSideSize <= 0) {
+            throw new IllegalArgumentException("The length of the max side must be bigger than zero.");
+        }
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("The quality must be between 0 and 1.");
+        }
+        if (targetSize < 0) {
+            throw new IllegalArgumentException("The target size cannot be negative.");
+        }
+        String f = folder == null ? "" : folder.trim();
+        if (!f.isEmpty()) {
+            final Path path = Paths.get(f).normalize();
+            if (path.isAbsolute() || path.startsWith("..") || path.toString().isEmpty()) {
+                throw new IllegalArgumentException("The subfolder must be a relative path in the destination folder.");
+            }
+            f = path.toString();
+        }
+        final String s = suffix == null ? "" : suffix;
+        if (s.indexOf('/') >= 0 || s.indexOf('\\') >= 0 || s.indexOf(File.separatorChar) >= 0) {
+            throw new IllegalArgumentException("The suffix cannot contain separators of paths.");
+        }
+        this.maxSideSize = maxSideSize;
+        this.quality = quality;
+        this.targetSize = targetSize;
+        this.folder = f;
+        this.suffix = s;
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the length of the max side of output images.
+     *
+     * @return the length of the max side
+     */
+    public int getMaxSideSize() {
+        return maxSideSize;
+    }
+
+    /**
+     * Get the quality of output images.
+     *
+     * @return the quality, from 0 to 1
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Get the target size of output files. If it is set, the quality is the
+     * maximum quality.
+     *
+     * @return the target size in bytes, or 0 if there is none
+     */
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    /**
+     * Get the subfolder in the destination folder.
+     *
+     * @return the subfolder, or an empty string
+     */
+    public String getFolder() {
+        return folder;
+    }
+
+    /**
+     * Get the suffix appended to the names of output files.
+     *
+     * @return the suffix, or an empty string
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Get the output file of a source image. Its filename extension is
+     * adjusted later, when the file is written.
+     *
+     * @param destination input the destination folder
+     * @param relativePath input the path of the source image, relative to the
+     * source folder
+     * @return the output file
+     */
+    public File resolve(final Path destination, final String relativePath) {
+        Path target = (folder.isEmpty() ? destination : destination.resolve(folder)).resolve(relativePath);
+        if (!suffix.isEmpty()) {
+            final String name = target.getFileName().toString();
+            final int dotIndex = name.lastIndexOf('.');
+            target = target.resolveSibling(dotIndex > 0 ? name.substring(0, dotIndex).concat(suffix).concat(name.substring(dotIndex)) : name.concat(suffix));
+        }
+        return target.toFile();
+    }
+}
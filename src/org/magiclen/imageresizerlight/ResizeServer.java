@@ -0,0 +1,616 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An HTTP service which resizes images in a source folder on demand, with
+ * the JDK's built-in HTTP server. An image is requested with
+ * <code>GET /resize?path=&lt;path&gt;&amp;maxSide=&lt;pixels&gt;&amp;quality=&lt;0-100&gt;&amp;resampling=&lt;tier&gt;</code>,
+ * where the path is relative to the source folder, and it is converted by
+ * the same decode, resize, sharpen and encode stages as the conversion
+ * engine. Results are kept in a result cache, keyed by the path, size and
+ * last modified time of the source file and the settings, so a modified
+ * source is converted again. Concurrent requests for the same key wait for
+ * one conversion instead of converting the image each.
+ *
+ * @author Magic Len
+ */
+public class ResizeServer implements Closeable {
+
+    // -----Class Constant-----
+    /**
+     * The default port.
+     */
+    public static final int DEFAULT_PORT = 8080;
+    /**
+     * The path which images are requested at.
+     */
+    public static final String RESIZE_PATH = "/resize";
+    /**
+     * The name of the response header which tells where a result comes from:
+     * memory, disk, coalesced or converted.
+     */
+    public static final String CACHE_HEADER = "X-Cache";
+    /**
+     * The default limit of the max side which a request can ask for. Outputs
+     * are not admitted by the memory budget, so it bounds the raster of an
+     * enlarged image.
+     */
+    public static final int DEFAULT_MAX_SIDE_LIMIT = 8192;
+    /**
+     * How long a request waits for the conversion of another request, in
+     * seconds.
+     */
+    private static final long COALESCE_TIMEOUT_SECONDS = 120;
+    /**
+     * How long the server waits for the exchanges being handled when it is
+     * closed, in seconds.
+     */
+    private static final int STOP_DELAY_SECONDS = 5;
+    /**
+     * How often the server checks whether the exchanges being handled have
+     * finished when it is closed, in milliseconds.
+     */
+    private static final long STOP_POLL_MILLISECONDS = 20;
+
+    // -----Class Class-----
+    /**
+     * A result and where it comes from.
+     */
+    private static final class Result {
+
+        /**
+         * The encoded image.
+         */
+        private final byte[] data;
+        /**
+         * Where the encoded image comes from.
+         */
+        private final String source;
+
+        /**
+         * Construct a result.
+         *
+         * @param data input the encoded image
+         * @param source input where the encoded image comes from
+         */
+        private Result(final byte[] data, final String source) {
+            this.data = data;
+            this.source = source;
+        }
+    }
+
+    // -----Class Method-----
+    /**
+     * Parse the query of a URI.
+     *
+     * @param rawQuery input the raw query, or null
+     * @return the parameters. If a parameter appears several times, the last
+     * one is used
+     * @throws IOException if the query cannot be decoded
+     */
+    private static Map<String, String> parseQuery(final String rawQuery) throws IOException {
+        final HashMap<String, String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (final String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            final int equalIndex = pair.indexOf('=');
+            final String name = equalIndex < 0 ? pair : pair.substring(0, equalIndex);
+            final String value = equalIndex < 0 ? "" : pair.substring(equalIndex + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return parameters;
+    }
+
+    /**
+     * Parse an integer parameter.
+     *
+     * @param parameters input the parameters
+     * @param name input the name of the parameter
+     * @param defaultValue input the value used if the parameter is missing
+     * @param min input the minimum value
+     * @param max input the maximum value
+     * @return the integer
+     * @throws IllegalArgumentException if the value is incorrect
+     */
+    private static int parseInt(final Map<String, String> parameters, final String name, final int defaultValue, final int min, final int max) {
+        final String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        final int i;
+        try {
+            i = Integer.parseInt(value.trim());
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException(String.format("The parameter %s must be an integer.", name));
+        }
+        if (i < min || i > max) {
+            throw new IllegalArgumentException(String.format("The parameter %s must be between %d and %d.", name, min, max));
+        }
+        return i;
+    }
+
+    /**
+     * Send a plain text response and close the exchange.
+     *
+     * @param exchange input an exchange
+     * @param code input the status code
+     * @param message input the message
+     * @throws IOException if an I/O error occurs
+     */
+    private static void sendText(final HttpExchange exchange, final int code, final String message) throws IOException {
+        final byte[] body = message.concat("\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(code, -1);
+        } else {
+            exchange.sendResponseHeaders(code, body.length);
+            try (final OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        }
+    }
+
+    // -----Object Constant-----
+    /**
+     * The real path of the source folder.
+     */
+    private final Path root;
+    /**
+     * The settings whose max side, quality and resampling tier are used when
+     * a request does not have them.
+     */
+    private final ConversionSettings defaultSettings;
+    /**
+     * The result cache.
+     */
+    private final ResultCache cache;
+    /**
+     * The budget of memory for images which are being converted.
+     */
+    private final MemoryBudget budget;
+    /**
+     * The statistics of the conversions.
+     */
+    private final ConversionStatistics statistics;
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+    /**
+     * The threads which handle requests.
+     */
+    private final ExecutorService executor;
+    /**
+     * The codec contexts of the threads which handle requests.
+     */
+    private final ThreadLocal<CodecContext> contexts;
+    /**
+     * All codec contexts, which are closed with the server.
+     */
+    private final ArrayList<CodecContext> allContexts = new ArrayList<>();
+    /**
+     * The conversions which are running, by their keys.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    /**
+     * The number of exchanges being handled.
+     */
+    private final AtomicInteger activeCount = new AtomicInteger();
+    /**
+     * The number of handled requests.
+     */
+    private final LongAdder requestCount = new LongAdder();
+    /**
+     * The number of results from the memory tier.
+     */
+    private final LongAdder memoryHitCount = new LongAdder();
+    /**
+     * The number of results from the disk tier.
+     */
+    private final LongAdder diskHitCount = new LongAdder();
+    /**
+     * The number of results from the conversions of other requests.
+     */
+    private final LongAdder coalescedCount = new LongAdder();
+    /**
+     * The number of conversions.
+     */
+    private final LongAdder conversionCount = new LongAdder();
+
+    // -----Object Variable-----
+    /**
+     * Whether the server is being closed.
+     */
+    private volatile boolean stopping;
+    /**
+     * The largest max side which a request can ask for.
+     */
+    private int maxSideLimit = DEFAULT_MAX_SIDE_LIMIT;
+
+    // -----Constructor-----
+    /**
+     * Construct a server. It does not accept requests until it is started.
+     *
+     * @param root input the source folder
+     * @param address input the address to listen on
+     * @param defaultSettings input the settings whose max side, quality and
+     * resampling tier are used when a request does not have them. Whether
+     * images are only shrunk, whether they are interlaced and the strength of
+     * sharpening are used for all requests
+     * @param cache input the result cache
+     * @param threadCount input the number of threads which handle requests
+     * @param memoryBudget input the budget of memory for images which are
+     * being converted, in bytes
+     * @throws IOException if the source folder cannot be found, or the
+     * address cannot be bound
+     */
+    public ResizeServer(final File root, final InetSocketAddress address, final ConversionSettings defaultSettings, final ResultCache cache, final int threadCount, final long memoryBudget) throws IOException {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("The number of threads must be bigger than zero.");
+        }
+        this.root = root.toPath().toRealPath();
+        this.defaultSettings = defaultSettings;
+        this.cache = cache;
+        this.budget = new MemoryBudget(memoryBudget);
+        this.statistics = new ConversionStatistics(new ConversionEngine(threadCount));
+        this.contexts = ThreadLocal.withInitial(() -> {
+            final CodecContext context = new CodecContext();
+            synchronized (allContexts) {
+                allContexts.add(context);
+            }
+            return context;
+        });
+        final AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            final Thread thread = new Thread(runnable, "ImageResizerLight-Server-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext(RESIZE_PATH, this::handle);
+    }
+
+    // -----Object Method-----
+    /**
+     * Start accepting requests. The statistics of the conversions are
+     * registered as the JMX bean.
+     */
+    public void start() {
+        statistics.register();
+        server.start();
+    }
+
+    /**
+     * Set the largest max side which a request can ask for. Requests beyond
+     * it are rejected, so a single request cannot ask for a huge enlarged
+     * raster. It needs to be set before the server is started.
+     *
+     * @param maxSideLimit input the limit, in pixels
+     */
+    public void setMaxSideLimit(final int maxSideLimit) {
+        if (maxSideLimit <= 0) {
+            throw new IllegalArgumentException("The limit of the max side must be bigger than zero.");
+        }
+        this.maxSideLimit = maxSideLimit;
+    }
+
+    /**
+     * Get the largest max side which a request can ask for.
+     *
+     * @return the limit, in pixels
+     */
+    public int getMaxSideLimit() {
+        return maxSideLimit;
+    }
+
+    /**
+     * Get the address which the server listens on.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Get the statistics of the conversions.
+     *
+     * @return the statistics
+     */
+    public ConversionStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Get the number of handled requests.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * Get the number of results from the memory tier.
+     *
+     * @return the number of results
+     */
+    public long getMemoryHitCount() {
+        return memoryHitCount.sum();
+    }
+
+    /**
+     * Get the number of results from the disk tier.
+     *
+     * @return the number of results
+     */
+    public long getDiskHitCount() {
+        return diskHitCount.sum();
+    }
+
+    /**
+     * Get the number of results which were waited for while another request
+     * converted them.
+     *
+     * @return the number of results
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    /**
+     * Get the number of conversions.
+     *
+     * @return the number of conversions
+     */
+    public long getConversionCount() {
+        return conversionCount.sum();
+    }
+
+    /**
+     * Handle a request.
+     *
+     * @param exchange input an exchange
+     * @throws IOException if an I/O error occurs
+     */
+    private void handle(final HttpExchange exchange) throws IOException {
+        requestCount.increment();
+        activeCount.incrementAndGet();
+        try {
+            if (stopping) {
+                sendText(exchange, 503, "The server is stopping.");
+                return;
+            }
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                sendText(exchange, 405, "Only GET and HEAD are allowed.");
+                return;
+            }
+            if (!RESIZE_PATH.equals(exchange.getRequestURI().getPath())) {
+                sendText(exchange, 404, "Not found.");
+                return;
+            }
+
+            final Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            final String relativePath = parameters.get("path");
+            final ConversionSettings settings;
+            try {
+                if (relativePath == null || relativePath.isEmpty()) {
+                    throw new IllegalArgumentException("The parameter path is needed.");
+                }
+                final int maxSideSize = parseInt(parameters, "maxSide", Math.min(defaultSettings.getMaxSideSize(), maxSideLimit), 1, maxSideLimit);
+                final int quality = parseInt(parameters, "quality", Math.round(defaultSettings.getQuality() * 100), 0, 100);
+                final String resampling = parameters.get("resampling");
+                final ImageResampler.Tier tier = resampling == null ? defaultSettings.getResamplingTier() : ImageResampler.Tier.of(resampling);
+                settings = new ConversionSettings(Collections.singletonList(new OutputVariant(maxSideSize, quality / 100.0f, null, null)), defaultSettings.isOnlyShrink(), defaultSettings.isInterlace(), defaultSettings.getSharpenStrength(), tier);
+            } catch (final IllegalArgumentException ex) {
+                sendText(exchange, 400, ex.getMessage());
+                return;
+            }
+
+            final Path file;
+            final BasicFileAttributes attributes;
+            try {
+                // the real path is checked, so neither .. nor symbolic links can reach outside the source folder
+                file = root.resolve(relativePath).toRealPath();
+                if (!file.startsWith(root)) {
+                    sendText(exchange, 403, "The path is outside the source folder.");
+                    return;
+                }
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (final NoSuchFileException | InvalidPathException ex) {
+                sendText(exchange, 404, "Not found.");
+                return;
+            }
+            if (!attributes.isRegularFile() || !ImageFileScanner.isSupportedImage(file.getFileName().toString())) {
+                sendText(exchange, 404, "Not found.");
+                return;
+            }
+
+            final String key = String.format("%s\n%d\n%d\n%x", file, attributes.size(), attributes.lastModifiedTime().toMillis(), settings.getFingerprint());
+            final String tag = "\"".concat(ResultCache.digest(key)).concat("\"");
+            final Headers responseHeaders = exchange.getResponseHeaders();
+            responseHeaders.set("ETag", tag);
+            if (tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            final Result result;
+            try {
+                result = get(key, file, attributes.size(), settings);
+            } catch (final IOException ex) {
+                sendText(exchange, 500, "Cannot convert the image.");
+                return;
+            } catch (final OutOfMemoryError ex) {
+                // the memory of the failed conversion is garbage now, so the server goes on
+                sendText(exchange, 500, "The image is too big to convert.");
+                return;
+            }
+            responseHeaders.set("Content-Type", "image/jpeg");
+            responseHeaders.set(CACHE_HEADER, result.source);
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                exchange.sendResponseHeaders(200, result.data.length);
+                try (final OutputStream output = exchange.getResponseBody()) {
+                    output.write(result.data);
+                }
+            }
+        } catch (final InterruptedException ex) {
+            sendText(exchange, 503, "The server is stopping.");
+        } finally {
+            exchange.close();
+            activeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the result of a key from the memory tier, from the conversion of
+     * another request, from the disk tier, or by converting the image file,
+     * in this order.
+     *
+     * @param key input the key
+     * @param file input the image file
+     * @param size input the size of the image file
+     * @param settings input the settings of the conversion
+     * @return the result
+     * @throws IOException if the image cannot be converted
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    private Result get(final String key, final Path file, final long size, final ConversionSettings settings) throws IOException, InterruptedException {
+        byte[] data = cache.getFromMemory(key);
+        if (data != null) {
+            memoryHitCount.increment();
+            return new Result(data, "memory");
+        }
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final CompletableFuture<byte[]> running = pending.putIfAbsent(key, future);
+        if (running != null) {
+            coalescedCount.increment();
+            try {
+                return new Result(running.get(COALESCE_TIMEOUT_SECONDS, TimeUnit.SECONDS), "coalesced");
+            } catch (final ExecutionException ex) {
+                throw new IOException(ex.getCause());
+            } catch (final TimeoutException ex) {
+                throw new IOException("Timed out waiting for the conversion of another request.");
+            }
+        }
+        try {
+            // another request may have put it between the first lookup and the registration
+            data = cache.getFromMemory(key);
+            if (data != null) {
+                memoryHitCount.increment();
+                future.complete(data);
+                return new Result(data, "memory");
+            }
+            data = cache.getFromDisk(key);
+            if (data != null) {
+                diskHitCount.increment();
+                future.complete(data);
+                return new Result(data, "disk");
+            }
+            conversionCount.increment();
+            final byte[][] output = new byte[1][];
+            if (!ConversionEngine.convertImage(file.toFile(), size, settings, budget, statistics, contexts.get(), (index, encoded) -> output[0] = encoded.toByteArray())) {
+                throw new IOException("Cannot convert the image: ".concat(file.toString()));
+            }
+            data = output[0];
+            cache.put(key, data);
+            future.complete(data);
+            return new Result(data, "converted");
+        } catch (final Throwable ex) {
+            // waiting requests need to be released whatever happens, even an OutOfMemoryError
+            future.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            pending.remove(key, future);
+        }
+    }
+
+    /**
+     * Stop accepting requests, wait a few seconds for the requests being
+     * handled, and release the codecs if they have finished.
+     */
+    @Override
+    public void close() {
+        stopping = true;
+        // HttpServer.stop waits for the whole delay even if nothing is being handled, so the exchanges are waited for here
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(STOP_DELAY_SECONDS);
+        try {
+            while (activeCount.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(STOP_POLL_MILLISECONDS);
+            }
+        } catch (final InterruptedException ex) {
+            //do nothing
+        }
+        server.stop(0);
+        executor.shutdown();
+        statistics.finish();
+        try {
+            if (!executor.awaitTermination(STOP_DELAY_SECONDS, TimeUnit.SECONDS)) {
+                // the codecs may still be in use
+                return;
+            }
+        } catch (final InterruptedException ex) {
+            return;
+        }
+        synchronized (allContexts) {
+            for (final CodecContext context : allContexts) {
+                context.close();
+            }
+            allContexts.clear();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of encoded images with two tiers. The memory tier keeps the most
+ * recently used results within a number of bytes. The disk tier keeps every
+ * result as a file in a folder within a bigger number of bytes, so results
+ * which fall out of the memory tier, or which were made before a restart,
+ * are read back instead of being converted again. Both tiers evict the least
+ * recently used results first. It can be used by several threads at the
+ * same time.
+ *
+ * @author Magic Len
+ */
+public class ResultCache {
+
+    // -----Class Constant-----
+    /**
+     * The default number of bytes of the memory tier.
+     */
+    public static final long DEFAULT_MEMORY_CAPACITY = 64L << 20;
+    /**
+     * The default number of bytes of the disk tier.
+     */
+    public static final long DEFAULT_DISK_CAPACITY = 1L << 30;
+    /**
+     * The default folder of the disk tier.
+     */
+    public static final File DEFAULT_FOLDER = new File(System.getProperty("java.io.tmpdir"), "imageresizerlight-cache");
+    /**
+     * The filename extension of the files of the disk tier.
+     */
+    private static final String EXTEND = ".jpg";
+    /**
+     * The filename extension of the files which are being written.
+     */
+    private static final String TEMPORARY_EXTEND = ".tmp";
+
+    // -----Class Method-----
+    /**
+     * Compute the digest of a key, which names its file in the disk tier.
+     *
+     * @param key input a key
+     * @return the SHA-256 digest of the key, in lowercase hexadecimal
+     */
+    public static String digest(final String key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        final byte[] bytes = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // -----Object Constant-----
+    /**
+     * The maximum number of bytes of the memory tier.
+     */
+    private final long memoryCapacity;
+    /**
+     * The results in the memory tier, by their keys, from the least
+     * recently used.
+     */
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The folder of the disk tier, or null if there is no disk tier.
+     */
+    private final Path folder;
+    /**
+     * The maximum number of bytes of the disk tier.
+     */
+    private final long diskCapacity;
+    /**
+     * The sizes of the files in the disk tier, by their digests, from the
+     * least recently used.
+     */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    // -----Object Variable-----
+    /**
+     * The number of bytes in the memory tier.
+     */
+    private long memorySize;
+    /**
+     * The number of bytes in the disk tier.
+     */
+    private long diskSize;
+
+    // -----Constructor-----
+    /**
+     * Construct a cache. The files which are left in the folder of the disk
+     * tier are indexed, from the least recently modified, so they can be
+     * used again.
+     *
+     * @param memoryCapacity input the maximum number of bytes of the memory
+     * tier, or 0 to disable it
+     * @param folder input the folder of the disk tier, or null to disable it
+     * @param diskCapacity input the maximum number of bytes of the disk tier
+     * @throws IOException if the folder cannot be created or read
+     */
+    public ResultCache(final long memoryCapacity, final File folder, final long diskCapacity) throws IOException {
+        if (memoryCapacity < 0 || diskCapacity < 0) {
+            throw new IllegalArgumentException("The capacities cannot be negative.");
+        }
+        this.memoryCapacity = memoryCapacity;
+        this.diskCapacity = diskCapacity;
+        if (folder == null || diskCapacity == 0) {
+            this.folder = null;
+            return;
+        }
+        this.folder = folder.toPath().toAbsolutePath();
+        Files.createDirectories(this.folder);
+        final ArrayList<Object[]> files = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(this.folder)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_EXTEND)) {
+                    // left by a crash while it was being written
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(EXTEND)) {
+                    final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(new Object[]{name.substring(0, name.length() - EXTEND.length()), attributes.size(), attributes.lastModifiedTime().toMillis()});
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare((Long) a[2], (Long) b[2]));
+        synchronized (disk) {
+            for (final Object[] file : files) {
+                disk.put((String) file[0], (Long) file[1]);
+                diskSize += (Long) file[1];
+            }
+            evictDisk();
+        }
+    }
+
+    // -----Object Method-----
+    /**
+     * Get a result from the memory tier.
+     *
+     * @param key input the key of the result
+     * @return the result, or null if it is not in the memory tier
+     */
+    public byte[] getFromMemory(final String key) {
+        synchronized (memory) {
+            return memory.get(key);
+        }
+    }
+
+    /**
+     * Get a result from the disk tier. A result which is found is put into
+     * the memory tier, too.
+     *
+     * @param key input the key of the result
+     * @return the result, or null if it is not in the disk tier or it cannot
+     * be read
+     */
+    public byte[] getFromDisk(final String key) {
+        if (folder == null) {
+            return null;
+        }
+        final String digest = digest(key);
+        synchronized (disk) {
+            if (disk.get(digest) == null) {
+                return null;
+            }
+        }
+        final byte[] data;
+        try (final FileChannel channel = FileChannel.open(folder.resolve(digest.concat(EXTEND)), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            data = new byte[(int) size];
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    // it has been replaced while it was being read
+                    return null;
+                }
+            }
+        } catch (final NoSuchFileException ex) {
+            // it has just been evicted
+            return null;
+        } catch (final IOException ex) {
+            return null;
+        }
+        putIntoMemory(key, data);
+        return data;
+    }
+
+    /**
+     * Put a result into both tiers. A result which is bigger than a tier is
+     * not put into it. The disk tier is written before this method returns,
+     * so it should not be called while a lock is held.
+     *
+     * @param key input the key of the result
+     * @param data input the result, which must not be modified afterward
+     */
+    public void put(final String key, final byte[] data) {
+        putIntoMemory(key, data);
+        if (folder == null || data.length > diskCapacity) {
+            return;
+        }
+        final String digest = digest(key);
+        final Path file = folder.resolve(digest.concat(EXTEND));
+        try {
+            // written into a temporary file and moved, so a reader never sees a partial file
+            final Path temporaryFile = Files.createTempFile(folder, digest, TEMPORARY_EXTEND);
+            try {
+                try (final FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+                    final ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (final IOException ex) {
+            // the result is still in the memory tier
+            return;
+        }
+        synchronized (disk) {
+            final Long previousSize = disk.put(digest, (long) data.length);
+            diskSize += data.length - (previousSize == null ? 0 : previousSize);
+            evictDisk();
+        }
+    }
+
+    /**
+     * Put a result into the memory tier, and evict the least recently used
+     * results which do not fit.
+     *
+     * @param key input the key of the result
+     * @param data input the result
+     */
+    private void putIntoMemory(final String key, final byte[] data) {
+        if (data.length > memoryCapacity) {
+            return;
+        }
+        synchronized (memory) {
+            final byte[] previous = memory.put(key, data);
+            memorySize += data.length - (previous == null ? 0 : previous.length);
+            final Iterator<Map.Entry<String, byte[]>> iterator = memory.entrySet().iterator();
+            while (memorySize > memoryCapacity && iterator.hasNext()) {
+                memorySize -= iterator.next().getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used files of the disk tier which do not fit.
+     * The lock of the disk tier must be held.
+     */
+    private void evictDisk() {
+        final Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+        while (diskSize > diskCapacity && iterator.hasNext()) {
+            final Map.Entry<String, Long> entry = iterator.next();
+            try {
+                Files.deleteIfExists(folder.resolve(entry.getKey().concat(EXTEND)));
+            } catch (final IOException ex) {
+                //do nothing
+            }
+            diskSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Get the number of bytes in the memory tier.
+     *
+     * @return the number of bytes
+     */
+    public long getMemorySize() {
+        synchronized (memory) {
+            return memorySize;
+        }
+    }
+
+    /**
+     * Get the number of bytes in the disk tier.
+     *
+     * @return the number of bytes
+     */
+    public long getDiskSize() {
+        synchronized (disk) {
+            return diskSize;
+        }
+    }
+}
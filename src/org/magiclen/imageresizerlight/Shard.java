@@ -0,0 +1,176 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * A slice of the image files of a job, so one job can be spread across
+ * several processes or machines which share the source folder. Each image
+ * file belongs to the shard picked by a stable hash of its path relative to
+ * the source folder, so every process computes the same disjoint slices
+ * without talking to the others. Each shard keeps its own journal and
+ * manifest in the destination folder, and writes its own summary, which are
+ * merged into the report of the whole job when all shards have finished.
+ *
+ * @author Magic Len
+ */
+public class Shard {
+
+    // -----Class Constant-----
+    /**
+     * The pattern of the names of the summary files of shards.
+     */
+    private static final Pattern SUMMARY_NAME_PATTERN = Pattern.compile("imageresizerlight-shard-([0-9]+)-of-([0-9]+)\\.csv");
+
+    // -----Class Method-----
+    /**
+     * Parse a shard written as "index/count", where the index starts from 1.
+     *
+     * @param s input a string
+     * @return the shard
+     * @throws IllegalArgumentException if the string is incorrect
+     */
+    public static Shard parse(final String s) {
+        final int slashIndex = s.indexOf('/');
+        if (slashIndex < 0) {
+            throw new IllegalArgumentException("The shard must be written as <index>/<count>, such as 1/4.");
+        }
+        final int index, count;
+        try {
+            index = Integer.parseInt(s.substring(0, slashIndex).trim());
+            count = Integer.parseInt(s.substring(slashIndex + 1).trim());
+        } catch (final NumberFormatException ex) {
+            throw new IllegalArgumentException("The shard must be written as <index>/<count>, such as 1/4.");
+        }
+        return new Shard(index, count);
+    }
+
+    /**
+     * Get the shard whose summary is a file.
+     *
+     * @param file input a file
+     * @return the shard, or null if the file is not the summary of a shard
+     */
+    public static Shard ofSummary(final File file) {
+        final Matcher matcher = SUMMARY_NAME_PATTERN.matcher(file.getName());
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            return new Shard(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+        } catch (final IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // -----Object Constant-----
+    /**
+     * The index of this shard, from 1 to the number of shards.
+     */
+    private final int index;
+    /**
+     * The number of shards.
+     */
+    private final int count;
+
+    // -----Constructor-----
+    /**
+     * Construct a shard.
+     *
+     * @param index input the index of the shard, from 1 to the number of
+     * shards
+     * @param count input the number of shards
+     */
+    public Shard(final int index, final int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("The number of shards must be bigger than zero.");
+        }
+        if (index < 1 || index > count) {
+            throw new IllegalArgumentException(String.format("The index of the shard must be between 1 and %d.", count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    // -----Object Method-----
+    /**
+     * Get the index of this shard.
+     *
+     * @return the index, from 1 to the number of shards
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Check whether an image file belongs to this shard. Separators are
+     * unified before hashing, so machines of different platforms agree.
+     *
+     * @param relativePath input the path of the image file, relative to the
+     * source folder
+     * @return true if the file belongs to this shard
+     */
+    public boolean contains(final String relativePath) {
+        if (count == 1) {
+            return true;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(relativePath.replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8));
+        return crc.getValue() % count == index - 1;
+    }
+
+    /**
+     * Get the suffix appended to the names of the journal and the manifest of
+     * this shard, so shards sharing a destination folder do not overwrite
+     * each other's files.
+     *
+     * @return the suffix
+     */
+    public String getFileSuffix() {
+        return String.format(".shard-%d-of-%d", index, count);
+    }
+
+    /**
+     * Get the name of the summary file of this shard in the destination
+     * folder.
+     *
+     * @return the name
+     */
+    public String getSummaryName() {
+        return String.format("imageresizerlight-shard-%d-of-%d.csv", index, count);
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
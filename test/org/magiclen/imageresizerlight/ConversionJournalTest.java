@@ -0,0 +1,177 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test writing, loading and resuming the journal of a job, including the
+ * recovery from a journal whose tail was torn by a killed process.
+ *
+ * @author Magic Len
+ */
+public class ConversionJournalTest {
+
+    /**
+     * The fingerprint of the settings of the test job.
+     */
+    private static final long FINGERPRINT = 42;
+
+    /**
+     * A temporary destination folder.
+     */
+    @TempDir
+    public Path folder;
+    /**
+     * The source folder of the test job.
+     */
+    private Path source;
+    /**
+     * The journal file.
+     */
+    private Path file;
+    /**
+     * The length of the journal before its last record.
+     */
+    private long lengthBeforeLastRecord;
+
+    /**
+     * Write a job of three discovered files, the end of the scan and two
+     * completed files.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    @BeforeEach
+    public void writeJob() throws IOException {
+        source = folder.resolve("source");
+        file = folder.resolve(ConversionJournal.FILE_NAME);
+        final ConversionJournal journal = ConversionJournal.load(folder);
+        assertFalse(journal.hasJob());
+        journal.start(source, true, FINGERPRINT);
+        journal.appendDiscovered("a.jpg", 1, 10);
+        journal.appendDiscovered("sub/b.png", 2, 20);
+        journal.appendDiscovered("c.gif", 3, 30);
+        journal.appendScanFinished();
+        journal.appendCompleted("a.jpg", true);
+        lengthBeforeLastRecord = Files.size(file);
+        journal.appendCompleted("sub/b.png", false);
+        journal.close();
+    }
+
+    /**
+     * Everything which was written is loaded.
+     */
+    @Test
+    public void load() {
+        final ConversionJournal journal = ConversionJournal.load(folder);
+        assertTrue(journal.matches(source, true, FINGERPRINT));
+        assertFalse(journal.matches(source, false, FINGERPRINT));
+        assertFalse(journal.matches(source, true, FINGERPRINT + 1));
+        assertTrue(journal.isScanFinished());
+        assertEquals(Arrays.asList("a.jpg", "sub/b.png", "c.gif"), Arrays.asList(journal.getDiscovered().keySet().toArray()));
+        assertArrayEquals(new long[]{2, 20}, journal.getDiscovered().get("sub/b.png"));
+        assertEquals(Boolean.TRUE, journal.getCompleted().get("a.jpg"));
+        assertEquals(Boolean.FALSE, journal.getCompleted().get("sub/b.png"));
+        assertEquals(1, journal.getSucceededCount());
+    }
+
+    /**
+     * A record which was cut off at any byte is dropped with nothing before
+     * it.
+     *
+     * @throws IOException if the journal cannot be truncated
+     */
+    @Test
+    public void truncatedTail() throws IOException {
+        final byte[] bytes = Files.readAllBytes(file);
+        for (long length = lengthBeforeLastRecord; length < bytes.length; ++length) {
+            Files.write(file, Arrays.copyOf(bytes, (int) length));
+            final ConversionJournal journal = ConversionJournal.load(folder);
+            assertTrue(journal.hasJob(), "cut at " + length);
+            assertEquals(3, journal.getDiscovered().size());
+            assertEquals(1, journal.getCompleted().size());
+            assertEquals(Boolean.TRUE, journal.getCompleted().get("a.jpg"));
+        }
+    }
+
+    /**
+     * A record whose bytes are corrupt is dropped, together with everything
+     * after it, and so is garbage after the last record.
+     *
+     * @throws IOException if the journal cannot be corrupted
+     */
+    @Test
+    public void corruptTail() throws IOException {
+        final byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 6] ^= 0x20;
+        Files.write(file, bytes);
+        ConversionJournal journal = ConversionJournal.load(folder);
+        assertEquals(1, journal.getCompleted().size());
+        assertFalse(journal.getCompleted().containsKey("sub/b.png"));
+
+        Files.write(file, Arrays.copyOf(bytes, (int) lengthBeforeLastRecord));
+        Files.write(file, new byte[]{0, 0, 0, 9, 1, 2, 3}, StandardOpenOption.APPEND);
+        journal = ConversionJournal.load(folder);
+        assertEquals(3, journal.getDiscovered().size());
+        assertEquals(1, journal.getCompleted().size());
+    }
+
+    /**
+     * A resumed journal cuts off its torn tail, so records appended after it
+     * are loaded again.
+     *
+     * @throws IOException if the journal cannot be resumed
+     */
+    @Test
+    public void resumeAfterTornTail() throws IOException {
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 3));
+        final ConversionJournal journal = ConversionJournal.load(folder);
+        journal.resume();
+        journal.appendCompleted("c.gif", true);
+        journal.close();
+
+        final ConversionJournal resumed = ConversionJournal.load(folder);
+        assertTrue(resumed.isScanFinished());
+        assertEquals(2, resumed.getCompleted().size());
+        assertEquals(2, resumed.getSucceededCount());
+        assertEquals(Boolean.TRUE, resumed.getCompleted().get("c.gif"));
+    }
+
+    /**
+     * A file which is not a journal has no job.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Test
+    public void notJournal() throws IOException {
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        assertFalse(ConversionJournal.load(folder).hasJob());
+    }
+}
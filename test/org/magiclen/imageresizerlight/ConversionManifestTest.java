@@ -0,0 +1,112 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test saving and loading the manifest of the incremental mode.
+ *
+ * @author Magic Len
+ */
+public class ConversionManifestTest {
+
+    /**
+     * A temporary destination folder.
+     */
+    @TempDir
+    public Path folder;
+
+    /**
+     * A saved manifest is loaded with the same entries, and saving it again
+     * replaces the old one.
+     *
+     * @throws IOException if the manifest cannot be saved
+     */
+    @Test
+    public void saveAndLoad() throws IOException {
+        final ConversionManifest manifest = ConversionManifest.load(folder);
+        assertEquals(0, manifest.size());
+        manifest.put("a.jpg", new ConversionManifest.Entry(100, 1000, 7, Collections.singletonList("a.jpg")));
+        manifest.put("sub/圖.png", new ConversionManifest.Entry(200, 2000, 7, Arrays.asList("sub/圖.jpg", "sub/圖-thumb.jpg")));
+        manifest.put("empty.gif", new ConversionManifest.Entry(0, 0, 7, Collections.emptyList()));
+        manifest.save();
+        assertFalse(Files.exists(folder.resolve(ConversionManifest.FILE_NAME + ".tmp")));
+
+        ConversionManifest loaded = ConversionManifest.load(folder);
+        assertEquals(3, loaded.size());
+        final ConversionManifest.Entry entry = loaded.get("sub/圖.png");
+        assertTrue(entry.matches(200, 2000, 7));
+        assertFalse(entry.matches(200, 2001, 7));
+        assertFalse(entry.matches(200, 2000, 8));
+        assertEquals(Arrays.asList("sub/圖.jpg", "sub/圖-thumb.jpg"), entry.getOutputPaths());
+        assertTrue(loaded.get("empty.gif").getOutputPaths().isEmpty());
+
+        loaded.put("a.jpg", new ConversionManifest.Entry(101, 1001, 7, Collections.singletonList("a.jpg")));
+        loaded.save();
+        loaded = ConversionManifest.load(folder);
+        assertEquals(3, loaded.size());
+        assertTrue(loaded.get("a.jpg").matches(101, 1001, 7));
+    }
+
+    /**
+     * The manifests of shards sharing a destination folder are kept apart.
+     *
+     * @throws IOException if the manifest cannot be saved
+     */
+    @Test
+    public void shards() throws IOException {
+        final ConversionManifest first = ConversionManifest.load(folder, new Shard(1, 2));
+        first.put("a.jpg", new ConversionManifest.Entry(1, 1, 1, Collections.singletonList("a.jpg")));
+        first.save();
+        assertEquals(1, ConversionManifest.load(folder, new Shard(1, 2)).size());
+        assertEquals(0, ConversionManifest.load(folder, new Shard(2, 2)).size());
+        assertEquals(0, ConversionManifest.load(folder).size());
+    }
+
+    /**
+     * A broken manifest is loaded as an empty one, so every image is
+     * converted again rather than trusted.
+     *
+     * @throws IOException if the manifest cannot be saved
+     */
+    @Test
+    public void brokenManifest() throws IOException {
+        final ConversionManifest manifest = ConversionManifest.load(folder);
+        for (int i = 0; i < 10; ++i) {
+            manifest.put("image-" + i + ".jpg", new ConversionManifest.Entry(i, i, 1, Collections.singletonList("image-" + i + ".jpg")));
+        }
+        manifest.save();
+        final Path file = folder.resolve(ConversionManifest.FILE_NAME);
+        final byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 5));
+        final ConversionManifest loaded = ConversionManifest.load(folder);
+        assertEquals(0, loaded.size());
+        assertNull(loaded.get("image-0.jpg"));
+    }
+}
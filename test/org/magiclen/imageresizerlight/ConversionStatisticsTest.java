@@ -0,0 +1,171 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test merging the summaries of shards into the statistics of a job.
+ *
+ * @author Magic Len
+ */
+public class ConversionStatisticsTest {
+
+    /**
+     * The fingerprint of the settings of the test jobs.
+     */
+    private static final long FINGERPRINT = 0x1234567890ABCDEFL;
+
+    /**
+     * A temporary destination folder.
+     */
+    @TempDir
+    public Path folder;
+
+    /**
+     * Write the summary of a shard which converted some images.
+     *
+     * @param shard input the shard
+     * @param source input the source folder
+     * @param fingerprint input the fingerprint of the settings
+     * @param images input the number of converted images
+     * @return the summary file
+     * @throws IOException if the summary cannot be written
+     */
+    private Path writeSummary(final Shard shard, final Path source, final long fingerprint, final int images) throws IOException {
+        final ConversionStatistics statistics = new ConversionStatistics(new ConversionEngine(2));
+        for (int i = 1; i <= images; ++i) {
+            statistics.recordSource(i % 2 == 0 ? "png" : "jpeg", 4000, 3000, 1000);
+            statistics.recordOutput(100);
+            statistics.recordStage(ConversionStatistics.Stage.TOTAL, i * 1000000L);
+        }
+        statistics.recordFailure(ConversionStatistics.Stage.DECODE, source.resolve("broken-" + shard.getIndex() + ".jpg"), new IOException("broken"));
+        statistics.finish();
+        statistics.writeShardSummary(folder, shard, source, fingerprint);
+        return folder.resolve(shard.getSummaryName());
+    }
+
+    /**
+     * Counts and histograms of all shards are added.
+     *
+     * @throws IOException if a summary cannot be written or merged
+     */
+    @Test
+    public void merge() throws IOException {
+        final Path source = folder.resolve("source");
+        final Path first = writeSummary(new Shard(1, 2), source, FINGERPRINT, 30);
+        final Path second = writeSummary(new Shard(2, 2), source, FINGERPRINT, 10);
+        final ConversionStatistics statistics = ConversionStatistics.merge(Arrays.asList(second, first));
+        assertEquals(2, statistics.getShardCount());
+        assertEquals(4, statistics.getWorkerCount());
+        assertFalse(statistics.isComplete());
+        assertEquals(40, statistics.getHistogram(ConversionStatistics.Stage.TOTAL).getCount());
+        assertEquals(30, statistics.getHistogram(ConversionStatistics.Stage.TOTAL).getMaxMillis(), 0);
+        assertEquals(20, (long) statistics.getFormatCounts().get("png"));
+        assertEquals(20, (long) statistics.getFormatCounts().get("jpeg"));
+        assertEquals(40000, statistics.getBytesRead());
+        assertEquals(4000, statistics.getBytesWritten());
+        assertEquals(2, statistics.getFailureCount());
+        assertEquals(2, (long) statistics.getFailureCounts().get("decode"));
+        assertEquals(2, statistics.getFailureSamples().size());
+    }
+
+    /**
+     * A shard without a summary fails the merge, rather than giving the
+     * figures of part of the job.
+     *
+     * @throws IOException if a summary cannot be written
+     */
+    @Test
+    public void mergeMissingShard() throws IOException {
+        final Path source = folder.resolve("source");
+        final Path first = writeSummary(new Shard(1, 3), source, FINGERPRINT, 5);
+        final Path third = writeSummary(new Shard(3, 3), source, FINGERPRINT, 5);
+        final IOException ex = assertThrows(IOException.class, () -> ConversionStatistics.merge(Arrays.asList(first, third)));
+        assertTrue(ex.getMessage().contains("2/3"), ex.getMessage());
+        assertThrows(IOException.class, () -> ConversionStatistics.merge(Collections.emptyList()));
+    }
+
+    /**
+     * Summaries of different sources, settings or numbers of shards are of
+     * different jobs, and a shard cannot be merged twice.
+     *
+     * @throws IOException if a summary cannot be written
+     */
+    @Test
+    public void mergeMismatchedJobs() throws IOException {
+        final Path source = folder.resolve("source");
+        final Path first = writeSummary(new Shard(1, 2), source, FINGERPRINT, 5);
+        final Path copy = Files.copy(first, folder.resolve("copy.csv"));
+
+        final Path otherSource = writeSummary(new Shard(2, 2), folder.resolve("other"), FINGERPRINT, 5);
+        assertTrue(assertThrows(IOException.class, () -> ConversionStatistics.merge(Arrays.asList(first, otherSource))).getMessage().contains("different jobs"));
+
+        final Path otherSettings = writeSummary(new Shard(2, 2), source, FINGERPRINT + 1, 5);
+        assertTrue(assertThrows(IOException.class, () -> ConversionStatistics.merge(Arrays.asList(first, otherSettings))).getMessage().contains("different jobs"));
+
+        final Path otherCount = writeSummary(new Shard(2, 3), source, FINGERPRINT, 5);
+        assertTrue(assertThrows(IOException.class, () -> ConversionStatistics.merge(Arrays.asList(first, otherCount))).getMessage().contains("different jobs"));
+
+        assertThrows(IOException.class, () -> ConversionStatistics.merge(Arrays.asList(first, copy)));
+    }
+
+    /**
+     * A summary without the figures of its job is broken.
+     *
+     * @throws IOException if a summary cannot be written
+     */
+    @Test
+    public void mergeBrokenSummary() throws IOException {
+        final Path summary = folder.resolve(new Shard(1, 1).getSummaryName());
+        Files.write(summary, Arrays.asList("metric,value", "shard,1/1"));
+        assertThrows(IOException.class, () -> ConversionStatistics.merge(Collections.singletonList(summary)));
+    }
+
+    /**
+     * A figure which cannot be added fails the merge and is named, rather
+     * than being dropped from the report of the job.
+     *
+     * @throws IOException if a summary cannot be written
+     */
+    @Test
+    public void mergeIncorrectLine() throws IOException {
+        final Path source = folder.resolve("source");
+        final Path summary = writeSummary(new Shard(1, 1), source, FINGERPRINT, 5);
+        final List<String> lines = Files.readAllLines(summary);
+        for (final String incorrect : new String[]{"histogram.total,1 2 x", "histogram.upload,1 1", "size.huge,1", "format.png,many", "failureSample,a.jpg", "unknown,1", "bytesRead"}) {
+            final List<String> broken = new ArrayList<>(lines);
+            broken.add(incorrect);
+            Files.write(summary, broken);
+            final IOException ex = assertThrows(IOException.class, () -> ConversionStatistics.merge(Collections.singletonList(summary)), incorrect);
+            assertTrue(ex.getMessage().endsWith(incorrect), ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the recording, the percentiles and the merging of latency histograms.
+ *
+ * @author Magic Len
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Record every whole number of milliseconds in a range.
+     *
+     * @param histogram input a histogram
+     * @param from input the first latency, in milliseconds
+     * @param to input the last latency, in milliseconds
+     */
+    private static void recordMillis(final LatencyHistogram histogram, final int from, final int to) {
+        for (int i = from; i <= to; ++i) {
+            histogram.record(i * 1000000L);
+        }
+    }
+
+    /**
+     * A percentile is the upper bound of its bucket, which is at most an
+     * eighth bigger than the exact value, and never bigger than the largest
+     * value.
+     */
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(99), 0);
+        recordMillis(histogram, 1, 1000);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 1e-9);
+        assertEquals(1000, histogram.getMaxMillis(), 0);
+        for (final double percentile : new double[]{1, 50, 90, 99}) {
+            final double exact = percentile * 10;
+            final double value = histogram.getPercentileMillis(percentile);
+            assertTrue(value >= exact && value <= exact * 1.125, percentile + "th percentile: " + value);
+        }
+        assertEquals(1000, histogram.getPercentileMillis(100), 0);
+    }
+
+    /**
+     * An encoded histogram merged into an empty one is the same histogram.
+     */
+    @Test
+    public void encodeRoundTrip() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        recordMillis(histogram, 1, 300);
+        histogram.record(0);
+        histogram.record(7000);
+        histogram.record(3600000000000L);
+        final LatencyHistogram decoded = new LatencyHistogram();
+        decoded.merge(histogram.encode());
+        assertEquals(histogram.encode(), decoded.encode());
+        assertEquals(histogram.getCount(), decoded.getCount());
+        assertEquals(histogram.getTotalMillis(), decoded.getTotalMillis(), 0);
+        assertEquals(histogram.getMaxMillis(), decoded.getMaxMillis(), 0);
+        for (final double percentile : new double[]{0, 25, 50, 75, 99, 99.9, 100}) {
+            assertEquals(histogram.getPercentileMillis(percentile), decoded.getPercentileMillis(percentile), 0);
+        }
+    }
+
+    /**
+     * Histograms of several processes merge into the histogram of all their
+     * values.
+     */
+    @Test
+    public void mergeShards() {
+        final LatencyHistogram whole = new LatencyHistogram();
+        recordMillis(whole, 1, 900);
+        final LatencyHistogram first = new LatencyHistogram(), second = new LatencyHistogram(), third = new LatencyHistogram();
+        recordMillis(first, 1, 100);
+        recordMillis(second, 101, 700);
+        recordMillis(third, 701, 900);
+        final LatencyHistogram merged = new LatencyHistogram();
+        merged.merge(third.encode());
+        merged.merge(first.encode());
+        merged.merge(second.encode());
+        assertEquals(whole.encode(), merged.encode());
+        assertEquals(whole.getPercentileMillis(99), merged.getPercentileMillis(99), 0);
+    }
+
+    /**
+     * Broken text is rejected and leaves the histogram as it was.
+     */
+    @Test
+    public void mergeBrokenText() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        recordMillis(histogram, 1, 10);
+        final String encoded = histogram.encode();
+        for (final String broken : new String[]{"", "12", "12 3 x:1", "12 3 1:-1", "12 3 99999:1", "12 3 4"}) {
+            assertThrows(IllegalArgumentException.class, () -> histogram.merge(broken), broken);
+        }
+        assertEquals(encoded, histogram.encode());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ * Copyright 2015-2018 magiclen.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.magiclen.imageresizerlight;
+
+import java.io.File;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test the partition of image files into shards.
+ *
+ * @author Magic Len
+ */
+public class ShardTest {
+
+    /**
+     * Every file belongs to exactly one shard, whatever the number of shards
+     * is, and no shard is left empty by a large folder.
+     */
+    @Test
+    public void shardsAreCompleteAndDisjoint() {
+        for (int count = 1; count <= 7; ++count) {
+            final Shard[] shards = new Shard[count];
+            for (int i = 0; i < count; ++i) {
+                shards[i] = new Shard(i + 1, count);
+            }
+            final int[] sizes = new int[count];
+            for (int n = 0; n < 2000; ++n) {
+                final String relativePath = "folder-" + (n % 13) + "/image-" + n + ".jpg";
+                int owners = 0;
+                for (int i = 0; i < count; ++i) {
+                    if (shards[i].contains(relativePath)) {
+                        ++owners;
+                        ++sizes[i];
+                    }
+                }
+                assertEquals(1, owners, relativePath + " in " + count + " shards");
+            }
+            for (int i = 0; i < count; ++i) {
+                assertTrue(sizes[i] > 0, "The shard " + shards[i] + " is empty.");
+            }
+        }
+    }
+
+    /**
+     * Separators are unified, so machines of different platforms agree.
+     */
+    @Test
+    public void separatorsAreUnified() {
+        final String path = "a" + File.separatorChar + "b" + File.separatorChar + "c.png";
+        for (int i = 1; i <= 4; ++i) {
+            final Shard shard = new Shard(i, 4);
+            assertEquals(shard.contains("a/b/c.png"), shard.contains(path));
+        }
+    }
+
+    /**
+     * Shards are written as "index/count", and their summaries are named
+     * after them.
+     */
+    @Test
+    public void parse() {
+        final Shard shard = Shard.parse(" 2 / 4 ");
+        assertEquals(2, shard.getIndex());
+        assertEquals(4, shard.getCount());
+        assertEquals("2/4", shard.toString());
+        assertEquals(2, Shard.ofSummary(new File(shard.getSummaryName())).getIndex());
+        assertNull(Shard.ofSummary(new File("imageresizerlight-shard-5-of-4.csv")));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("5/4"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("0/4"));
+        assertThrows(IllegalArgumentException.class, () -> Shard.parse("1-4"));
+    }
+}